@@ -0,0 +1,104 @@
+/*
+ *   platformconnectorplugindemo - BenchmarkPlugin.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PlatformConnectorPlugin;
+import java.nio.file.Path;
+import java.util.Properties;
+import org.pf4j.DefaultPluginDescriptor;
+import org.pf4j.DefaultPluginManager;
+import org.pf4j.PluginWrapper;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Starts the plugin the way the container does, through
+ * PluginManager.createApplicationContext, with an empty pf4j plugin manager
+ * standing in for the container's. The plugin configuration is read from target/&lt;pluginId&gt;.properties, as
+ * target is the directory holding the compiled classes.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public final class BenchmarkPlugin implements AutoCloseable {
+
+    public static final String PLUGIN_ID = "benchmarkPlugin";
+
+    private final ConfigurableApplicationContext context;
+    private final PlatformConnectorPlugin worker;
+    private final PluginManager.PluginWrapperExtension extension;
+    private final StubContainer container = new StubContainer();
+
+    private BenchmarkPlugin(ConfigurableApplicationContext context) {
+        this.context = context;
+        this.worker = context.getBean(PlatformConnectorPlugin.class);
+        this.extension = new PluginManager.PluginWrapperExtension(worker);
+        this.extension.setContainerInterface(container);
+    }
+
+    public static BenchmarkPlugin start() {
+        return new BenchmarkPlugin(createContext());
+    }
+
+    /**
+     * Starts the worker with the given configuration instead of reading it
+     * from the plugin configuration file, so a benchmark can compare settings.
+     *
+     * @param config plugin configuration
+     * @return the started plugin
+     */
+    public static BenchmarkPlugin start(Properties config) {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.setId(PLUGIN_ID);
+        context.registerBean(PlatformConnectorPlugin.class, () -> PluginConfiguration.createWorker(PLUGIN_ID, "Benchmark plugin", config, null));
+        context.refresh();
+        return new BenchmarkPlugin(context);
+    }
+
+    /**
+     * Creates and refreshes the plugin application context, as happens when
+     * the container starts the plugin.
+     *
+     * @return the context
+     */
+    public static ConfigurableApplicationContext createContext() {
+        DefaultPluginDescriptor descriptor = new DefaultPluginDescriptor(PLUGIN_ID, "Benchmark plugin", PluginManager.class.getName(), "0.0.0", "", "Benchmark", "AGPL-3.0");
+        // The plugin manager never loads anything, the wrapper only needs it for the runtime mode
+        DefaultPluginManager pluginManager = new DefaultPluginManager(Path.of("target", "benchmark-plugins"));
+        PluginWrapper wrapper = new PluginWrapper(pluginManager, descriptor, Path.of("target"), BenchmarkPlugin.class.getClassLoader());
+        return (ConfigurableApplicationContext) new PluginManager(wrapper).createApplicationContext();
+    }
+
+    public PlatformConnectorPlugin getWorker() {
+        return worker;
+    }
+
+    public PluginManager.PluginWrapperExtension getExtension() {
+        return extension;
+    }
+
+    public StubContainer getContainer() {
+        return container;
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+}
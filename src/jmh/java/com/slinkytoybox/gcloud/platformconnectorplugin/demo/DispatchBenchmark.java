@@ -0,0 +1,141 @@
+/*
+ *   platformconnectorplugindemo - DispatchBenchmark.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.*;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the precomputed RequestDispatcher against the instanceof chain
+ * that getResponseFromRequest originally used. Both sides call the same
+ * trivial handlers so only the dispatch cost is measured.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    private final CreateResponse createResponse = new CreateResponse();
+    private final UpdateResponse updateResponse = new UpdateResponse();
+    private final ReadResponse readResponse = new ReadResponse();
+    private final DeleteResponse deleteResponse = new DeleteResponse();
+
+    private final Function<CreateRequest, PluginResponse> createHandler = req -> createResponse;
+    private final Function<UpdateRequest, PluginResponse> updateHandler = req -> updateResponse;
+    private final Function<ReadRequest, PluginResponse> readHandler = req -> readResponse;
+    private final Function<DeleteRequest, PluginResponse> deleteHandler = req -> deleteResponse;
+
+    private final List<PluginOperation> supportedOperations = new ArrayList<>();
+    private RequestDispatcher dispatcher;
+    private PluginRequest[] requests;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        supportedOperations.add(PluginOperation.CREATE);
+        supportedOperations.add(PluginOperation.READ);
+        supportedOperations.add(PluginOperation.UPDATE);
+        supportedOperations.add(PluginOperation.DELETE);
+        dispatcher = RequestDispatcher.builder(supportedOperations)
+                .register(PluginOperation.CREATE, CreateRequest.class, "Create")
+                .register(PluginOperation.UPDATE, UpdateRequest.class, "Update")
+                .register(PluginOperation.READ, ReadRequest.class, "Read")
+                .register(PluginOperation.DELETE, DeleteRequest.class, "Delete")
+                .build();
+        // Mixed request types so neither side benefits from a monomorphic call site
+        requests = new PluginRequest[]{new ReadRequest(), new CreateRequest(), new ReadRequest(), new UpdateRequest(), new ReadRequest(), new DeleteRequest()};
+    }
+
+    private PluginRequest nextRequest() {
+        PluginRequest request = requests[next];
+        next = (next + 1) % requests.length;
+        return request;
+    }
+
+    @Benchmark
+    public PluginResponse instanceofChain() {
+        return legacyDispatch(nextRequest());
+    }
+
+    @Benchmark
+    public PluginResponse dispatchTable() {
+        return tableDispatch(nextRequest());
+    }
+
+    // Same routing as DemoPluginWorker.getResponseFromRequest, minus logging
+    private PluginResponse tableDispatch(PluginRequest request) {
+        RequestDispatcher.Route route = dispatcher.route(request);
+        if (!route.isSupported()) {
+            throw new UnsupportedOperationException(route.getErrorMessage());
+        }
+        switch (route.getOperation()) {
+            case CREATE:
+                return createHandler.apply((CreateRequest) request);
+            case UPDATE:
+                return updateHandler.apply((UpdateRequest) request);
+            case READ:
+                return readHandler.apply((ReadRequest) request);
+            case DELETE:
+                return deleteHandler.apply((DeleteRequest) request);
+            default:
+                throw new UnsupportedOperationException("Request class type not implemented");
+        }
+    }
+
+    // Copy of the original getResponseFromRequest routing, minus logging
+    private PluginResponse legacyDispatch(PluginRequest request) {
+        if (request instanceof CreateRequest createRequest) {
+            if (supportedOperations.contains(PluginOperation.CREATE)) {
+                return createHandler.apply(createRequest);
+            }
+            throw new UnsupportedOperationException("Create requests are not supported by this plugin");
+        }
+        if (request instanceof UpdateRequest updateRequest) {
+            if (supportedOperations.contains(PluginOperation.UPDATE)) {
+                return updateHandler.apply(updateRequest);
+            }
+            throw new UnsupportedOperationException("Update requests are not supported by this plugin");
+        }
+        if (request instanceof ReadRequest readRequest) {
+            if (supportedOperations.contains(PluginOperation.READ)) {
+                return readHandler.apply(readRequest);
+            }
+            throw new UnsupportedOperationException("Read requests are not supported by this plugin");
+        }
+        if (request instanceof DeleteRequest deleteRequest) {
+            if (supportedOperations.contains(PluginOperation.DELETE)) {
+                return deleteHandler.apply(deleteRequest);
+            }
+            throw new UnsupportedOperationException("Delete requests are not supported by this plugin");
+        }
+        throw new UnsupportedOperationException("Request class type not implemented");
+    }
+}
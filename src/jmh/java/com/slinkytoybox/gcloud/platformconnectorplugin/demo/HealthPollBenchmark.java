@@ -0,0 +1,74 @@
+/*
+ *   platformconnectorplugindemo - HealthPollBenchmark.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PlatformConnectorPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of answering a container health poll. buildOnPoll measures building
+ * the complete health result, which is what every poll used to do;
+ * snapshotPoll measures the current getPluginHealth, served from the health
+ * monitor snapshot. Run with -prof gc to compare allocation.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HealthPollBenchmark {
+
+    private BenchmarkPlugin plugin;
+    private PlatformConnectorPlugin worker;
+    private MethodHandle buildPluginHealth;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        plugin = BenchmarkPlugin.start();
+        worker = plugin.getWorker();
+        // buildPluginHealth is private to the worker, as it is meant to be customised rather than called
+        buildPluginHealth = MethodHandles.privateLookupIn(DemoPluginWorker.class, MethodHandles.lookup())
+                .findVirtual(DemoPluginWorker.class, "buildPluginHealth", MethodType.methodType(HealthResult.class))
+                .bindTo(worker);
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.close();
+    }
+
+    @Benchmark
+    public HealthResult buildOnPoll() throws Throwable {
+        return (HealthResult) buildPluginHealth.invokeExact();
+    }
+
+    @Benchmark
+    public HealthResult snapshotPoll() {
+        return worker.getPluginHealth();
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ *   platformconnectorplugindemo - LoadDriver.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.*;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Offline load test. Starts the plugin through PluginManager with a stub
+ * container, as the benchmarks do, and sends it a mix of create, read,
+ * update and delete requests at a fixed arrival rate for a set time.
+ *
+ * The load is open loop: every request has an intended start time on a fixed
+ * schedule, and its latency is measured from that time rather than from when
+ * a sending thread got round to it. A plugin that stalls therefore shows the
+ * full delay its callers would have seen, instead of the stall holding back
+ * the requests that would have measured it (coordinated omission).
+ *
+ * Reports throughput, latency percentiles and response statuses per
+ * operation, and a timeline of the plugin health, both pushed to the
+ * container and seen by polling.
+ *
+ * Run with: mvn -Pbenchmarks test-compile exec:exec@load-test
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public final class LoadDriver {
+
+    private static final PluginOperation[] OPERATIONS = PluginOperation.values();
+    private static final ResponseStatus[] STATUSES = ResponseStatus.values();
+
+    private final long rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int threads;
+    private final boolean async;
+    private final int objectIds;
+    private final long healthPollNanos;
+    private final PluginOperation[] mix;
+    private final Map<PluginOperation, Integer> mixWeights;
+
+    private final OperationStats[] stats = new OperationStats[OPERATIONS.length];
+    private final List<String> timeline = new ArrayList<>();
+    private final AtomicLong requestCounter = new AtomicLong();
+    private final AtomicLong lastCompletionNanos = new AtomicLong();
+    private long maxSendLagNanos = 0;
+    private long startNanos;
+
+    private LoadDriver(Properties config) {
+        this.rate = Math.max(1, Long.parseLong(config.getProperty("load.rate", "500")));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(config.getProperty("load.warmupSeconds", "5")));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(config.getProperty("load.durationSeconds", "30")));
+        this.threads = Integer.parseInt(config.getProperty("load.threads", "200"));
+        this.async = Boolean.parseBoolean(config.getProperty("load.async", "false"));
+        this.objectIds = Math.max(1, Integer.parseInt(config.getProperty("load.objectIds", "1000")));
+        this.healthPollNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(config.getProperty("load.healthPollMillis", "1000")));
+        this.mixWeights = parseMix(config.getProperty("load.mix", "read:70,create:10,update:15,delete:5"));
+        this.mix = expandMix(mixWeights);
+        for (PluginOperation operation : OPERATIONS) {
+            stats[operation.ordinal()] = new OperationStats();
+        }
+    }
+
+    /**
+     * @param args optional path to the load test properties file, by default
+     * target/loadtest.properties. Missing settings use their defaults
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Path configFile = Path.of(args.length > 0 ? args[0] : "target/loadtest.properties");
+        Properties config = new Properties();
+        if (Files.exists(configFile)) {
+            try ( InputStream in = Files.newInputStream(configFile)) {
+                config.load(in);
+            }
+        }
+        new LoadDriver(config).run();
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf("Load test: %d requests/s for %ds after a %ds warm-up, mix %s, %s%n", rate,
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos), mixWeights,
+                async ? "asynchronous requests" : threads + " sending threads");
+        try (BenchmarkPlugin plugin = BenchmarkPlugin.start()) {
+            ExecutorService senders = Executors.newFixedThreadPool(threads, PluginExecutors.namedDaemonThreads("load"));
+            startNanos = System.nanoTime();
+            HealthState polledState = pollHealth(plugin, null);
+            long periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+            long endNanos = startNanos + warmupNanos + durationNanos;
+            long nextPoll = startNanos + healthPollNanos;
+            for (long i = 0;; i++) {
+                long intended = startNanos + i * periodNanos;
+                if (intended >= endNanos) {
+                    break;
+                }
+                long now = System.nanoTime();
+                while (now < intended) {
+                    LockSupport.parkNanos(intended - now);
+                    now = System.nanoTime();
+                }
+                boolean measured = intended - startNanos >= warmupNanos;
+                if (measured) {
+                    maxSendLagNanos = Math.max(maxSendLagNanos, now - intended);
+                }
+                PluginRequest request = newRequest(mix[(int) (i % mix.length)]);
+                if (async) {
+                    sendAsync(plugin.getExtension(), request, intended, measured);
+                }
+                else {
+                    senders.execute(() -> send(plugin.getExtension(), request, intended, measured));
+                }
+                if (now >= nextPoll) {
+                    polledState = pollHealth(plugin, polledState);
+                    nextPoll += healthPollNanos;
+                }
+            }
+            senders.shutdown();
+            if (!senders.awaitTermination(60, TimeUnit.SECONDS)) {
+                System.out.println("Requests still running after 60s, the results are incomplete");
+            }
+            pollHealth(plugin, polledState);
+            report(plugin.getContainer());
+        }
+    }
+
+    private PluginRequest newRequest(PluginOperation operation) {
+        String objectId = "load" + ThreadLocalRandom.current().nextInt(objectIds);
+        String requestId = "load-" + requestCounter.incrementAndGet();
+        PluginRequest request;
+        switch (operation) {
+            case CREATE:
+                Map<String, Serializable> details = new HashMap<>();
+                details.put("Name", "Load test");
+                details.put("Phone", "+61200000000");
+                request = new CreateRequest().setObjectDetails(details);
+                break;
+            case READ:
+                request = new ReadRequest().setObjectId(objectId);
+                break;
+            case UPDATE:
+                request = new UpdateRequest().setObjectId(objectId);
+                break;
+            case DELETE:
+                request = new DeleteRequest().setObjectId(objectId);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+        return request.setRequestId(requestId).setRequestDate(OffsetDateTime.now());
+    }
+
+    private void send(PluginManager.PluginWrapperExtension plugin, PluginRequest request, long intended, boolean measured) {
+        OperationStats operationStats = statsFor(request);
+        try {
+            PluginResponse response = plugin.getResponseFromRequest(request);
+            operationStats.record(response, intended, measured);
+        }
+        catch (RuntimeException ex) {
+            operationStats.recordException(intended, measured);
+        }
+        completed();
+    }
+
+    private void sendAsync(AsyncPlatformConnectorPlugin plugin, PluginRequest request, long intended, boolean measured) {
+        OperationStats operationStats = statsFor(request);
+        CompletableFuture<PluginResponse> future;
+        try {
+            future = plugin.getResponseFromRequestAsync(request);
+        }
+        catch (RuntimeException ex) {
+            operationStats.recordException(intended, measured);
+            completed();
+            return;
+        }
+        future.whenComplete((response, ex) -> {
+            if (ex == null) {
+                operationStats.record(response, intended, measured);
+            }
+            else {
+                operationStats.recordException(intended, measured);
+            }
+            completed();
+        });
+    }
+
+    private void completed() {
+        lastCompletionNanos.accumulateAndGet(System.nanoTime(), Math::max);
+    }
+
+    private OperationStats statsFor(PluginRequest request) {
+        if (request instanceof CreateRequest) {
+            return stats[PluginOperation.CREATE.ordinal()];
+        }
+        if (request instanceof ReadRequest) {
+            return stats[PluginOperation.READ.ordinal()];
+        }
+        if (request instanceof UpdateRequest) {
+            return stats[PluginOperation.UPDATE.ordinal()];
+        }
+        return stats[PluginOperation.DELETE.ordinal()];
+    }
+
+    // Polls the plugin health as the container would, adding a timeline entry when the state changes
+    private HealthState pollHealth(BenchmarkPlugin plugin, HealthState previous) {
+        HealthResult health = plugin.getExtension().getPluginHealth();
+        HealthState state = health.getOverallStatus() == null ? HealthState.UNKNOWN : health.getOverallStatus().getHealthState();
+        if (state != previous) {
+            timeline.add(describe(System.nanoTime(), "polled", health));
+        }
+        return state;
+    }
+
+    private String describe(long nanoTime, String source, HealthResult health) {
+        HealthStatus overall = health.getOverallStatus();
+        StringBuilder line = new StringBuilder(String.format("%+9.3fs %-7s %-8s", (nanoTime - startNanos) / 1e9, overall == null ? HealthState.UNKNOWN : overall.getHealthState(), source));
+        if (health.getComponentStatus() != null) {
+            health.getComponentStatus().forEach((component, status) -> {
+                if (status.getHealthState() != HealthState.HEALTHY) {
+                    line.append(' ').append(component).append('=').append(status.getHealthState());
+                }
+            });
+        }
+        if (overall != null && overall.getHealthComment() != null) {
+            line.append(" - ").append(overall.getHealthComment());
+        }
+        return line.toString();
+    }
+
+    private void report(StubContainer container) {
+        double seconds = durationNanos / 1e9;
+        long total = 0;
+        for (OperationStats operationStats : stats) {
+            total += operationStats.latency.getCount();
+        }
+        // throughput runs to the last response, so a plugin that falls behind shows a lower rate than was sent
+        double completedSeconds = Math.max(durationNanos, lastCompletionNanos.get() - startNanos - warmupNanos) / 1e9;
+        System.out.printf("%nMeasured %d requests sent over %.0fs and completed over %.1fs, %.1f requests/s%n", total, seconds, completedSeconds, total / completedSeconds);
+        if (maxSendLagNanos > TimeUnit.MILLISECONDS.toNanos(10)) {
+            System.out.printf("The driver fell up to %.1fms behind its schedule. The delay is included in the latencies, so check the driver is not short of CPU%n", maxSendLagNanos / 1e6);
+        }
+        StringBuilder header = new StringBuilder(String.format("%n%-8s %9s %9s", "", "requests", "req/s"));
+        for (ResponseStatus status : STATUSES) {
+            header.append(String.format(" %9s", abbreviate(status)));
+        }
+        header.append(String.format(" %9s %9s %9s %9s %9s %9s  (latency in microseconds)", "exception", "p50", "p90", "p99", "p99.9", "max"));
+        System.out.println(header);
+        for (PluginOperation operation : OPERATIONS) {
+            OperationStats operationStats = stats[operation.ordinal()];
+            LatencyHistogram latency = operationStats.latency;
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            StringBuilder row = new StringBuilder(String.format("%-8s %9d %9.1f", operation.name().toLowerCase(Locale.ROOT), latency.getCount(), latency.getCount() / seconds));
+            for (ResponseStatus status : STATUSES) {
+                row.append(String.format(" %9d", operationStats.statuses[status.ordinal()].sum()));
+            }
+            row.append(String.format(" %9d %9d %9d %9d %9d %9d", operationStats.exceptions.sum(), latency.getValueAtPercentile(50),
+                    latency.getValueAtPercentile(90), latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), latency.getMax()));
+            System.out.println(row);
+        }
+
+        List<String> events = new ArrayList<>(timeline);
+        for (StubContainer.PushedHealth pushed : container.getPushLog()) {
+            events.add(describe(pushed.getNanoTime(), "pushed", pushed.getHealth()));
+        }
+        // entries start with the signed, fixed width offset, so they sort by time as text
+        events.sort(null);
+        System.out.printf("%nHealth timeline, seconds from the start of the warm-up:%n");
+        events.forEach(event -> System.out.println("  " + event));
+    }
+
+    // RECORD_NOT_FOUND -> notFound, as the full names do not fit the table
+    private static String abbreviate(ResponseStatus status) {
+        switch (status) {
+            case RECORD_NOT_FOUND:
+                return "notFound";
+            case MULTIPLE_RECORDS:
+                return "multiple";
+            default:
+                return status.name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // read:70,create:10 -> {READ=70, CREATE=10}
+    private static Map<PluginOperation, Integer> parseMix(String mix) {
+        Map<PluginOperation, Integer> weights = new EnumMap<>(PluginOperation.class);
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid load.mix entry '" + part + "', expected operation:weight");
+            }
+            weights.put(PluginOperation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(pair[1].trim()));
+        }
+        return weights;
+    }
+
+    // Spreads the operations through a repeating cycle in proportion to their weights, so the mix holds at any point
+    private static PluginOperation[] expandMix(Map<PluginOperation, Integer> weights) {
+        int total = weights.values().stream().mapToInt(Integer::intValue).sum();
+        if (total <= 0) {
+            throw new IllegalArgumentException("load.mix must have at least one operation with a positive weight");
+        }
+        PluginOperation[] cycle = new PluginOperation[total];
+        double[] credit = new double[OPERATIONS.length];
+        for (int slot = 0; slot < total; slot++) {
+            PluginOperation chosen = null;
+            for (Map.Entry<PluginOperation, Integer> entry : weights.entrySet()) {
+                int index = entry.getKey().ordinal();
+                credit[index] += (double) entry.getValue() / total;
+                if (chosen == null || credit[index] > credit[chosen.ordinal()]) {
+                    chosen = entry.getKey();
+                }
+            }
+            credit[chosen.ordinal()] -= 1;
+            cycle[slot] = chosen;
+        }
+        return cycle;
+    }
+
+    private static final class OperationStats {
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder[] statuses = new LongAdder[STATUSES.length];
+        private final LongAdder exceptions = new LongAdder();
+
+        private OperationStats() {
+            for (ResponseStatus status : STATUSES) {
+                statuses[status.ordinal()] = new LongAdder();
+            }
+        }
+
+        private void record(PluginResponse response, long intended, boolean measured) {
+            if (!measured) {
+                return;
+            }
+            latency.record((System.nanoTime() - intended) / 1000);
+            if (response != null && response.getStatus() != null) {
+                statuses[response.getStatus().ordinal()].increment();
+            }
+        }
+
+        private void recordException(long intended, boolean measured) {
+            if (!measured) {
+                return;
+            }
+            latency.record((System.nanoTime() - intended) / 1000);
+            exceptions.increment();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *   platformconnectorplugindemo - ObjectDetailsCodecBenchmark.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares ObjectDetailsCodec with Java serialisation of the HashMap the
+ * doWork routines return, for the demo read details plus a phone number and
+ * a few fields the schema does not know. The encoded sizes are printed when
+ * the benchmark starts. Run with -prof gc to see the bytes allocated per
+ * operation.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ObjectDetailsCodecBenchmark {
+
+    private final ObjectDetailsSchema schema = ObjectDetailsSchema.builder()
+            .constant("Field1", "Value1")
+            .constant("Field2", 2)
+            .timestamp("Field3")
+            .constant("Field4", "Value4")
+            .constant("Field5", true)
+            .field("Phone")
+            .build();
+    private final ObjectDetailsCodec codec = schema.codec();
+
+    private Map<String, Serializable> details;
+    private byte[] serialized;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        details = schema.newDetails(4);
+        details.put("Phone", "+61355501234");
+        details.put("Balance", 1234567L);
+        details.put("Rating", 4.5);
+        details.put("Notes", "Prefers a call back in the afternoon");
+        serialized = javaSerialize();
+        encoded = codec.encode(details);
+        System.out.println();
+        System.out.println("Java serialised details: " + serialized.length + " bytes, encoded details: " + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] javaSerialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try ( ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(details);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object javaDeserialize() throws IOException, ClassNotFoundException {
+        try ( ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return codec.encode(details);
+    }
+
+    @Benchmark
+    public Map<String, Serializable> codecDecode() {
+        return codec.decode(encoded);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *   platformconnectorplugindemo - PluginApiBenchmark.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.SourceContainer;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The non-request calls the container makes on the plugin, through the pf4j
+ * extension: health polls and source code retrieval, as an array and as a
+ * stream.
+ *
+ * If the sources jar has not been built (it is only produced at
+ * prepare-package), a synthetic one of about 1MB is written next to the
+ * benchmark classes so getSourceCode has something to serve.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PluginApiBenchmark {
+
+    private BenchmarkPlugin plugin;
+
+    @Setup
+    public void setup() throws IOException {
+        ensureSourcesJar();
+        plugin = BenchmarkPlugin.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.close();
+    }
+
+    @Benchmark
+    public HealthResult getPluginHealth() {
+        return plugin.getExtension().getPluginHealth();
+    }
+
+    @Benchmark
+    public SourceContainer getSourceCode() {
+        return plugin.getExtension().getSourceCode();
+    }
+
+    @Benchmark
+    public String getSourceCodeHash() {
+        return plugin.getExtension().getSourceCodeHash();
+    }
+
+    @Benchmark
+    public long streamSourceCode() throws IOException {
+        try (InputStream in = plugin.getExtension().openSourceCode()) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static void ensureSourcesJar() throws IOException {
+        Properties build = new Properties();
+        try (InputStream in = PluginApiBenchmark.class.getResourceAsStream("/application.properties")) {
+            build.load(in);
+        }
+        String fileName = build.getProperty("info.build.artifact") + "-" + build.getProperty("info.build.version") + "-sources.jar";
+        if (PluginApiBenchmark.class.getResource("/" + fileName) != null) {
+            return;
+        }
+        Path classes;
+        try {
+            classes = Path.of(PluginApiBenchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        }
+        catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+        byte[] content = new byte[64 * 1024];
+        Random random = new Random(42);
+        try (OutputStream out = Files.newOutputStream(classes.resolve(fileName)); ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < 16; i++) {
+                random.nextBytes(content);
+                zip.putNextEntry(new ZipEntry("Source" + i + ".java"));
+                zip.write(content);
+                zip.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *   platformconnectorplugindemo - RequestLoggingBenchmark.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Request throughput with the worker logging at INFO and at WARN, with and
+ * without INFO sampling and the requestId MDC. Log lines are fully formatted
+ * but written to a null writer, so the cost of producing them is measured
+ * without the cost of the disk or console.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestLoggingBenchmark {
+
+    @Param({"INFO", "WARN"})
+    public String level;
+
+    @Param({"1", "100"})
+    public int sampleRate;
+
+    @Param({"true", "false"})
+    public boolean mdc;
+
+    private BenchmarkPlugin plugin;
+    private PluginRequest[] requests;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Logger workerLogger = Logger.getLogger(DemoPluginWorker.class);
+        workerLogger.removeAllAppenders();
+        workerLogger.addAppender(new WriterAppender(new PatternLayout("%d{ISO8601} %-5p [%t] [%X{requestId}] %c{1} - %m%n"), Writer.nullWriter()));
+        workerLogger.setAdditivity(false);
+        workerLogger.setLevel(Level.toLevel(level));
+
+        Properties config = new Properties();
+        config.setProperty("log.requests.sampleRate", Integer.toString(sampleRate));
+        config.setProperty("log.requests.mdc", Boolean.toString(mdc));
+        plugin = BenchmarkPlugin.start(config);
+        requests = new PluginRequest[]{
+            RequestPathBenchmark.newRequest(PluginOperation.READ),
+            RequestPathBenchmark.newRequest(PluginOperation.CREATE),
+            RequestPathBenchmark.newRequest(PluginOperation.READ),
+            RequestPathBenchmark.newRequest(PluginOperation.UPDATE)
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.close();
+    }
+
+    @Benchmark
+    public PluginResponse request() {
+        PluginRequest request = requests[next];
+        next = (next + 1) % requests.length;
+        return plugin.getWorker().getResponseFromRequest(request);
+    }
+}
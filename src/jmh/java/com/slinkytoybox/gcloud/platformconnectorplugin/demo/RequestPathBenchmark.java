@@ -0,0 +1,90 @@
+/*
+ *   platformconnectorplugindemo - RequestPathBenchmark.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.*;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Full request path through getResponseFromRequest for each operation, called
+ * on the worker directly and through the pf4j extension the container uses,
+ * to show the delegation overhead.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestPathBenchmark {
+
+    @Param({"CREATE", "READ", "UPDATE", "DELETE"})
+    public PluginOperation operation;
+
+    private BenchmarkPlugin plugin;
+    private PluginRequest request;
+
+    @Setup
+    public void setup() {
+        plugin = BenchmarkPlugin.start();
+        request = newRequest(operation);
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.close();
+    }
+
+    @Benchmark
+    public PluginResponse worker() {
+        return plugin.getWorker().getResponseFromRequest(request);
+    }
+
+    @Benchmark
+    public PluginResponse extension() {
+        return plugin.getExtension().getResponseFromRequest(request);
+    }
+
+    static PluginRequest newRequest(PluginOperation operation) {
+        switch (operation) {
+            case CREATE:
+                Map<String, Serializable> details = new HashMap<>();
+                details.put("Name", "Benchmark");
+                details.put("Phone", "+61200000000");
+                return new CreateRequest().setObjectDetails(details).setRequestId("benchmark-create");
+            case READ:
+                return new ReadRequest().setObjectId("benchmarkRecord").setRequestId("benchmark-read");
+            case UPDATE:
+                return new UpdateRequest().setObjectId("benchmarkRecord").setRequestId("benchmark-update");
+            case DELETE:
+                return new DeleteRequest().setObjectId("benchmarkRecord").setRequestId("benchmark-delete");
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *   platformconnectorplugindemo - StubContainer.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.ContainerInterface;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for the Platform Connector container, recording the health pushed
+ * by the plugin.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public class StubContainer implements ContainerInterface {
+
+    private final AtomicInteger healthPushes = new AtomicInteger();
+    private final List<PushedHealth> pushLog = new CopyOnWriteArrayList<>();
+    private volatile HealthResult lastHealth = null;
+
+    @Override
+    public void setPluginHealth(String pluginId, HealthResult healthResult) {
+        healthPushes.incrementAndGet();
+        lastHealth = healthResult;
+        pushLog.add(new PushedHealth(System.nanoTime(), healthResult));
+    }
+
+    /**
+     * Every health result pushed so far, oldest first.
+     *
+     * @return a copy of the push log
+     */
+    public List<PushedHealth> getPushLog() {
+        return new ArrayList<>(pushLog);
+    }
+
+    public int getHealthPushes() {
+        return healthPushes.get();
+    }
+
+    public HealthResult getLastHealth() {
+        return lastHealth;
+    }
+
+    public static final class PushedHealth {
+
+        private final long nanoTime;
+        private final HealthResult health;
+
+        private PushedHealth(long nanoTime, HealthResult health) {
+            this.nanoTime = nanoTime;
+            this.health = health;
+        }
+
+        // System.nanoTime() when the health was pushed
+        public long getNanoTime() {
+            return nanoTime;
+        }
+
+        public HealthResult getHealth() {
+            return health;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *   platformconnectorplugindemo - AsyncPlatformConnectorPlugin.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PlatformConnectorPlugin;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Extension of the PlatformConnectorPlugin interface offering a non-blocking
+ * request entry point. The work is run on an executor owned by the plugin, so
+ * the calling thread is free while the backend call is in flight.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public interface AsyncPlatformConnectorPlugin extends PlatformConnectorPlugin {
+
+    /**
+     * Processes the request asynchronously. The returned future completes with
+     * the same response getResponseFromRequest would have returned, or
+     * exceptionally with the exception it would have thrown. If the plugin is
+     * at capacity the future fails with a RejectedExecutionException.
+     *
+     * @param request
+     * @return future holding the response
+     */
+    CompletableFuture<PluginResponse> getResponseFromRequestAsync(PluginRequest request);
+
+}
@@ -0,0 +1,182 @@
+/*
+ *   platformconnectorplugindemo - Bulkhead.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fixed limit on the number of requests of one operation processed at once,
+ * so a burst of one operation cannot take every thread from the others.
+ *
+ * A request arriving while the bulkhead is full waits for a free slot, up to
+ * the maximum wait. Only a bounded number of requests may wait; beyond that,
+ * and when the wait runs out, the request is rejected. Waiting happens on the
+ * calling thread, which holds no other resource while it waits.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class Bulkhead {
+
+    private static final long SATURATED_HOLD_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxWaiting;
+    private final long maxWaitNanos;
+    private final Runnable onSaturated;
+
+    private final Semaphore slots;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private volatile long lastRejectNanos = 0;
+
+    // metric names are built once so health polls do not rebuild them
+    private final String inFlightName;
+    private final String waitingName;
+    private final String rejectedName;
+    private final String timedOutName;
+    private final String maxConcurrentName;
+
+    /**
+     * @param name name of the bulkhead, used in the component and metric
+     * names
+     * @param maxConcurrent most requests processed at once
+     * @param maxWaiting most requests waiting for a free slot
+     * @param maxWaitMillis longest a request waits for a free slot
+     * @param onSaturated called when requests start being rejected, after a
+     * period with no rejections
+     */
+    Bulkhead(String name, int maxConcurrent, int maxWaiting, long maxWaitMillis, Runnable onSaturated) {
+        this.name = name;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxWaiting = Math.max(0, maxWaiting);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+        this.onSaturated = onSaturated;
+        this.slots = new Semaphore(this.maxConcurrent);
+        String prefix = Character.toLowerCase(name.charAt(0)) + name.substring(1) + "Bulkhead";
+        this.inFlightName = prefix + "InFlight";
+        this.waitingName = prefix + "Waiting";
+        this.rejectedName = prefix + "Rejected";
+        this.timedOutName = prefix + "TimedOut";
+        this.maxConcurrentName = prefix + "MaxConcurrent";
+    }
+
+    /**
+     * Takes a slot, waiting for one if the bulkhead is full and the wait
+     * queue is not. A successful acquire must be followed by release.
+     *
+     * @return false if the request should be rejected
+     */
+    boolean tryAcquire() {
+        return tryAcquire(Long.MAX_VALUE);
+    }
+
+    /**
+     * As tryAcquire(), but never waits longer than the given time, eg the
+     * time left before the request deadline.
+     *
+     * @param waitLimitMillis most time to wait
+     * @return false if the request should be rejected
+     */
+    boolean tryAcquire(long waitLimitMillis) {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+        long waitNanos = Math.min(maxWaitNanos, TimeUnit.MILLISECONDS.toNanos(waitLimitMillis));
+        if (waitNanos == 0 || waiting.incrementAndGet() > maxWaiting) {
+            if (waitNanos != 0) {
+                waiting.decrementAndGet();
+            }
+            rejected.increment();
+            saturated();
+            return false;
+        }
+        try {
+            if (slots.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+            timedOut.increment();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            waiting.decrementAndGet();
+        }
+        saturated();
+        return false;
+    }
+
+    void release() {
+        slots.release();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return true if a request has been rejected in the last few seconds
+     */
+    boolean isSaturated() {
+        long last = lastRejectNanos;
+        return last != 0 && System.nanoTime() - last < SATURATED_HOLD_NANOS;
+    }
+
+    HealthStatus getHealthStatus() {
+        if (isSaturated()) {
+            return new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Rejecting " + name + " requests over the limit of " + maxConcurrent);
+        }
+        return new HealthStatus().setHealthState(HealthState.HEALTHY);
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        metrics.add(new HealthMetric().setMetricName(inFlightName).setMetricValue(maxConcurrent - slots.availablePermits()));
+        metrics.add(new HealthMetric().setMetricName(waitingName).setMetricValue(waiting.get()));
+        metrics.add(new HealthMetric().setMetricName(rejectedName).setMetricValue(rejected.sum()));
+        metrics.add(new HealthMetric().setMetricName(timedOutName).setMetricValue(timedOut.sum()));
+        metrics.add(new HealthMetric().setMetricName(maxConcurrentName).setMetricValue(maxConcurrent));
+    }
+
+    private void saturated() {
+        final String logPrefix = "saturated() - ";
+        boolean wasSaturated = isSaturated();
+        lastRejectNanos = System.nanoTime();
+        if (!wasSaturated) {
+            log.warn("{}{} bulkhead is full, rejecting requests", logPrefix, name);
+            onSaturated.run();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ *   platformconnectorplugindemo - CircuitBreaker.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Circuit breaker for calls to one backend. Outcomes of the most recent calls
+ * are kept in a sliding window, and once enough calls have been seen the
+ * breaker opens if the share of failed calls or of slow calls reaches its
+ * threshold. While open, calls are refused without reaching the backend.
+ * After the open period a limited number of probe calls are let through
+ * (half open), and their outcome decides whether the breaker closes again or
+ * goes back to open.
+ *
+ * The breaker health is HEALTHY while closed, WARNING while half open or when
+ * the failure or slow call rate is over half its threshold, and FAILED while
+ * open. Every state change is passed to the listener straight away. The open
+ * period is checked whenever a call is asked for and whenever the health is
+ * read, so the breaker half opens even if a FAILED health has stopped all
+ * calls arriving.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte FAILED_CALL = 1;
+    private static final byte SLOW_CALL = 2;
+
+    private final String name;
+    private final int minCalls;
+    private final int failureRatePercent;
+    private final int slowCallRatePercent;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenCalls;
+    private final Runnable onStateChange;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+
+    private volatile State state = State.CLOSED;
+
+    // Guarded by this
+    private final byte[] outcomes;
+    private int next = 0;
+    private int calls = 0;
+    private int failures = 0;
+    private int slowCalls = 0;
+    private long openedAt = 0;
+    private int probesLeft = 0;
+    private int probeResults = 0;
+    private int probeFailures = 0;
+
+    private CircuitBreaker(Builder builder) {
+        this.name = builder.name;
+        this.outcomes = new byte[Math.max(1, builder.windowSize)];
+        this.minCalls = Math.max(1, Math.min(builder.minCalls, outcomes.length));
+        this.failureRatePercent = builder.failureRatePercent;
+        this.slowCallRatePercent = builder.slowCallRatePercent;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(builder.slowCallMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(builder.openMillis);
+        this.halfOpenCalls = Math.max(1, builder.halfOpenCalls);
+        this.onStateChange = builder.onStateChange;
+    }
+
+    static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    /**
+     * Asks to make a call. A permitted call must be followed by onResult or
+     * onIgnored, however it ends, or a half open breaker waits for its probe
+     * forever.
+     *
+     * @return false if the breaker is open and the call must not be made
+     */
+    boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        halfOpenIfDue();
+        boolean permitted;
+        synchronized (this) {
+            if (state == State.HALF_OPEN && probesLeft > 0) {
+                probesLeft--;
+                permitted = true;
+            }
+            else {
+                permitted = state == State.CLOSED;
+            }
+        }
+        if (!permitted) {
+            rejected.increment();
+        }
+        return permitted;
+    }
+
+    /**
+     * Records the outcome of a permitted call.
+     *
+     * @param startNanos System.nanoTime() when the call started
+     * @param failed whether the call failed
+     */
+    void onResult(long startNanos, boolean failed) {
+        byte outcome = failed ? FAILED_CALL : 0;
+        if (System.nanoTime() - startNanos >= slowCallNanos) {
+            outcome |= SLOW_CALL;
+        }
+        boolean changed;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                changed = recordClosed(outcome);
+            }
+            else if (state == State.HALF_OPEN) {
+                changed = recordProbe(outcome);
+            }
+            else {
+                // a call started before the breaker opened, it tells us nothing new
+                changed = false;
+            }
+        }
+        if (changed) {
+            onStateChange.run();
+        }
+    }
+
+    /**
+     * Records that a permitted call ended without telling us anything about
+     * the backend, eg because the caller gave up waiting for it. A half open
+     * breaker gets the probe back for another call to use.
+     */
+    synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probesLeft = Math.min(probesLeft + 1, halfOpenCalls - probeResults);
+        }
+    }
+
+    State getState() {
+        return state;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    HealthStatus getHealthStatus() {
+        halfOpenIfDue();
+        synchronized (this) {
+            return buildHealthStatus();
+        }
+    }
+
+    private HealthStatus buildHealthStatus() {
+        switch (state) {
+            case OPEN:
+                return new HealthStatus().setHealthState(HealthState.FAILED).setHealthComment("Circuit open, calls to the backend are refused");
+            case HALF_OPEN:
+                return new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Circuit half open, probing the backend");
+            default:
+                if (calls >= minCalls && (failureRate() * 2 >= failureRatePercent || slowCallRate() * 2 >= slowCallRatePercent)) {
+                    return new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment(failureRate() + "% of recent calls failed and " + slowCallRate() + "% were slow");
+                }
+                return new HealthStatus().setHealthState(HealthState.HEALTHY);
+        }
+    }
+
+    synchronized void addHealthMetrics(List<HealthMetric> metrics) {
+        String prefix = Character.toLowerCase(name.charAt(0)) + name.substring(1);
+        metrics.add(new HealthMetric().setMetricName(prefix + "CircuitState").setMetricValue(state.name()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "CircuitOpened").setMetricValue(opened.sum()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "CircuitRejected").setMetricValue(rejected.sum()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "FailureRatePercent").setMetricValue(failureRate()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "SlowCallRatePercent").setMetricValue(slowCallRate()));
+    }
+
+    // Moves an open breaker to half open once the open period is up, telling the listener
+    private void halfOpenIfDue() {
+        if (state != State.OPEN) {
+            return;
+        }
+        synchronized (this) {
+            if (state != State.OPEN || System.nanoTime() - openedAt < openNanos) {
+                return;
+            }
+            moveTo(State.HALF_OPEN);
+        }
+        onStateChange.run();
+    }
+
+    private boolean recordClosed(byte outcome) {
+        if (calls == outcomes.length) {
+            remove(outcomes[next]);
+        }
+        else {
+            calls++;
+        }
+        outcomes[next] = outcome;
+        next = (next + 1) % outcomes.length;
+        if ((outcome & FAILED_CALL) != 0) {
+            failures++;
+        }
+        if ((outcome & SLOW_CALL) != 0) {
+            slowCalls++;
+        }
+        if (calls >= minCalls && (failureRate() >= failureRatePercent || slowCallRate() >= slowCallRatePercent)) {
+            moveTo(State.OPEN);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean recordProbe(byte outcome) {
+        probeResults++;
+        if (outcome != 0) {
+            probeFailures++;
+        }
+        if (probeResults < halfOpenCalls) {
+            return false;
+        }
+        // a slow probe counts against the backend as much as a failed one
+        moveTo(probeFailures * 100 >= failureRatePercent * probeResults ? State.OPEN : State.CLOSED);
+        return true;
+    }
+
+    private void remove(byte outcome) {
+        if ((outcome & FAILED_CALL) != 0) {
+            failures--;
+        }
+        if ((outcome & SLOW_CALL) != 0) {
+            slowCalls--;
+        }
+    }
+
+    private int failureRate() {
+        return calls == 0 ? 0 : failures * 100 / calls;
+    }
+
+    private int slowCallRate() {
+        return calls == 0 ? 0 : slowCalls * 100 / calls;
+    }
+
+    private void moveTo(State newState) {
+        final String logPrefix = "moveTo() - ";
+        log.warn("{}{} circuit changed from {} to {}, failure rate {}%, slow call rate {}%", logPrefix, name, state, newState, failureRate(), slowCallRate());
+        if (newState == State.OPEN) {
+            opened.increment();
+            openedAt = System.nanoTime();
+        }
+        else if (newState == State.HALF_OPEN) {
+            probesLeft = halfOpenCalls;
+            probeResults = 0;
+            probeFailures = 0;
+        }
+        else {
+            // start the window afresh, the calls before the breaker opened no longer count
+            calls = 0;
+            next = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+        state = newState;
+    }
+
+    static final class Builder {
+
+        private final String name;
+        private int windowSize = 100;
+        private int minCalls = 20;
+        private int failureRatePercent = 50;
+        private int slowCallRatePercent = 80;
+        private long slowCallMillis = 2000;
+        private long openMillis = 10000;
+        private int halfOpenCalls = 5;
+        private Runnable onStateChange = () -> {
+        };
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param windowSize number of recent calls the rates are taken from
+         * @param minCalls calls needed in the window before the breaker can
+         * open
+         * @return this builder
+         */
+        Builder window(int windowSize, int minCalls) {
+            this.windowSize = windowSize;
+            this.minCalls = minCalls;
+            return this;
+        }
+
+        Builder failureRatePercent(int failureRatePercent) {
+            this.failureRatePercent = failureRatePercent;
+            return this;
+        }
+
+        /**
+         * @param slowCallMillis calls taking at least this long are slow
+         * @param slowCallRatePercent share of slow calls that opens the
+         * breaker
+         * @return this builder
+         */
+        Builder slowCalls(long slowCallMillis, int slowCallRatePercent) {
+            this.slowCallMillis = slowCallMillis;
+            this.slowCallRatePercent = slowCallRatePercent;
+            return this;
+        }
+
+        /**
+         * @param openMillis how long the breaker stays open before probing
+         * @param halfOpenCalls probe calls made while half open
+         * @return this builder
+         */
+        Builder recovery(long openMillis, int halfOpenCalls) {
+            this.openMillis = openMillis;
+            this.halfOpenCalls = halfOpenCalls;
+            return this;
+        }
+
+        Builder onStateChange(Runnable onStateChange) {
+            this.onStateChange = onStateChange;
+            return this;
+        }
+
+        CircuitBreaker build() {
+            return new CircuitBreaker(this);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *   platformconnectorplugindemo - CoarseClock.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+
+/**
+ * Current time as an ISO-8601 string, formatted at most once per resolution
+ * period and shared by every caller in that period. Formatting an
+ * OffsetDateTime allocates several objects, which adds up when every response
+ * carries a timestamp.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class CoarseClock {
+
+    private final long resolutionMillis;
+    private final ZoneId zone;
+    private volatile Tick tick = new Tick(Long.MIN_VALUE, null);
+
+    /**
+     * @param resolutionMillis how long a formatted time is reused for
+     */
+    CoarseClock(long resolutionMillis) {
+        this.resolutionMillis = Math.max(1, resolutionMillis);
+        this.zone = ZoneId.systemDefault();
+    }
+
+    /**
+     * @return the current time in the form OffsetDateTime.toString() uses,
+     * accurate to the resolution of this clock
+     */
+    String nowString() {
+        long now = System.currentTimeMillis();
+        Tick current = tick;
+        if (now >= current.millis && now - current.millis < resolutionMillis) {
+            return current.text;
+        }
+        long start = now - now % resolutionMillis;
+        String text = OffsetDateTime.ofInstant(Instant.ofEpochMilli(start), zone).toString();
+        tick = new Tick(start, text);
+        return text;
+    }
+
+    private static final class Tick {
+
+        private final long millis;
+        private final String text;
+
+        private Tick(long millis, String text) {
+            this.millis = millis;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *   platformconnectorplugindemo - CompactDetailsPlugin.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Optional compact encoding of objectDetails for containers that move
+ * responses between processes, and would rather carry a few bytes than a
+ * Java serialised HashMap.
+ *
+ * The encoding depends on the fields the running plugin declared, so it is
+ * only for passing details along while the plugin is loaded, not for storing
+ * them. Details encoded by a plugin must be decoded by the same plugin.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public interface CompactDetailsPlugin {
+
+    /**
+     * Encodes the objectDetails of a response.
+     *
+     * @param objectDetails details to encode, may be null
+     * @return the encoded details
+     */
+    byte[] encodeObjectDetails(Map<String, Serializable> objectDetails);
+
+    /**
+     * Decodes details encoded by encodeObjectDetails.
+     *
+     * @param encoded
+     * @return a new details map, or null if null was encoded
+     * @throws IllegalArgumentException if the bytes were not encoded by this
+     * plugin
+     */
+    Map<String, Serializable> decodeObjectDetails(byte[] encoded);
+
+}
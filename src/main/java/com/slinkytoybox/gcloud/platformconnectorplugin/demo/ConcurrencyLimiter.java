@@ -0,0 +1,204 @@
+/*
+ *   platformconnectorplugindemo - ConcurrencyLimiter.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Adaptive limit on the number of requests processed at once. Requests over
+ * the limit are rejected straight away rather than queued, so a slow backend
+ * does not tie up every container thread.
+ *
+ * The limit follows a gradient of the observed processing time. At the end of
+ * each sample window the mean time of the window is compared with a long term
+ * average: while they match the limit grows by a small headroom, and as the
+ * window slows relative to the average the limit is cut by up to half. The
+ * long term average decays towards the window time after a slow period, so
+ * the limit can recover once the backend does. The limit is not raised while
+ * less than half of it is in use, as the observed times say nothing about a
+ * higher concurrency.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class ConcurrencyLimiter {
+
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final int HEADROOM = 4;
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    private static final double LONG_TERM_WEIGHT = 2.0 / (1 + 600);
+    private static final long SHEDDING_HOLD_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long windowNanos;
+    private final Runnable onShedding;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final LongAdder windowNanosTotal = new LongAdder();
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    private volatile int limit;
+    private volatile long lastRejectNanos = 0;
+    private volatile long windowStart = System.nanoTime();
+
+    // Only touched while holding updateLock
+    private double exactLimit;
+    private double longTermNanos = 0;
+
+    /**
+     * @param initialLimit starting limit
+     * @param minLimit lowest the limit is cut to
+     * @param maxLimit highest the limit grows to
+     * @param windowMillis how often the limit is recalculated
+     * @param onShedding called when requests start being rejected, after a
+     * period with no rejections
+     */
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long windowMillis, Runnable onShedding) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, windowMillis));
+        this.onShedding = onShedding;
+        this.exactLimit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.limit = (int) exactLimit;
+    }
+
+    /**
+     * Takes a slot if one is free under the current limit. A successful
+     * acquire must be followed by release.
+     *
+     * @return false if the request should be rejected
+     */
+    boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                reject();
+                return false;
+            }
+        }
+        while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Returns the slot and records how long the request took.
+     *
+     * @param startNanos System.nanoTime() when the request was acquired
+     */
+    void release(long startNanos) {
+        long now = System.nanoTime();
+        windowSamples.increment();
+        windowNanosTotal.add(now - startNanos);
+        if (now - windowStart >= windowNanos && updateLock.tryLock()) {
+            try {
+                // holding the lock, so the in flight count still includes this request
+                updateLimit(now);
+            }
+            finally {
+                updateLock.unlock();
+            }
+        }
+        inFlight.decrementAndGet();
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return true if a request has been rejected in the last few seconds
+     */
+    boolean isShedding() {
+        long last = lastRejectNanos;
+        return last != 0 && System.nanoTime() - last < SHEDDING_HOLD_NANOS;
+    }
+
+    HealthStatus getHealthStatus() {
+        if (isShedding()) {
+            return new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Rejecting requests over the concurrency limit of " + limit);
+        }
+        return new HealthStatus().setHealthState(HealthState.HEALTHY);
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        metrics.add(new HealthMetric().setMetricName("concurrencyLimit").setMetricValue(limit));
+        metrics.add(new HealthMetric().setMetricName("concurrencyInFlight").setMetricValue(inFlight.get()));
+        metrics.add(new HealthMetric().setMetricName("concurrencyRejected").setMetricValue(rejected.sum()));
+    }
+
+    private void reject() {
+        final String logPrefix = "reject() - ";
+        rejected.increment();
+        boolean wasShedding = isShedding();
+        lastRejectNanos = System.nanoTime();
+        if (!wasShedding) {
+            log.warn("{}Concurrency limit of {} reached, rejecting requests", logPrefix, limit);
+            onShedding.run();
+        }
+    }
+
+    private void updateLimit(long now) {
+        final String logPrefix = "updateLimit() - ";
+        if (now - windowStart < windowNanos) {
+            return;  // another thread has just closed the window
+        }
+        long samples = windowSamples.sumThenReset();
+        long totalNanos = windowNanosTotal.sumThenReset();
+        windowStart = now;
+        if (samples < MIN_WINDOW_SAMPLES) {
+            return;
+        }
+        double shortTermNanos = (double) totalNanos / samples;
+        if (longTermNanos == 0) {
+            longTermNanos = shortTermNanos;
+        }
+        else {
+            longTermNanos += (shortTermNanos - longTermNanos) * LONG_TERM_WEIGHT;
+        }
+        if (longTermNanos / shortTermNanos > 2) {
+            // well below the long term average, so the backend has recovered from a slow spell
+            longTermNanos *= 0.95;
+        }
+        if (inFlight.get() < exactLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longTermNanos / shortTermNanos));
+        double target = exactLimit * gradient + HEADROOM;
+        exactLimit = Math.min(maxLimit, Math.max(minLimit, exactLimit * (1 - SMOOTHING) + target * SMOOTHING));
+        int newLimit = (int) exactLimit;
+        if (newLimit != limit) {
+            log.debug("{}Concurrency limit changed from {} to {}", logPrefix, limit, newLimit);
+            limit = newLimit;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *   platformconnectorplugindemo - ConfigWatcher.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Watches the plugin configuration file and calls the listener on its own
+ * thread when the file changes. Editors and deployment tools often write a
+ * file in several steps, so the listener is only called once the file has
+ * been quiet for the settle period.
+ *
+ * The directory is watched rather than the file, as replacing the file by
+ * renaming another over it is reported against the directory.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class ConfigWatcher implements AutoCloseable {
+
+    private final Path file;
+    private final long settleMillis;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * @param name prefix for the watcher thread name
+     * @param file the configuration file
+     * @param settleMillis how long the file must be unchanged before the
+     * listener is called
+     * @param onChange called on the watcher thread after the file changes
+     * @throws IOException if the directory cannot be watched
+     */
+    ConfigWatcher(String name, Path file, long settleMillis, Runnable onChange) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.settleMillis = Math.max(0, settleMillis);
+        this.onChange = onChange;
+        Path directory = this.file.getParent();
+        this.watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = PluginExecutors.namedDaemonThreads(name + "-config").newThread(this::watch);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        }
+        catch (IOException ex) {
+            log.warn("close() - Unable to close the configuration watch service", ex);
+        }
+        thread.interrupt();
+    }
+
+    private void watch() {
+        final String logPrefix = "watch() - ";
+        log.info("{}Watching {} for changes", logPrefix, file);
+        try {
+            while (true) {
+                if (!affectsFile(watchService.take())) {
+                    continue;
+                }
+                // wait until the file stops changing
+                WatchKey key;
+                while ((key = watchService.poll(settleMillis, TimeUnit.MILLISECONDS)) != null) {
+                    affectsFile(key);
+                }
+                try {
+                    onChange.run();
+                }
+                catch (RuntimeException ex) {
+                    log.error("{}Unable to apply the configuration change", logPrefix, ex);
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ex) {
+            log.debug("{}Configuration watcher stopped", logPrefix);
+        }
+    }
+
+    // Drains the key's events and re-arms it, returning true if any were for the configuration file
+    private boolean affectsFile(WatchKey key) {
+        boolean matched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                matched = true;
+            }
+        }
+        key.reset();
+        return matched;
+    }
+}
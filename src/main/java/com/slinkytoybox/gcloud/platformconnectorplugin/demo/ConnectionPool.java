@@ -0,0 +1,530 @@
+/*
+ *   platformconnectorplugindemo - ConnectionPool.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Small JDBC connection pool for plugins talking to a database.
+ *
+ * Connections handed out are proxies: closing one returns it to the pool,
+ * and prepareStatement() is served from a per-connection LRU cache of
+ * prepared statements. A background task validates idle connections, tops the
+ * pool back up to its minimum size, and works out the pool health. Whenever
+ * the health state changes the listener passed in is called, so the plugin
+ * can push the new state to the container.
+ *
+ * Any JDBC driver can be used, including an embedded database such as H2 for
+ * local testing.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class ConnectionPool implements AutoCloseable {
+
+    private final String name;
+    private final String url;
+    private final Properties connectionProperties;
+    private final Driver driver;
+    private final int minIdle;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+    private final Consumer<HealthState> stateListener;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final RollingLatencyHistogram acquireLatency = new RollingLatencyHistogram(60_000, 4);
+    private final ScheduledExecutorService validator;
+
+    private volatile HealthState state = HealthState.UNKNOWN;
+    private volatile String stateComment = "Pool starting";
+    private volatile boolean closed = false;
+
+    private ConnectionPool(Builder builder) throws SQLException {
+        this.name = builder.name;
+        this.url = builder.url;
+        this.connectionProperties = new Properties();
+        if (builder.username != null) {
+            connectionProperties.setProperty("user", builder.username);
+        }
+        if (builder.password != null) {
+            connectionProperties.setProperty("password", builder.password);
+        }
+        this.driver = loadDriver(builder.driverClass);
+        this.minIdle = Math.max(0, Math.min(builder.minIdle, builder.maxSize));
+        this.maxSize = Math.max(1, builder.maxSize);
+        this.acquireTimeoutMillis = builder.acquireTimeoutMillis;
+        this.validationTimeoutSeconds = builder.validationTimeoutSeconds;
+        this.statementCacheSize = builder.statementCacheSize;
+        this.stateListener = builder.stateListener;
+        this.permits = new Semaphore(this.maxSize, true);
+        this.validator = Executors.newSingleThreadScheduledExecutor(PluginExecutors.namedDaemonThreads(name + "-validator"));
+        validator.scheduleWithFixedDelay(this::maintain, builder.validationIntervalMillis, builder.validationIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static Builder builder(String name, String url) {
+        return new Builder(name, url);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the acquire timeout if the pool is
+     * at its maximum size. Close the connection to return it to the pool.
+     *
+     * @return the connection
+     * @throws SQLException if no connection became available in time or a new
+     * connection could not be opened
+     */
+    Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+        long startNanos = System.nanoTime();
+        waiters.incrementAndGet();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection from pool " + name, ex);
+        }
+        finally {
+            waiters.decrementAndGet();
+        }
+        if (!acquired) {
+            acquireTimeouts.increment();
+            long now = System.nanoTime();
+            acquireLatency.record((now - startNanos) / 1000, now);
+            updateState(HealthState.WARNING, "Timed out waiting for a connection, pool exhausted");
+            throw new SQLTimeoutException("Timed out after " + acquireTimeoutMillis + "ms waiting for a connection from pool " + name);
+        }
+
+        try {
+            PooledConnection pooled = idle.pollFirst();
+            if (pooled == null) {
+                pooled = openConnection();
+            }
+            active.incrementAndGet();
+            long now = System.nanoTime();
+            acquireLatency.record((now - startNanos) / 1000, now);
+            return pooled.lease();
+        }
+        catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Current health of the pool, as worked out by the last validation run.
+     *
+     * @return the health status
+     */
+    HealthStatus getHealthStatus() {
+        return new HealthStatus().setHealthState(state).setHealthComment(stateComment);
+    }
+
+    HealthState getHealthState() {
+        return state;
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        String prefix = name + "Pool";
+        metrics.add(new HealthMetric().setMetricName(prefix + "Open").setMetricValue(open.get()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "Active").setMetricValue(active.get()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "Idle").setMetricValue(idle.size()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "Waiters").setMetricValue(waiters.get()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "AcquireTimeouts").setMetricValue(acquireTimeouts.sum()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "ConnectFailures").setMetricValue(connectFailures.sum()));
+        LatencyHistogram.Snapshot recentAcquires = acquireLatency.snapshot();
+        metrics.add(new HealthMetric().setMetricName(prefix + "AcquireP50Micros").setMetricValue(recentAcquires.getValueAtPercentile(50)));
+        metrics.add(new HealthMetric().setMetricName(prefix + "AcquireP99Micros").setMetricValue(recentAcquires.getValueAtPercentile(99)));
+        metrics.add(new HealthMetric().setMetricName(prefix + "AcquireMaxMicros").setMetricValue(recentAcquires.getMax()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "StatementCacheHits").setMetricValue(statementCacheHits.sum()));
+        metrics.add(new HealthMetric().setMetricName(prefix + "StatementCacheMisses").setMetricValue(statementCacheMisses.sum()));
+    }
+
+    /**
+     * Opens the minimum number of idle connections and works out the initial
+     * health. Failure to connect is reported through the health state rather
+     * than thrown, so the plugin can still start and recover once the
+     * database is reachable.
+     */
+    void start() {
+        maintain();
+    }
+
+    /**
+     * Stops validation and closes all idle connections. Connections still in
+     * use are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        final String logPrefix = "close() - ";
+        closed = true;
+        validator.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.closePhysical();
+        }
+        log.info("{}Connection pool {} closed, {} connections still in use", logPrefix, name, active.get());
+    }
+
+    // Background task: drop broken idle connections, top up to minIdle, and update the health state
+    private void maintain() {
+        final String logPrefix = "maintain() - ";
+        if (closed) {
+            return;
+        }
+        try {
+            int toCheck = idle.size();
+            for (int i = 0; i < toCheck; i++) {
+                PooledConnection pooled = idle.pollLast();
+                if (pooled == null) {
+                    break;
+                }
+                if (pooled.isValid()) {
+                    idle.offerFirst(pooled);
+                }
+                else {
+                    log.warn("{}Discarding invalid idle connection from pool {}", logPrefix, name);
+                    pooled.closePhysical();
+                }
+            }
+            while (!closed && idle.size() < minIdle && open.get() < maxSize) {
+                idle.offerLast(openConnection());
+            }
+            if (waiters.get() > 0 && permits.availablePermits() == 0) {
+                updateState(HealthState.WARNING, "Pool exhausted with " + waiters.get() + " waiting");
+            }
+            else {
+                updateState(HealthState.HEALTHY, open.get() + " connections open");
+            }
+        }
+        catch (SQLException | RuntimeException ex) {
+            log.error("{}Unable to open connection for pool {}", logPrefix, name, ex);
+            updateState(open.get() > 0 ? HealthState.WARNING : HealthState.FAILED, "Unable to connect to database: " + ex.getMessage());
+        }
+    }
+
+    private void updateState(HealthState newState, String comment) {
+        final String logPrefix = "updateState() - ";
+        HealthState previous = state;
+        stateComment = comment;
+        state = newState;
+        if (previous != newState) {
+            log.info("{}Pool {} health changed from {} to {}: {}", logPrefix, name, previous, newState, comment);
+            if (stateListener != null) {
+                stateListener.accept(newState);
+            }
+        }
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        try {
+            Connection connection = driver != null ? driver.connect(url, connectionProperties) : DriverManager.getConnection(url, connectionProperties);
+            if (connection == null) {
+                throw new SQLException("Driver does not accept URL " + url);
+            }
+            open.incrementAndGet();
+            return new PooledConnection(connection);
+        }
+        catch (SQLException ex) {
+            connectFailures.increment();
+            throw ex;
+        }
+    }
+
+    private static Driver loadDriver(String driverClass) throws SQLException {
+        if (driverClass == null || driverClass.isBlank()) {
+            return null;
+        }
+        try {
+            // Loaded from the plugin class loader, which DriverManager cannot always see
+            return (Driver) Class.forName(driverClass, true, ConnectionPool.class.getClassLoader()).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException ex) {
+            throw new SQLException("Unable to load JDBC driver " + driverClass, ex);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    // A physical connection and its prepared statement cache
+    private final class PooledConnection {
+
+        private final Connection physical;
+        private final Map<String, PreparedStatement> statements;
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= statementCacheSize) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{Connection.class}, new Lease(this));
+        }
+
+        private boolean isValid() {
+            try {
+                return !physical.isClosed() && physical.isValid(validationTimeoutSeconds);
+            }
+            catch (SQLException ex) {
+                return false;
+            }
+        }
+
+        // Returns the connection to the pool, or closes it if it is broken or the pool has been closed
+        private void release() {
+            active.decrementAndGet();
+            try {
+                boolean reusable = !closed && !physical.isClosed();
+                if (reusable && !physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                if (reusable) {
+                    idle.offerFirst(this);
+                }
+                else {
+                    closePhysical();
+                }
+            }
+            catch (SQLException ex) {
+                closePhysical();
+            }
+            finally {
+                permits.release();
+            }
+        }
+
+        private PreparedStatement prepare(String sql) throws SQLException {
+            if (statementCacheSize <= 0) {
+                return physical.prepareStatement(sql);
+            }
+            PreparedStatement statement = statements.get(sql);
+            if (statement != null && !statement.isClosed()) {
+                statementCacheHits.increment();
+                return statement;
+            }
+            statementCacheMisses.increment();
+            statement = physical.prepareStatement(sql);
+            statements.put(sql, statement);
+            return statement;
+        }
+
+        private void closePhysical() {
+            open.decrementAndGet();
+            for (PreparedStatement statement : new ArrayList<>(statements.values())) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+            try {
+                physical.close();
+            }
+            catch (SQLException ex) {
+                log.debug("closePhysical() - Error closing connection", ex);
+            }
+        }
+
+        private void closeQuietly(PreparedStatement statement) {
+            try {
+                statement.close();
+            }
+            catch (SQLException ex) {
+                log.debug("closeQuietly() - Error closing statement", ex);
+            }
+        }
+    }
+
+    // Handler for a connection on loan. Only valid until closed, after which it behaves like a closed connection.
+    private final class Lease implements InvocationHandler {
+
+        private PooledConnection pooled;
+
+        private Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            switch (methodName) {
+                case "close":
+                    if (pooled != null) {
+                        PooledConnection returning = pooled;
+                        pooled = null;
+                        returning.release();
+                    }
+                    return null;
+                case "isClosed":
+                    return pooled == null || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled connection from " + name;
+                default:
+                    break;
+            }
+            if (pooled == null) {
+                throw new SQLException("Connection has been returned to pool " + name);
+            }
+            if ("prepareStatement".equals(methodName) && args != null && args.length == 1 && statementCacheSize > 0) {
+                return cachedStatement(pooled.prepare((String) args[0]));
+            }
+            return ConnectionPool.invoke(pooled.physical, method, args);
+        }
+    }
+
+    // Wraps a cached statement so closing it only clears its parameters, leaving it in the cache
+    private static PreparedStatement cachedStatement(PreparedStatement statement) {
+        return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "close":
+                    statement.clearParameters();
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return invoke(statement, method, args);
+            }
+        });
+    }
+
+    static final class Builder {
+
+        private final String name;
+        private final String url;
+        private String driverClass;
+        private String username;
+        private String password;
+        private int minIdle = 2;
+        private int maxSize = 10;
+        private long acquireTimeoutMillis = 2000;
+        private long validationIntervalMillis = 30000;
+        private int validationTimeoutSeconds = 5;
+        private int statementCacheSize = 50;
+        private Consumer<HealthState> stateListener;
+
+        private Builder(String name, String url) {
+            this.name = name;
+            this.url = url;
+        }
+
+        Builder driverClass(String driverClass) {
+            this.driverClass = driverClass;
+            return this;
+        }
+
+        Builder credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        Builder size(int minIdle, int maxSize) {
+            this.minIdle = minIdle;
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        Builder acquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        Builder validation(long intervalMillis, int timeoutSeconds) {
+            this.validationIntervalMillis = Math.max(100, intervalMillis);
+            this.validationTimeoutSeconds = timeoutSeconds;
+            return this;
+        }
+
+        Builder statementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
+        Builder onStateChange(Consumer<HealthState> stateListener) {
+            this.stateListener = stateListener;
+            return this;
+        }
+
+        ConnectionPool build() throws SQLException {
+            return new ConnectionPool(this);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *   platformconnectorplugindemo - DeadlinePolicy.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Works out request deadlines from the requestDate set by the container and a
+ * time budget per operation, and counts the requests dropped because their
+ * deadline passed. Every request dropped is backend work that would only
+ * have produced a response the container no longer wanted.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class DeadlinePolicy {
+
+    private static final PluginOperation[] OPERATIONS = PluginOperation.values();
+
+    private final long[] budgetMillis = new long[OPERATIONS.length];
+    private final LongAdder expiredOnArrival = new LongAdder();
+    private final LongAdder expiredWaiting = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+
+    /**
+     * @param budgetMillis time allowed for each operation, counted from the
+     * requestDate. Operations without a budget have no deadline
+     */
+    DeadlinePolicy(Map<PluginOperation, Long> budgetMillis) {
+        for (PluginOperation operation : OPERATIONS) {
+            Long budget = budgetMillis.get(operation);
+            this.budgetMillis[operation.ordinal()] = budget == null || budget <= 0 ? Long.MAX_VALUE : budget;
+        }
+    }
+
+    /**
+     * The deadline for a request. Does not allocate for requests without a
+     * requestDate.
+     *
+     * @param operation
+     * @param request
+     * @return the deadline, or RequestDeadline.NONE
+     */
+    RequestDeadline deadlineFor(PluginOperation operation, PluginRequest request) {
+        OffsetDateTime requestDate = request.getRequestDate();
+        long budget = budgetMillis[operation.ordinal()];
+        if (requestDate == null || budget == Long.MAX_VALUE) {
+            return RequestDeadline.NONE;
+        }
+        return new RequestDeadline(requestDate.toInstant().toEpochMilli() + budget);
+    }
+
+    // The request had passed its deadline before the plugin started on it
+    void recordExpiredOnArrival() {
+        expiredOnArrival.increment();
+    }
+
+    // The deadline passed while the request waited for a bulkhead, the concurrency limit, or another read
+    void recordExpiredWaiting() {
+        expiredWaiting.increment();
+    }
+
+    // The deadline passed while an asynchronous request was being processed, and it was interrupted
+    void recordCancelled() {
+        cancelled.increment();
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        long arrival = expiredOnArrival.sum();
+        long waiting = expiredWaiting.sum();
+        long interrupted = cancelled.sum();
+        metrics.add(new HealthMetric().setMetricName("deadlineExpiredOnArrival").setMetricValue(arrival));
+        metrics.add(new HealthMetric().setMetricName("deadlineExpiredWaiting").setMetricValue(waiting));
+        metrics.add(new HealthMetric().setMetricName("deadlineCancelled").setMetricValue(interrupted));
+        metrics.add(new HealthMetric().setMetricName("deadlineWorkAvoided").setMetricValue(arrival + waiting + interrupted));
+    }
+}
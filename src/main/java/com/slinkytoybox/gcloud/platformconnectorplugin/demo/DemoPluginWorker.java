@@ -26,16 +26,42 @@ import com.slinkytoybox.gcloud.platformconnectorplugin.request.*;
 import com.slinkytoybox.gcloud.platformconnectorplugin.response.*;
 import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.sql.SQLException;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
 import org.springframework.stereotype.Component;
 
 /**
@@ -52,18 +78,76 @@ import org.springframework.stereotype.Component;
  */
 @Slf4j
 @Component
-public class DemoPluginWorker implements PlatformConnectorPlugin {
+public class DemoPluginWorker implements AsyncPlatformConnectorPlugin, StreamingSourcePlugin, CompactDetailsPlugin {
+
+    // MDC key holding the id of the request being processed, for %X{requestId} in the log pattern
+    static final String MDC_REQUEST_ID = "requestId";
+
+    // Set while the warm-up thread sends a read, so the read is kept out of the request metrics, the concurrency
+    // limiter and the hedge delay, and does not serve itself from the read cache
+    private static final ThreadLocal<Boolean> WARMUP_READ = new ThreadLocal<>();
+
+    // Settings, or prefixes of settings, that are applied when the configuration file changes. Changes to
+    // anything else, including settings read in pluginSetup, only take effect when the plugin is restarted
+    private static final List<String> RELOADABLE_SETTINGS = List.of("log.requests.", "startup.timeoutMillis", "async.shutdownTimeoutMillis",
+            "cache.read.", "coalesce.read.", "limit.", "breaker.", "bulkhead.", "deadline.");
 
     private String buildArtifact;
     private String buildVersion;
 
-    private final Properties config;
+    private volatile PluginSettings settings;
+    private final Path configFile;
     private final String pluginId;
+    // Names this worker's threads and files. The pluginId, or for a shard the pluginId and the shard name
+    private final String instanceName;
+    private final String shardName;
     private final String pluginDescription;
 
     private final List<PluginOperation> supportedOperations = new ArrayList<>();
+    private ConnectionPool connectionPool = null;
+    private volatile SearchIndex searchIndex = null;
+    private ScheduledExecutorService searchIndexRefresher = null;
+    private volatile OffsetDateTime searchIndexRefreshedAt = null;
+    private final LongAdder searchIndexRefreshFailures = new LongAdder();
+    // Set by a ShardedPluginWorker before setup: the shard keeping the search index every shard uses, whether
+    // a request is routed to this shard, and who to tell of an objectId changed through this shard
+    private DemoPluginWorker searchIndexShard = null;
+    private Predicate<PluginRequest> routedHere = request -> true;
+    private Consumer<String> changeListener = objectId -> {
+    };
+    private ObjectDetailsSchema detailsSchema = null;
 
     private ContainerInterface container = null;
+    private RequestDispatcher dispatcher = null;
+    private ExecutorService requestExecutor = null;
+    private volatile ResponseCache readCache = ResponseCache.disabled();
+    private volatile ReadCoalescer readCoalescer = null;
+    private ExecutorService batchExecutor = null;
+    private MicroBatcher<CreateRequest, CreateResponse> createBatcher = null;
+    private MicroBatcher<ReadRequest, ReadResponse> readBatcher = null;
+    private ExecutorService hedgeExecutor = null;
+    private ScheduledThreadPoolExecutor hedgeTimer = null;
+    private ReadHedger readHedger = null;
+    private volatile ConcurrencyLimiter concurrencyLimiter = null;
+    private volatile Map<PluginOperation, Bulkhead> bulkheads = null;
+    private volatile DeadlinePolicy deadlinePolicy = null;
+    private volatile CircuitBreaker backendBreaker = null;
+    private WriteBehindQueue writeBehind = null;
+    private Set<PluginOperation> writeBehindOperations = Set.of();
+    private final RequestMetrics requestMetrics = new RequestMetrics();
+    private final OffsetDateTime startTime = OffsetDateTime.now();
+    private final HealthMonitor healthMonitor;
+    private SourceArtifact sourceArtifact = null;
+    private final long constructedNanos = System.nanoTime();
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private volatile long startupMillis = -1;
+    private volatile long pluginSetupMillis = -1;
+    private volatile RequestSettings requestSettings;
+    private ConfigWatcher configWatcher = null;
+    private volatile PluginWarmup warmup = null;
+    private final LongAdder configReloads = new LongAdder();
+    private final LongAdder configReloadsRejected = new LongAdder();
+    private volatile String lastReloadError = null;
 
     // Custom Setup Routine
     private void pluginSetup() throws PluginException {
@@ -76,7 +160,51 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
         supportedOperations.add(PluginOperation.UPDATE);
         supportedOperations.add(PluginOperation.DELETE);
 
+        // TODO: Declare the fields returned in objectDetails. Values that are the same in every response are boxed
+        // once here, and timestamps come from a shared clock, so building a response allocates very little.
+        // Fields declared with field() are not filled in, but are encoded compactly, eg in the read cache.
+        detailsSchema = ObjectDetailsSchema.builder()
+                .constant("Field1", "Value1")
+                .constant("Field2", 2)
+                .timestamp("Field3")
+                .constant("Field4", "Value4")
+                .constant("Field5", true)
+                .field("Phone")
+                .build();
+
         // TODO: Any Setup work in here
+        // Example database connection pool. Only created if db.url is set in the plugin configuration.
+        // Borrow connections with connectionPool.getConnection() in a try-with-resources block.
+        String dbUrl = settings.getString("db.url");
+        if (dbUrl != null && !dbUrl.isBlank()) {
+            try {
+                connectionPool = ConnectionPool.builder("database", dbUrl)
+                        .driverClass(settings.getString("db.driverClass"))
+                        .credentials(settings.getString("db.username"), settings.getString("db.password"))
+                        .size(getIntProperty("db.pool.minIdle", 2), getIntProperty("db.pool.maxSize", 10))
+                        .acquireTimeoutMillis(getIntProperty("db.pool.acquireTimeoutMillis", 2000))
+                        .validation(getIntProperty("db.pool.validationIntervalMillis", 30000), getIntProperty("db.pool.validationTimeoutSeconds", 5))
+                        .statementCacheSize(getIntProperty("db.pool.statementCacheSize", 50))
+                        .onStateChange(state -> healthMonitor.refreshNow())
+                        .build();
+                connectionPool.start();
+            }
+            catch (SQLException ex) {
+                log.error("{}Unable to create database connection pool", logPrefix, ex);
+                throw new PluginException("Unable to create database connection pool: " + ex.getMessage());
+            }
+        }
+
+        // Example search index, answering reads by search parameters without a backend query. Only created if
+        // index.search.enabled is set in the plugin configuration. Fill in doSearchSnapshot and doSearchChanges
+        if (getBooleanProperty("index.search.enabled", false)) {
+            if (searchIndexShard == null) {
+                startSearchIndex();
+            }
+            else {
+                log.info("{}Searches use the search index of {}", logPrefix, searchIndexShard.instanceName);
+            }
+        }
     }
 
     // Custom destruction routine
@@ -84,14 +212,20 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
         final String logPrefix = "pluginDestroy() - ";
         log.trace("{}Entering Method", logPrefix);
         // TODO: Any Setup work in here
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+        if (searchIndexRefresher != null) {
+            searchIndexRefresher.shutdownNow();
+        }
 
     }
 
     /// Note: When implementing the below methods, you need to leave the function
     /// shell for any function that the plugin will NOT support. It can simply just
     /// be a 'return null;' 
-    /// The code will not be called due to the checks done in getResponseFromRequest 
-    /// at the bottom of this file.
+    /// The code will not be called due to the checks done by the request dispatcher
+    /// built in setup() at the bottom of this file.
     /**
      * Method for Creating a new object
      *
@@ -101,17 +235,13 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
     private CreateResponse doWork(CreateRequest req) {
         final String logPrefix = "doWork(CreateRequest) - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Issuing create request for new record", logPrefix);
+        if (logRequestInfo()) {
+            log.info("{}Issuing create request for new record", logPrefix);
+        }
         CreateResponse response = new CreateResponse(); // Create new response object
 
         // TODO: Modify code here to do the actual work
-        Map<String, Serializable> objectDataMap = new HashMap<>();
-        objectDataMap.put("Field1", "Value1");
-        objectDataMap.put("Field2", 2);
-        objectDataMap.put("Field3", OffsetDateTime.now().toString());
-        objectDataMap.put("Field4", "Value4");
-        objectDataMap.put("Field5", true);
-        objectDataMap.putAll(req.getObjectDetails());
+        Map<String, Serializable> objectDataMap = detailsSchema.newDetails(req.getObjectDetails());
         response.setObjectDetails(objectDataMap)
                 .setRequestId(req.getRequestId())
                 .setStatus(ResponseStatus.SUCCESS)
@@ -132,16 +262,13 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
     private UpdateResponse doWork(UpdateRequest req) {
         final String logPrefix = "doWork(UpdateRequest) - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Issuing update request for record {}", logPrefix, req.getObjectId());
+        if (logRequestInfo()) {
+            log.info("{}Issuing update request for record {}", logPrefix, req.getObjectId());
+        }
         UpdateResponse response = new UpdateResponse(); // Create new response object
 
         // TODO: Modify code here to do the actual work
-        Map<String, Serializable> objectDataMap = new HashMap<>();
-        objectDataMap.put("Field1", "Value1");
-        objectDataMap.put("Field2", 2);
-        objectDataMap.put("Field3", OffsetDateTime.now().toString());
-        objectDataMap.put("Field4", "Value4");
-        objectDataMap.put("Field5", true);
+        Map<String, Serializable> objectDataMap = detailsSchema.newDetails();
 
         response.setObjectDetails(objectDataMap)
                 .setRequestId(req.getRequestId())
@@ -168,12 +295,18 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
         response.setRequestId(req.getRequestId());
 
         // TODO: Modify code here to do the actual work
+        // With hedge.read.enabled, a slow read is repeated on a second thread. ReadHedger.isHedgeAttempt() is true
+        // for that attempt, eg to send it to a read replica rather than the server the first attempt is waiting on
         if (req.getObjectId() == null || req.getObjectId().isEmpty()) {
-            log.info("{}Issuing read request with search parameters: {}", logPrefix, req.getSearchParameters());
+            if (logRequestInfo()) {
+                log.info("{}Issuing read request with search parameters: {}", logPrefix, req.getSearchParameters());
+            }
             response.setObjectId("DemoReadObjectId");
         }
         else {
-            log.info("{}Issuing read request for record {}", logPrefix, req.getObjectId());
+            if (logRequestInfo()) {
+                log.info("{}Issuing read request for record {}", logPrefix, req.getObjectId());
+            }
             response.setObjectId(req.getObjectId());
             if (req.getObjectId().equalsIgnoreCase("notfound")) {
                 log.warn("{}Faking record not found error", logPrefix);
@@ -186,12 +319,7 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
             }
         }
 
-        Map<String, Serializable> objectDataMap = new HashMap<>();
-        objectDataMap.put("Field1", "Value1");
-        objectDataMap.put("Field2", 2);
-        objectDataMap.put("Field3", OffsetDateTime.now().toString());
-        objectDataMap.put("Field4", "Value4");
-        objectDataMap.put("Field5", true);
+        Map<String, Serializable> objectDataMap = detailsSchema.newDetails();
 
         response.setObjectDetails(objectDataMap)
                 .setStatus(ResponseStatus.SUCCESS);
@@ -209,9 +337,11 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
      * @return
      */
     private DeleteResponse doWork(DeleteRequest req) {
-        final String logPrefix = "doWork(DeleteRequest) - [" + req.getRequestId() + "]";
+        final String logPrefix = "doWork(DeleteRequest) - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Issuing delete request for record {}", logPrefix, req.getObjectId());
+        if (logRequestInfo()) {
+            log.info("{}Issuing delete request for record {}", logPrefix, req.getObjectId());
+        }
         DeleteResponse response = new DeleteResponse(); // Create new response object
 
         // TODO: Modify code here to do the actual work
@@ -225,169 +355,1489 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
 
     }
 
-    // Called by the container to get the health statuses
+    /**
+     * Method for Creating several new objects in one backend call. Only used
+     * when batch.create.enabled is set in the plugin configuration. Return
+     * one response per request, in the same order, as that is how each is
+     * returned to the right caller.
+     *
+     * @param reqs
+     * @return
+     */
+    private List<CreateResponse> doCreateBatch(List<CreateRequest> reqs) {
+        final String logPrefix = "doCreateBatch() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Issuing create request for {} records", logPrefix, reqs.size());
+
+        // TODO: Replace with a single bulk insert against the backend
+        List<CreateResponse> responses = new ArrayList<>(reqs.size());
+        for (CreateRequest req : reqs) {
+            responses.add(doWork(req));
+        }
+
+        // END actual work code
+        return responses;
+    }
+
+    /**
+     * Method for reading several objects in one backend call. Only used when
+     * batch.read.enabled is set in the plugin configuration. Return one
+     * response per request, in the same order, as that is how each is
+     * returned to the right caller.
+     *
+     * @param reqs
+     * @return
+     */
+    private List<ReadResponse> doReadBatch(List<ReadRequest> reqs) {
+        final String logPrefix = "doReadBatch() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.debug("{}Issuing read request for {} records", logPrefix, reqs.size());
+
+        // TODO: Replace with a single bulk query against the backend, eg WHERE id IN (...)
+        List<ReadResponse> responses = new ArrayList<>(reqs.size());
+        for (ReadRequest req : reqs) {
+            responses.add(doWork(req));
+        }
+
+        // END actual work code
+        return responses;
+    }
+
+    /**
+     * Method for reading every object to preload the search index. Only used
+     * when index.search.enabled is set in the plugin configuration. Only the
+     * indexed fields need to be returned in each object's details.
+     *
+     * @return object details by objectId
+     */
+    private Map<String, Map<String, Serializable>> doSearchSnapshot() {
+        final String logPrefix = "doSearchSnapshot() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        // TODO: Replace with a bulk query against the backend, eg SELECT id, phone FROM contacts
+        Map<String, Map<String, Serializable>> objects = new HashMap<>();
+
+        // END actual work code
+        return objects;
+    }
+
+    /**
+     * Method for reading the objects changed in the backend since the given
+     * time, to keep the search index current with changes not made through
+     * this plugin. Only used when index.search.enabled is set in the plugin
+     * configuration.
+     *
+     * @param since
+     * @return object details by objectId, with null details for an object
+     * that has been deleted
+     */
+    private Map<String, Map<String, Serializable>> doSearchChanges(OffsetDateTime since) {
+        final String logPrefix = "doSearchChanges() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        // TODO: Replace with a query against the backend, eg SELECT id, phone, deleted FROM contacts WHERE modified >= ?
+        Map<String, Map<String, Serializable>> changes = new HashMap<>();
+
+        // END actual work code
+        return changes;
+    }
+
+    // Called by the health monitor to build the health snapshot returned to the container. It runs in the
+    // background whenever the snapshot is refreshed, not on every container poll.
     // This should return the COMPLETE health picture.
-    @Override
-    public HealthResult getPluginHealth() {
-        final String logPrefix = "getPluginHealth() - ";
+    private HealthResult buildPluginHealth() {
+        final String logPrefix = "buildPluginHealth() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Getting plugin health", logPrefix);
 
         // TODO: Modify code here to do the actual health checks and create metrics etc.
         Map<String, HealthStatus> componentStatus = new HashMap<>();
         componentStatus.put("Component1", new HealthStatus().setHealthState(HealthState.HEALTHY));
-        componentStatus.put("Component2", new HealthStatus().setHealthState(HealthState.FAILED).setHealthComment("Database connection down"));
         componentStatus.put("Component3", new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Connected to backup API instance"));
+        HealthState overallState = HealthState.HEALTHY;
+        if (connectionPool != null) {
+            componentStatus.put("Database", connectionPool.getHealthStatus());
+            overallState = connectionPool.getHealthState();
+        }
 
-        List<HealthMetric> metrics = new ArrayList<>();
-        metrics.add(new HealthMetric().setMetricName("responseTime").setMetricValue(100));
-        metrics.add(new HealthMetric().setMetricName("SomeStringMetric").setMetricValue("string"));
-        metrics.add(new HealthMetric().setMetricName("dateTimeMetric").setMetricValue(OffsetDateTime.now()));
-        metrics.add(new HealthMetric().setMetricName("floatMetrics").setMetricValue(100.0 / 3.0));
+        List<HealthMetric> metrics = new ArrayList<>(128);
+        metrics.add(new HealthMetric().setMetricName("pluginVersion").setMetricValue(buildVersion));
+        metrics.add(new HealthMetric().setMetricName("startTime").setMetricValue(startTime));
+        if (connectionPool != null) {
+            connectionPool.addHealthMetrics(metrics);
+        }
+        addBuiltInHealthMetrics(metrics);
 
         HealthResult response = new HealthResult()
-                .setOverallStatus(new HealthStatus().setHealthState(HealthState.HEALTHY)) // this is the most important thing to return
+                .setOverallStatus(new HealthStatus().setHealthState(overallState)) // this is the most important thing to return
                 .setComponentStatus(componentStatus) // component statuses are optional
                 .setMetrics(metrics);                   // metrics are optional
 
         // END actual work code
-        log.debug("{}Returning response: {}", logPrefix, response);
+        log.trace("{}Built health: {}", logPrefix, response);
         return response;
 
     }
 
     /// Example fucntion to show how to "push" health changes to the container
-    // Note that this is the COMPLETE health picture including metrics, and not just the deltas
+    // Changes to the overall state are pushed automatically by the health monitor once they have held for
+    // health.debounceMillis. This forces a rebuild and push straight away, without waiting for that.
     private void setHealth() {
         final String logPrefix = "setHealth() - ";
         log.trace("{}Entering Method", logPrefix);
+        log.info("{}About to send the plugin health to container application", logPrefix);
+        healthMonitor.pushNow();
+        log.trace("{}Leaving method", logPrefix);
+    }
 
+    /* 
+////////
+//////// NO NEED TO MODIFY ANYTHING DOWN HERE
+////////
+     */
+    // Called by the container to get the health statuses
+    // Served from the snapshot kept by the health monitor, so polls do not rebuild or allocate anything
+    @Override
+    public HealthResult getPluginHealth() {
+        return healthMonitor.getSnapshot();
+    }
+
+    // Sends health to the container. Used by the health monitor when the overall state changes.
+    // Note that this is the COMPLETE health picture including metrics, and not just the deltas
+    private void pushHealth(HealthResult health) {
+        final String logPrefix = "pushHealth() - ";
         if (container == null) {
             log.warn("{}Container interface is not yet set. Not doing callback", logPrefix);
             return;
         }
-        // lets create some health details
-        Map<String, HealthStatus> componentStatus = new HashMap<>();
-        componentStatus.put("Component1", new HealthStatus().setHealthState(HealthState.HEALTHY));
-        componentStatus.put("Component2", new HealthStatus().setHealthState(HealthState.FAILED).setHealthComment("Database connection down"));
-        componentStatus.put("Component3", new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Connected to backup API instance"));
+        log.info("{}Sending {} plugin health to container application", logPrefix, health.getOverallStatus().getHealthState());
+        container.setPluginHealth(pluginId, health);
+    }
 
+    // Builds the health for the monitor. Until setup has finished this reports the startup progress
+    // rather than calling buildPluginHealth, which may depend on things pluginSetup creates
+    private HealthResult currentHealth() {
+        if (ready.isDone() && !ready.isCompletedExceptionally()) {
+            return addBuiltInHealth(buildPluginHealth());
+        }
+        HealthStatus status;
+        if (ready.isCompletedExceptionally()) {
+            status = new HealthStatus().setHealthState(HealthState.FAILED).setHealthComment("Plugin setup failed");
+        }
+        else if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - constructedNanos) > requestSettings.startupTimeoutMillis) {
+            status = new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Plugin setup is taking longer than " + requestSettings.startupTimeoutMillis + "ms");
+        }
+        else {
+            status = new HealthStatus().setHealthState(HealthState.UNKNOWN).setHealthComment("Plugin is starting");
+        }
         List<HealthMetric> metrics = new ArrayList<>();
-        metrics.add(new HealthMetric().setMetricName("responseTime").setMetricValue(100));
-        metrics.add(new HealthMetric().setMetricName("SomeStringMetric").setMetricValue("string"));
-        metrics.add(new HealthMetric().setMetricName("dateTimeMetric").setMetricValue(OffsetDateTime.now()));
-        metrics.add(new HealthMetric().setMetricName("floatMetrics").setMetricValue(100.0 / 3.0));
+        metrics.add(new HealthMetric().setMetricName("pluginVersion").setMetricValue(buildVersion));
+        metrics.add(new HealthMetric().setMetricName("startTime").setMetricValue(startTime));
+        addStartupMetrics(metrics);
+        return new HealthResult().setOverallStatus(status).setMetrics(metrics);
+    }
 
-        HealthResult response = new HealthResult()
-                .setOverallStatus(new HealthStatus().setHealthState(HealthState.WARNING)) // this is the most important thing to return
-                .setComponentStatus(componentStatus)
-                .setMetrics(metrics);
+    // Adds the component statuses of the built-in request handling. A component that is worse than the
+    // overall state reported by buildPluginHealth lowers the overall state to match
+    private HealthResult addBuiltInHealth(HealthResult health) {
+        PluginWarmup currentWarmup = warmup;
+        if (currentWarmup != null) {
+            addComponentStatus(health, "Warmup", currentWarmup.getHealthStatus());
+        }
+        Map<PluginOperation, Bulkhead> currentBulkheads = bulkheads;
+        if (currentBulkheads != null) {
+            for (Bulkhead bulkhead : currentBulkheads.values()) {
+                addComponentStatus(health, bulkhead.getName() + "Bulkhead", bulkhead.getHealthStatus());
+            }
+        }
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter != null) {
+            addComponentStatus(health, "ConcurrencyLimiter", limiter.getHealthStatus());
+        }
+        CircuitBreaker breaker = backendBreaker;
+        if (breaker != null) {
+            addComponentStatus(health, breaker.getName() + "Circuit", breaker.getHealthStatus());
+        }
+        if (writeBehind != null) {
+            addComponentStatus(health, "WriteBehind", writeBehind.getHealthStatus());
+        }
+        String reloadError = lastReloadError;
+        if (reloadError != null) {
+            addComponentStatus(health, "Configuration", new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Configuration change rejected: " + reloadError));
+        }
+        return health;
+    }
 
-        log.info("{}About to send the plugin health to container application", logPrefix);
-        container.setPluginHealth(pluginId, response);
-        log.trace("{}Leaving method", logPrefix);
+    private static void addComponentStatus(HealthResult health, String component, HealthStatus status) {
+        Map<String, HealthStatus> componentStatus = health.getComponentStatus() == null ? new HashMap<>() : new HashMap<>(health.getComponentStatus());
+        componentStatus.put(component, status);
+        health.setComponentStatus(componentStatus);
+        HealthState overallState = health.getOverallStatus() == null ? HealthState.UNKNOWN : health.getOverallStatus().getHealthState();
+        if (severity(status.getHealthState()) > severity(overallState)) {
+            health.setOverallStatus(status);
+        }
+    }
+
+    private static int severity(HealthState state) {
+        if (state == HealthState.FAILED) {
+            return 2;
+        }
+        else if (state == HealthState.WARNING) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private void addStartupMetrics(List<HealthMetric> metrics) {
+        metrics.add(new HealthMetric().setMetricName("startupMillis").setMetricValue(startupMillis));
+        metrics.add(new HealthMetric().setMetricName("pluginSetupMillis").setMetricValue(pluginSetupMillis));
+    }
+
+    // Metrics from the built-in request handling, added to every health result
+    private void addBuiltInHealthMetrics(List<HealthMetric> metrics) {
+        addStartupMetrics(metrics);
+        PluginSettings current = settings;
+        metrics.add(new HealthMetric().setMetricName("configVersion").setMetricValue(current.getVersion()));
+        metrics.add(new HealthMetric().setMetricName("configLoadedAt").setMetricValue(current.getLoadedAt()));
+        metrics.add(new HealthMetric().setMetricName("configReloads").setMetricValue(configReloads.sum()));
+        metrics.add(new HealthMetric().setMetricName("configReloadsRejected").setMetricValue(configReloadsRejected.sum()));
+        requestMetrics.addHealthMetrics(metrics);
+        PluginWarmup currentWarmup = warmup;
+        if (currentWarmup != null) {
+            currentWarmup.addHealthMetrics(metrics);
+        }
+        readCache.addHealthMetrics(metrics);
+        ReadCoalescer coalescer = readCoalescer;
+        if (coalescer != null) {
+            coalescer.addHealthMetrics(metrics);
+        }
+        if (createBatcher != null) {
+            createBatcher.addHealthMetrics(metrics);
+        }
+        if (readBatcher != null) {
+            readBatcher.addHealthMetrics(metrics);
+        }
+        if (readHedger != null) {
+            readHedger.addHealthMetrics(metrics);
+        }
+        Map<PluginOperation, Bulkhead> currentBulkheads = bulkheads;
+        if (currentBulkheads != null) {
+            for (Bulkhead bulkhead : currentBulkheads.values()) {
+                bulkhead.addHealthMetrics(metrics);
+            }
+        }
+        DeadlinePolicy deadlines = deadlinePolicy;
+        if (deadlines != null) {
+            deadlines.addHealthMetrics(metrics);
+        }
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.addHealthMetrics(metrics);
+            metrics.add(new HealthMetric().setMetricName("searchIndexRefreshedAt").setMetricValue(String.valueOf(searchIndexRefreshedAt)));
+            metrics.add(new HealthMetric().setMetricName("searchIndexRefreshFailures").setMetricValue(searchIndexRefreshFailures.sum()));
+        }
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter != null) {
+            limiter.addHealthMetrics(metrics);
+        }
+        CircuitBreaker breaker = backendBreaker;
+        if (breaker != null) {
+            breaker.addHealthMetrics(metrics);
+        }
+        if (writeBehind != null) {
+            writeBehind.addHealthMetrics(metrics);
+        }
     }
 
-    /* 
-////////
-//////// NO NEED TO MODIFY ANYTHING DOWN HERE
-////////
-     */
     // Default CTOR called by instantiator
-    public DemoPluginWorker(String pluginId, String pluginDescription, Properties config) {
-        this.config = config;
+    public DemoPluginWorker(String pluginId, String pluginDescription, Properties config, Path configFile) {
+        this(pluginId, null, pluginDescription, config, configFile);
+    }
+
+    // CTOR for one shard of a ShardedPluginWorker, which starts and stops it rather than Spring
+    DemoPluginWorker(String pluginId, String shardName, String pluginDescription, Properties config, Path configFile) {
+        this.settings = PluginSettings.initial(config);
+        this.configFile = configFile;
         this.pluginDescription = pluginDescription;
         this.pluginId = pluginId;
+        this.shardName = shardName;
+        this.instanceName = shardName == null ? pluginId : pluginId + "-" + shardName;
+        this.healthMonitor = new HealthMonitor(instanceName, this::currentHealth, this::pushHealth,
+                getIntProperty("health.refreshIntervalMillis", 1000), getIntProperty("health.debounceMillis", 2000));
+    }
+
+    /**
+     * Makes this worker one shard of a ShardedPluginWorker. Called before
+     * setup.
+     *
+     * @param searchIndexShard the shard whose search index this one uses, or
+     * null for this shard to keep the index for all of them
+     * @param routedHere whether a request is routed to this shard, so
+     * warm-up only reads this shard's objects
+     * @param changeListener given the objectId of every object created,
+     * updated or deleted through this shard
+     */
+    void joinShards(DemoPluginWorker searchIndexShard, Predicate<PluginRequest> routedHere, Consumer<String> changeListener) {
+        this.searchIndexShard = searchIndexShard;
+        this.routedHere = routedHere;
+        this.changeListener = changeListener;
+    }
+
+    // Drops cached reads of an object changed through another shard
+    void invalidateCached(String objectId) {
+        readCache.invalidate(objectId);
+    }
+
+    // CTOR for a worker whose configuration does not come from a file, so is never reloaded
+    public DemoPluginWorker(String pluginId, String pluginDescription, Properties config) {
+        this(pluginId, pluginDescription, config, null);
     }
 
     // Initial post-construction routine - don't need to modify this, it calls the custom one
     @PostConstruct
-    private void setup() throws PluginException {
+    void setup() throws PluginException {
         final String logPrefix = "setup() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("----------------------------------------------------------------------------");
         log.info("{}Startup tasks for plugin running", logPrefix);
         log.info("Plugin Id: {}", pluginId);
+        if (shardName != null) {
+            log.info("Shard: {}", shardName);
+        }
         log.info("Decription: {}", pluginDescription);
         log.info("----------------------------------------------------------------------------");
-        log.info("{}Configuration", logPrefix);
-        log.info("{}", config);
-        log.info("----------------------------------------------------------------------------");
-        buildVersion = config.getProperty("info.build.version", "unknown");
-        buildArtifact = config.getProperty("info.build.artifact", "unknown");
-        pluginSetup();
+        if (log.isDebugEnabled()) {
+            log.debug("{}Configuration", logPrefix);
+            settings.keys().forEach(key -> log.debug("{}  {}={}", logPrefix, key, key.contains("password") ? "********" : settings.getString(key)));
+            log.debug("----------------------------------------------------------------------------");
+        }
+        requestSettings = new RequestSettings(settings);
+        buildVersion = settings.getString("info.build.version", "unknown");
+        buildArtifact = settings.getString("info.build.artifact", "unknown");
+        sourceArtifact = new SourceArtifact(this.getClass(), buildArtifact + "-" + buildVersion + "-sources.jar");
+        startRequestExecutor();
+
+        if (getBooleanProperty("startup.background", false)) {
+            // Fast start: return to the container straight away and report UNKNOWN health until setup has finished
+            log.info("{}Running plugin setup in the background", logPrefix);
+            healthMonitor.start();
+            Thread startupThread = PluginExecutors.namedDaemonThreads(instanceName + "-startup").newThread(() -> {
+                try {
+                    completeSetup();
+                    healthMonitor.pushNow();
+                }
+                catch (PluginException | RuntimeException ex) {
+                    log.error("{}Plugin setup failed", logPrefix, ex);
+                    ready.completeExceptionally(ex);
+                    healthMonitor.pushNow();
+                }
+            });
+            startupThread.start();
+        }
+        else {
+            completeSetup();
+            healthMonitor.start();
+        }
 
         log.trace("{}Leaving Method", logPrefix);
     }
 
+    // Runs the custom setup routine and everything that depends on it, then marks the plugin ready
+    private void completeSetup() throws PluginException {
+        final String logPrefix = "completeSetup() - ";
+        log.trace("{}Entering Method", logPrefix);
+        long setupStart = System.nanoTime();
+        pluginSetup();
+        pluginSetupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart);
+        buildDispatcher();
+        readCache = createReadCache(settings);
+        readCoalescer = createReadCoalescer(settings);
+        startBatchers();
+        startReadHedger();
+        bulkheads = createBulkheads(settings);
+        deadlinePolicy = createDeadlinePolicy(settings);
+        concurrencyLimiter = createConcurrencyLimiter(settings);
+        backendBreaker = createCircuitBreaker(settings);
+        startWriteBehind();
+        startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - constructedNanos);
+        ready.complete(null);
+        log.info("{}Plugin ready after {}ms, of which pluginSetup took {}ms", logPrefix, startupMillis, pluginSetupMillis);
+        startWarmup();
+        startConfigWatcher();
+    }
+
+    // Starts warming the plugin up in the background if warm-up is enabled. Requests are served meanwhile,
+    // with the health at WARNING until the warm-up finishes and the HEALTHY state is pushed
+    private void startWarmup() {
+        final String logPrefix = "startWarmup() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!getBooleanProperty("warmup.enabled", false) || !supportedOperations.contains(PluginOperation.READ)) {
+            log.info("{}Warm-up is disabled", logPrefix);
+            return;
+        }
+        String file = settings.getString("warmup.file");
+        Path requestsFile = null;
+        if (file != null && !file.isBlank()) {
+            requestsFile = Path.of(file);
+            if (!requestsFile.isAbsolute() && configFile != null) {
+                requestsFile = configFile.toAbsolutePath().getParent().resolve(requestsFile);
+            }
+        }
+        List<ReadRequest> requests;
+        try {
+            requests = PluginWarmup.loadRequests(settings.getString("warmup.objectIds"), requestsFile);
+        }
+        catch (IOException ex) {
+            log.error("{}Unable to read the warm-up requests from {}, skipping warm-up", logPrefix, requestsFile, ex);
+            return;
+        }
+        if (requests.isEmpty()) {
+            log.warn("{}Warm-up is enabled but neither warmup.objectIds nor warmup.file gives any reads, skipping warm-up", logPrefix);
+            return;
+        }
+        // a shard only warms the objects routed to it
+        requests.removeIf(request -> !routedHere.test(request));
+        if (requests.isEmpty()) {
+            log.info("{}None of the warm-up reads are routed to this shard, skipping warm-up", logPrefix);
+            return;
+        }
+        warmup = new PluginWarmup(instanceName, requests, this::warmupRead, healthMonitor::pushNow,
+                getIntProperty("warmup.maxRounds", 50), getIntProperty("warmup.maxMillis", 60000), getIntProperty("warmup.tolerancePercent", 10),
+                getIntProperty("warmup.stableRounds", 3));
+        warmup.start();
+    }
+
+    // Watches the configuration file so changes are applied without restarting the plugin
+    private void startConfigWatcher() {
+        final String logPrefix = "startConfigWatcher() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (configFile == null || !getBooleanProperty("config.watch.enabled", true)) {
+            log.info("{}Configuration changes are not watched", logPrefix);
+            return;
+        }
+        try {
+            configWatcher = new ConfigWatcher(instanceName, configFile, getIntProperty("config.watch.settleMillis", 500), this::reloadConfiguration);
+            configWatcher.start();
+        }
+        catch (IOException ex) {
+            log.warn("{}Unable to watch {} for changes, configuration changes need a plugin restart", logPrefix, configFile, ex);
+        }
+    }
+
+    // Reads the changed configuration file on the watcher thread. Everything the new settings need is built
+    // before anything is replaced, so a change that is invalid leaves the running plugin untouched
+    private void reloadConfiguration() {
+        final String logPrefix = "reloadConfiguration() - ";
+        log.trace("{}Entering Method", logPrefix);
+        PluginSettings current = settings;
+        PluginSettings next;
+        Set<String> changed;
+        RequestSettings nextRequestSettings;
+        ResponseCache nextCache = null;
+        ReadCoalescer nextCoalescer = null;
+        Map<PluginOperation, Bulkhead> nextBulkheads = null;
+        DeadlinePolicy nextDeadlines = null;
+        ConcurrencyLimiter nextLimiter = null;
+        CircuitBreaker nextBreaker = null;
+        try {
+            next = current.reloaded(PluginConfiguration.readConfiguration(configFile));
+            changed = current.changedKeys(next);
+            if (changed.isEmpty()) {
+                log.debug("{}Configuration file changed but no settings did", logPrefix);
+                return;
+            }
+            nextRequestSettings = new RequestSettings(next);
+            if (changedWithPrefix(changed, "cache.read.")) {
+                nextCache = createReadCache(next);
+            }
+            if (changedWithPrefix(changed, "coalesce.read.")) {
+                nextCoalescer = createReadCoalescer(next);
+            }
+            if (changedWithPrefix(changed, "bulkhead.")) {
+                nextBulkheads = createBulkheads(next);
+            }
+            if (changedWithPrefix(changed, "deadline.")) {
+                nextDeadlines = createDeadlinePolicy(next);
+            }
+            if (changedWithPrefix(changed, "limit.")) {
+                nextLimiter = createConcurrencyLimiter(next);
+            }
+            if (changedWithPrefix(changed, "breaker.")) {
+                nextBreaker = createCircuitBreaker(next);
+            }
+        }
+        catch (IOException | IllegalArgumentException ex) {
+            log.error("{}Configuration change rejected, keeping version {}: {}", logPrefix, current.getVersion(), ex.getMessage());
+            configReloadsRejected.increment();
+            lastReloadError = ex.getMessage();
+            healthMonitor.refreshNow();
+            return;
+        }
+
+        // Requests in flight keep the components they started with, new requests pick up the replacements
+        settings = next;
+        requestSettings = nextRequestSettings;
+        if (changedWithPrefix(changed, "cache.read.")) {
+            readCache = nextCache;
+        }
+        if (changedWithPrefix(changed, "coalesce.read.")) {
+            readCoalescer = nextCoalescer;
+        }
+        if (changedWithPrefix(changed, "bulkhead.")) {
+            bulkheads = nextBulkheads;
+        }
+        if (changedWithPrefix(changed, "deadline.")) {
+            deadlinePolicy = nextDeadlines;
+        }
+        if (changedWithPrefix(changed, "limit.")) {
+            concurrencyLimiter = nextLimiter;
+        }
+        if (changedWithPrefix(changed, "breaker.")) {
+            backendBreaker = nextBreaker;
+        }
+        configReloads.increment();
+        lastReloadError = null;
+        log.info("{}Configuration version {} applied, changed settings {}", logPrefix, next.getVersion(), changed);
+        for (String key : changed) {
+            if (!isReloadable(key)) {
+                log.warn("{}The change to {} will only take effect when the plugin is restarted", logPrefix, key);
+            }
+        }
+        healthMonitor.refreshNow();
+    }
+
+    private static boolean changedWithPrefix(Set<String> changed, String prefix) {
+        for (String key : changed) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isReloadable(String key) {
+        for (String prefix : RELOADABLE_SETTINGS) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Waits for a background setup to finish. Returns straight away once the plugin is ready
+    private void awaitReady() {
+        if (ready.isDone() && !ready.isCompletedExceptionally()) {
+            return;
+        }
+        try {
+            ready.get(requestSettings.startupTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the plugin to start", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Plugin setup failed", ex.getCause());
+        }
+        catch (TimeoutException ex) {
+            throw new IllegalStateException("Plugin has not finished starting after " + requestSettings.startupTimeoutMillis + "ms");
+        }
+    }
+
+    // Builds the request class to doWork lookup table once the supported operations are known
+    private void buildDispatcher() {
+        final String logPrefix = "buildDispatcher() - ";
+        log.trace("{}Entering Method", logPrefix);
+        dispatcher = RequestDispatcher.builder(supportedOperations)
+                .register(PluginOperation.CREATE, CreateRequest.class, "Create")
+                .register(PluginOperation.UPDATE, UpdateRequest.class, "Update")
+                .register(PluginOperation.READ, ReadRequest.class, "Read")
+                .register(PluginOperation.DELETE, DeleteRequest.class, "Delete")
+                .build();
+        log.debug("{}Request dispatcher built for operations {}", logPrefix, supportedOperations);
+    }
+
+    // Creates the plugin owned executor used by getResponseFromRequestAsync
+    private void startRequestExecutor() {
+        final String logPrefix = "startRequestExecutor() - ";
+        log.trace("{}Entering Method", logPrefix);
+        int maxThreads = getIntProperty("async.maxThreads", 64);
+        int queueSize = getIntProperty("async.queueSize", 1000);
+        boolean virtualThreads = getBooleanProperty("async.virtualThreads", true);
+        requestExecutor = PluginExecutors.newRequestExecutor(instanceName + "-request", maxThreads, queueSize, virtualThreads);
+    }
+
+    // Creates the read hedger and the executor its attempts run on if hedging is enabled
+    private void startReadHedger() {
+        final String logPrefix = "startReadHedger() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!getBooleanProperty("hedge.read.enabled", false)) {
+            log.info("{}Read hedging is disabled", logPrefix);
+            return;
+        }
+        if (readBatcher != null) {
+            log.warn("{}Read hedging is disabled, as reads are batched", logPrefix);
+            return;
+        }
+        int percentile = getIntProperty("hedge.read.percentile", 95);
+        int maxPercent = getIntProperty("hedge.read.maxPercent", 5);
+        hedgeExecutor = PluginExecutors.newRequestExecutor(instanceName + "-hedge", getIntProperty("hedge.read.maxThreads", 64),
+                getIntProperty("hedge.read.queueSize", 1000), getBooleanProperty("async.virtualThreads", true));
+        hedgeTimer = new ScheduledThreadPoolExecutor(1, PluginExecutors.namedDaemonThreads(instanceName + "-hedge-timer"));
+        // a read that answers in time cancels its hedge, which is then dropped rather than left queued until its delay
+        hedgeTimer.setRemoveOnCancelPolicy(true);
+        readHedger = new ReadHedger(hedgeExecutor, hedgeTimer, percentile, getIntProperty("hedge.read.minDelayMillis", 5), getIntProperty("hedge.read.windowMillis", 10000), maxPercent);
+        log.info("{}Reads slower than the p{} read time are hedged, up to {}% of reads", logPrefix, percentile, maxPercent);
+    }
+
+    // Creates the read response cache if it is enabled in the settings
+    private ResponseCache createReadCache(PluginSettings from) {
+        final String logPrefix = "createReadCache() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!from.getBoolean("cache.read.enabled", false)) {
+            log.info("{}Read response cache is disabled", logPrefix);
+            return ResponseCache.disabled();
+        }
+        int maxEntries = from.getInt("cache.read.maxEntries", 10000);
+        int segments = from.getInt("cache.read.segments", 16);
+        long ttlMillis = from.getInt("cache.read.ttlMillis", 30000);
+        long negativeTtlMillis = from.getInt("cache.read.negativeTtlMillis", 5000);
+        log.info("{}Read response cache enabled with {} entries, ttl {}ms, negative ttl {}ms", logPrefix, maxEntries, ttlMillis, negativeTtlMillis);
+        boolean compactDetails = from.getBoolean("cache.read.compactDetails", false);
+        return new LocalResponseCache(maxEntries, segments, ttlMillis, negativeTtlMillis, compactDetails ? detailsSchema.codec() : null);
+    }
+
+    // Creates the read coalescer if it is enabled in the settings
+    private static ReadCoalescer createReadCoalescer(PluginSettings from) {
+        return from.getBoolean("coalesce.read.enabled", true) ? new ReadCoalescer() : null;
+    }
+
+    // Starts the create and read batchers if batching is enabled in the plugin configuration
+    private void startBatchers() {
+        final String logPrefix = "startBatchers() - ";
+        log.trace("{}Entering Method", logPrefix);
+        boolean batchCreates = supportedOperations.contains(PluginOperation.CREATE) && getBooleanProperty("batch.create.enabled", false);
+        boolean batchReads = supportedOperations.contains(PluginOperation.READ) && getBooleanProperty("batch.read.enabled", false);
+        if (!batchCreates && !batchReads) {
+            log.info("{}Request batching is disabled", logPrefix);
+            return;
+        }
+        batchExecutor = PluginExecutors.newRequestExecutor(instanceName + "-batch", getIntProperty("batch.threads", 4), getIntProperty("batch.queueSize", 100), false);
+        if (batchCreates) {
+            int maxSize = getIntProperty("batch.create.maxSize", 50);
+            int windowMicros = getIntProperty("batch.create.windowMicros", 2000);
+            log.info("{}Batching create requests, up to {} requests or {}us", logPrefix, maxSize, windowMicros);
+            createBatcher = new MicroBatcher<>(instanceName, "create", maxSize, windowMicros, getIntProperty("batch.create.queueSize", 10000),
+                    this::doCreateBatch, (req, message) -> failedResponse(new CreateResponse(), req, message), batchExecutor);
+        }
+        if (batchReads) {
+            int maxSize = getIntProperty("batch.read.maxSize", 50);
+            int windowMicros = getIntProperty("batch.read.windowMicros", 2000);
+            log.info("{}Batching read requests, up to {} requests or {}us", logPrefix, maxSize, windowMicros);
+            readBatcher = new MicroBatcher<>(instanceName, "read", maxSize, windowMicros, getIntProperty("batch.read.queueSize", 10000),
+                    this::doReadBatch, (req, message) -> failedResponse(new ReadResponse(), req, message), batchExecutor);
+        }
+    }
+
+    // Creates a bulkhead for each supported operation if bulkheads are enabled in the settings
+    private Map<PluginOperation, Bulkhead> createBulkheads(PluginSettings from) {
+        final String logPrefix = "createBulkheads() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!from.getBoolean("bulkhead.enabled", false)) {
+            log.info("{}Operation bulkheads are disabled", logPrefix);
+            return null;
+        }
+        Map<PluginOperation, Bulkhead> created = new EnumMap<>(PluginOperation.class);
+        for (PluginOperation operation : supportedOperations) {
+            String key = "bulkhead." + operation.name().toLowerCase(Locale.ROOT) + ".";
+            String name = operation.name().charAt(0) + operation.name().substring(1).toLowerCase(Locale.ROOT);
+            // reads are the latency critical operation, so they get the most room by default
+            int maxConcurrent = from.getInt(key + "maxConcurrent", operation == PluginOperation.READ ? 50 : 10);
+            int queueSize = from.getInt(key + "queueSize", 50);
+            int maxWaitMillis = from.getInt(key + "maxWaitMillis", 500);
+            log.info("{}{} bulkhead allows {} requests at once, with {} waiting up to {}ms", logPrefix, name, maxConcurrent, queueSize, maxWaitMillis);
+            created.put(operation, new Bulkhead(name, maxConcurrent, queueSize, maxWaitMillis, healthMonitor::refreshNow));
+        }
+        return created;
+    }
+
+    // Opens the write-behind journal if write-behind is enabled, and starts sending anything left in it
+    private void startWriteBehind() throws PluginException {
+        final String logPrefix = "startWriteBehind() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!getBooleanProperty("writebehind.enabled", false)) {
+            log.info("{}Write-behind is disabled", logPrefix);
+            return;
+        }
+        Set<PluginOperation> operations = EnumSet.noneOf(PluginOperation.class);
+        for (String name : settings.getString("writebehind.operations", "update,delete").split(",")) {
+            if (name.isBlank()) {
+                continue;
+            }
+            PluginOperation operation;
+            try {
+                operation = PluginOperation.valueOf(name.trim().toUpperCase(Locale.ROOT));
+            }
+            catch (IllegalArgumentException ex) {
+                throw new PluginException("Unknown operation in writebehind.operations: " + name.trim());
+            }
+            if (operation != PluginOperation.UPDATE && operation != PluginOperation.DELETE) {
+                // a create needs the objectId the backend assigns, and a read needs the backend's answer
+                throw new PluginException("Write-behind only supports update and delete, not " + name.trim());
+            }
+            if (supportedOperations.contains(operation)) {
+                operations.add(operation);
+            }
+        }
+        String dir = settings.getString("writebehind.dir");
+        Path journalDir;
+        if (dir != null && !dir.isBlank()) {
+            // each shard needs a journal of its own
+            journalDir = shardName == null ? Path.of(dir) : Path.of(dir).resolve(shardName);
+        }
+        else if (configFile != null) {
+            journalDir = configFile.toAbsolutePath().getParent().resolve(instanceName + "-journal");
+        }
+        else {
+            log.warn("{}Write-behind is disabled, as writebehind.dir is not set and there is no configuration file directory to default to", logPrefix);
+            return;
+        }
+        try {
+            writeBehind = new WriteBehindQueue(instanceName, journalDir, getIntProperty("writebehind.segmentBytes", 16 * 1024 * 1024), this::writeBehindToBackend,
+                    getIntProperty("writebehind.threads", 2), getIntProperty("writebehind.maxPending", 100000), getIntProperty("writebehind.maxAttempts", 10),
+                    getIntProperty("writebehind.retryMillis", 1000), getIntProperty("writebehind.lagWarnMillis", 30000), getIntProperty("writebehind.syncMillis", 100));
+        }
+        catch (IOException ex) {
+            log.error("{}Unable to open the write-behind journal in {}", logPrefix, journalDir, ex);
+            throw new PluginException("Unable to open the write-behind journal: " + ex.getMessage());
+        }
+        writeBehindOperations = operations;
+        writeBehind.start();
+        log.info("{}Write-behind enabled for {} with the journal in {}", logPrefix, operations, journalDir);
+    }
+
+    // Creates the search index and preloads it. If the snapshot fails, searches go to the backend until a
+    // later refresh manages to load it
+    private void startSearchIndex() {
+        final String logPrefix = "startSearchIndex() - ";
+        log.trace("{}Entering Method", logPrefix);
+        List<String> fields = new ArrayList<>();
+        for (String field : settings.getString("index.search.fields", "Phone").split(",")) {
+            if (!field.isBlank()) {
+                fields.add(field.trim());
+            }
+        }
+        searchIndex = new SearchIndex(fields);
+        loadSearchIndex(searchIndex);
+        int refreshMillis = getIntProperty("index.search.refreshMillis", 60000);
+        if (refreshMillis > 0) {
+            searchIndexRefresher = Executors.newSingleThreadScheduledExecutor(PluginExecutors.namedDaemonThreads(instanceName + "-index"));
+            searchIndexRefresher.scheduleWithFixedDelay(this::refreshSearchIndex, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+        log.info("{}Search index on {} created, refreshed every {}ms", logPrefix, fields, refreshMillis);
+    }
+
+    private void loadSearchIndex(SearchIndex index) {
+        final String logPrefix = "loadSearchIndex() - ";
+        // changes made while the snapshot is read are picked up again by the first refresh
+        OffsetDateTime snapshotStart = OffsetDateTime.now();
+        long loadStart = System.nanoTime();
+        try {
+            Map<String, Map<String, Serializable>> snapshot = doSearchSnapshot();
+            index.load(snapshot);
+            searchIndexRefreshedAt = snapshotStart;
+            log.info("{}Search index loaded with {} objects in {}ms", logPrefix, snapshot.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStart));
+        }
+        catch (RuntimeException ex) {
+            searchIndexRefreshFailures.increment();
+            log.error("{}Unable to load the search index, searches will go to the backend", logPrefix, ex);
+        }
+    }
+
+    // Applies the backend changes since the last refresh, or retries the snapshot if it has not loaded
+    private void refreshSearchIndex() {
+        final String logPrefix = "refreshSearchIndex() - ";
+        SearchIndex index = searchIndex;
+        if (!index.isLoaded()) {
+            loadSearchIndex(index);
+            return;
+        }
+        OffsetDateTime refreshStart = OffsetDateTime.now();
+        try {
+            Map<String, Map<String, Serializable>> changes = doSearchChanges(searchIndexRefreshedAt);
+            changes.forEach(index::put);
+            searchIndexRefreshedAt = refreshStart;
+            log.debug("{}Applied {} changes to the search index", logPrefix, changes.size());
+        }
+        catch (RuntimeException ex) {
+            searchIndexRefreshFailures.increment();
+            log.error("{}Unable to refresh the search index, will retry from {}", logPrefix, searchIndexRefreshedAt, ex);
+        }
+    }
+
+    // Creates the request deadline policy if deadlines are enabled in the settings
+    private DeadlinePolicy createDeadlinePolicy(PluginSettings from) {
+        final String logPrefix = "createDeadlinePolicy() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!from.getBoolean("deadline.enabled", false)) {
+            log.info("{}Request deadlines are disabled", logPrefix);
+            return null;
+        }
+        int defaultBudget = from.getInt("deadline.budgetMillis", 15000);
+        Map<PluginOperation, Long> budgets = new EnumMap<>(PluginOperation.class);
+        for (PluginOperation operation : PluginOperation.values()) {
+            budgets.put(operation, (long) from.getInt("deadline." + operation.name().toLowerCase(Locale.ROOT) + ".budgetMillis", defaultBudget));
+        }
+        log.info("{}Request deadlines enabled with budgets {}", logPrefix, budgets);
+        return new DeadlinePolicy(budgets);
+    }
+
+    // Creates the concurrency limiter if it is enabled in the settings
+    private ConcurrencyLimiter createConcurrencyLimiter(PluginSettings from) {
+        final String logPrefix = "createConcurrencyLimiter() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!from.getBoolean("limit.enabled", false)) {
+            log.info("{}Concurrency limit is disabled", logPrefix);
+            return null;
+        }
+        int initialLimit = from.getInt("limit.initial", 20);
+        int minLimit = from.getInt("limit.min", 5);
+        int maxLimit = from.getInt("limit.max", 200);
+        log.info("{}Concurrency limit enabled, starting at {} and kept between {} and {}", logPrefix, initialLimit, minLimit, maxLimit);
+        return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, from.getInt("limit.windowMillis", 500), healthMonitor::refreshNow);
+    }
+
+    // Creates the backend circuit breaker if it is enabled in the settings
+    private CircuitBreaker createCircuitBreaker(PluginSettings from) {
+        final String logPrefix = "createCircuitBreaker() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!from.getBoolean("breaker.enabled", false)) {
+            log.info("{}Backend circuit breaker is disabled", logPrefix);
+            return null;
+        }
+        // Health is pushed as soon as the circuit changes state, rather than waiting out the debounce period
+        CircuitBreaker breaker = CircuitBreaker.builder("Backend")
+                .window(from.getInt("breaker.windowSize", 100), from.getInt("breaker.minCalls", 20))
+                .failureRatePercent(from.getInt("breaker.failureRatePercent", 50))
+                .slowCalls(from.getInt("breaker.slowCallMillis", 2000), from.getInt("breaker.slowCallRatePercent", 80))
+                .recovery(from.getInt("breaker.openMillis", 10000), from.getInt("breaker.halfOpenCalls", 5))
+                .onStateChange(healthMonitor::pushNow)
+                .build();
+        log.info("{}Backend circuit breaker enabled", logPrefix);
+        return breaker;
+    }
+
+    // Fills in a FAILURE response for the request
+    private static <R extends PluginResponse> R failedResponse(R response, PluginRequest req, String message) {
+        response.setRequestId(req.getRequestId())
+                .setStatus(ResponseStatus.FAILURE)
+                .setErrorMessage(message);
+        return response;
+    }
+
+    // True if the INFO line about a request should be logged. Only one in log.requests.sampleRate are, and
+    // none when INFO is off, so a busy plugin does not spend its time logging every request
+    private boolean logRequestInfo() {
+        int sampleRate = requestSettings.logSampleRate;
+        if (sampleRate <= 0 || !log.isInfoEnabled()) {
+            return false;
+        }
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    // Reads an integer setting from the plugin configuration, using the default if it is missing or invalid
+    private int getIntProperty(String key, int defaultValue) {
+        return settings.getInt(key, defaultValue);
+    }
+
+    // Reads a boolean setting from the plugin configuration, using the default if it is missing
+    private boolean getBooleanProperty(String key, boolean defaultValue) {
+        return settings.getBoolean(key, defaultValue);
+    }
+
+    // Settings that can change while the plugin runs, without a restart. They are read into one object that
+    // is replaced as a whole, so the request path gets a consistent set with a single volatile read
+    private static final class RequestSettings {
+
+        private final int logSampleRate;
+        private final boolean requestIdMdc;
+        private final long startupTimeoutMillis;
+        private final long shutdownTimeoutMillis;
+
+        private RequestSettings(PluginSettings from) {
+            this.logSampleRate = from.getInt("log.requests.sampleRate", 1);
+            this.requestIdMdc = from.getBoolean("log.requests.mdc", true);
+            this.startupTimeoutMillis = from.getInt("startup.timeoutMillis", 30000);
+            this.shutdownTimeoutMillis = from.getInt("async.shutdownTimeoutMillis", 10000);
+        }
+    }
+
     // Initial pre-destruction routine - don't need to modify this, it calls the custom one
     @PreDestroy
-    private void destroy() {
+    void destroy() {
         final String logPrefix = "destroy() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Shutdown tasks for plugin running", logPrefix);
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
+        PluginWarmup currentWarmup = warmup;
+        if (currentWarmup != null) {
+            currentWarmup.stop();
+        }
+        long shutdownTimeoutMillis = requestSettings.shutdownTimeoutMillis;
         HealthResult response = new HealthResult().setOverallStatus(new HealthStatus().setHealthState(HealthState.FAILED).setHealthComment("Plugin shutting down"));
-        log.info("{}About to send the plugin health to container application", logPrefix);
-        container.setPluginHealth(pluginId, response);
+        healthMonitor.stop(response);
+        pushHealth(response);
+        if (!ready.isDone()) {
+            // let a background setup finish, so whatever it created is cleaned up below
+            log.info("{}Waiting up to {}ms for plugin setup to finish", logPrefix, requestSettings.startupTimeoutMillis);
+            try {
+                awaitReady();
+            }
+            catch (IllegalStateException ex) {
+                log.warn("{}{}", logPrefix, ex.getMessage());
+            }
+        }
+        log.info("{}Waiting up to {}ms for in-flight requests", logPrefix, shutdownTimeoutMillis);
+        PluginExecutors.shutdown(requestExecutor, shutdownTimeoutMillis);
+        if (createBatcher != null) {
+            createBatcher.stop(shutdownTimeoutMillis);
+        }
+        if (readBatcher != null) {
+            readBatcher.stop(shutdownTimeoutMillis);
+        }
+        PluginExecutors.shutdown(batchExecutor, shutdownTimeoutMillis);
+        if (hedgeTimer != null) {
+            // reads still running are not hedged from here on
+            hedgeTimer.shutdownNow();
+        }
+        PluginExecutors.shutdown(hedgeExecutor, shutdownTimeoutMillis);
+        if (writeBehind != null) {
+            // anything not sent by now stays in the journal and is sent after the next start
+            writeBehind.stop(shutdownTimeoutMillis);
+        }
         pluginDestroy();
         log.trace("{}Leaving Method", logPrefix);
 
     }
 
-    // Default routine to break the incoming request into four different work types depending on class instance
+    // Synchronous entry point. The caller is blocked for the whole request either way, so the work
+    // runs directly on the calling thread rather than being handed to the request executor
     @Override
     public PluginResponse getResponseFromRequest(PluginRequest request) {
-        final String logPrefix = "getResponseFromRequest() - ";
+        return processRequest(request);
+    }
+
+    // Sends a read for the warm-up through the normal request path, marked as a warm-up read
+    private PluginResponse warmupRead(ReadRequest request) {
+        WARMUP_READ.set(Boolean.TRUE);
+        try {
+            return processRequest(request);
+        }
+        finally {
+            WARMUP_READ.remove();
+        }
+    }
+
+    private static boolean isWarmupRead() {
+        return WARMUP_READ.get() != null;
+    }
+
+    // Asynchronous entry point. The work runs on the plugin owned request executor. If the request has a
+    // deadline, the future is completed with a FAILURE response when it passes and the work is interrupted
+    @Override
+    public CompletableFuture<PluginResponse> getResponseFromRequestAsync(PluginRequest request) {
+        final String logPrefix = "getResponseFromRequestAsync() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.debug("{}Determining request type from class type: {}", logPrefix, request.getClass().getName());
+        try {
+            DeadlinePolicy deadlines = deadlinePolicy;
+            // before the plugin is ready the deadline is left to processRequest, which waits for setup first
+            RequestDispatcher.Route route = deadlines == null || !ready.isDone() || ready.isCompletedExceptionally() ? null : dispatcher.route(request);
+            if (route == null || !route.isSupported()) {
+                return CompletableFuture.supplyAsync(() -> processRequest(request), requestExecutor);
+            }
+            RequestDeadline deadline = deadlines.deadlineFor(route.getOperation(), request);
+            if (deadline == RequestDeadline.NONE || deadline.isExpired()) {
+                // expired requests are answered by processRequest, which counts them
+                return CompletableFuture.supplyAsync(() -> processRequest(request), requestExecutor);
+            }
+            return withDeadline(route.getOperation(), request, deadline, deadlines);
+        }
+        catch (RejectedExecutionException ex) {
+            log.error("{}Request executor is at capacity, rejecting request", logPrefix);
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
 
-        if (request instanceof CreateRequest createRequest) {
-            log.debug("{} - Create Request", logPrefix);
-            if (supportedOperations.contains(PluginOperation.CREATE)) {
-                return doWork(createRequest);
+    private CompletableFuture<PluginResponse> withDeadline(PluginOperation operation, PluginRequest request, RequestDeadline deadline, DeadlinePolicy deadlines) {
+        CompletableFuture<PluginResponse> result = new CompletableFuture<>();
+        Future<?> task = requestExecutor.submit(() -> {
+            try {
+                result.complete(processRequest(request));
             }
-            else {
-                log.error("{}Create requests are not supported by this plugin", logPrefix);
-                throw new UnsupportedOperationException("Create requests are not supported by this plugin");
+            catch (RuntimeException | Error ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        PluginResponse expired = failedResponse(operation, request, "Request deadline passed while processing");
+        result.completeOnTimeout(expired, deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        result.whenComplete((response, ex) -> {
+            if (response == expired && task.cancel(true)) {
+                deadlines.recordCancelled();
+                log.warn("withDeadline() - Request {} passed its deadline while processing and was cancelled", request.getRequestId());
             }
+        });
+        return result;
+    }
+
+    // Puts the requestId in the MDC for everything logged on this thread while the request is processed
+    private PluginResponse processRequest(PluginRequest request) {
+        String requestId = requestSettings.requestIdMdc ? request.getRequestId() : null;
+        if (requestId == null) {
+            return dispatchRequest(request);
+        }
+        MDC.put(MDC_REQUEST_ID, requestId);
+        try {
+            return dispatchRequest(request);
+        }
+        finally {
+            MDC.remove(MDC_REQUEST_ID);
+        }
+    }
+
+    // Default routine to break the incoming request into four different work types depending on class instance
+    // The class to operation mapping is precomputed in setup(), so this is a single table lookup
+    private PluginResponse dispatchRequest(PluginRequest request) {
+        final String logPrefix = "dispatchRequest() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        awaitReady();
+        RequestDispatcher.Route route = dispatcher.route(request);
+        if (!route.isSupported()) {
+            log.error("{}{}", logPrefix, route.getErrorMessage());
+            throw new UnsupportedOperationException(route.getErrorMessage());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("{}Request class type {} dispatched as {}", logPrefix, request.getClass().getName(), route.getOperation());
+        }
+
+        PluginOperation operation = route.getOperation();
+        long startNanos = System.nanoTime();
+        DeadlinePolicy deadlines = deadlinePolicy;
+        RequestDeadline deadline = deadlines == null ? RequestDeadline.NONE : deadlines.deadlineFor(operation, request);
+        if (deadline.isExpired()) {
+            // the container has already given up on this request, so any work on it would be wasted
+            deadlines.recordExpiredOnArrival();
+            log.warn("{}Request {} passed its deadline before processing started", logPrefix, request.getRequestId());
+            return deadlineResponse(operation, request, startNanos, "Request deadline passed before processing started");
+        }
+        if (deadline == RequestDeadline.NONE) {
+            return bulkheadWork(operation, request, deadline, startNanos);
+        }
+        RequestDeadline.setCurrent(deadline);
+        try {
+            return bulkheadWork(operation, request, deadline, startNanos);
         }
-        if (request instanceof UpdateRequest updateRequest) {
-            log.debug("{} - Update Request", logPrefix);
-            if (supportedOperations.contains(PluginOperation.UPDATE)) {
-                return doWork(updateRequest);
+        finally {
+            RequestDeadline.clearCurrent();
+        }
+    }
+
+    // Runs the request in the bulkhead for its operation. A request does not wait for a free slot past its deadline
+    private PluginResponse bulkheadWork(PluginOperation operation, PluginRequest request, RequestDeadline deadline, long startNanos) {
+        PluginResponse response;
+        // read once, so a configuration reload cannot release a permit on a different bulkhead
+        Map<PluginOperation, Bulkhead> currentBulkheads = bulkheads;
+        Bulkhead bulkhead = currentBulkheads == null ? null : currentBulkheads.get(operation);
+        if (bulkhead != null && !bulkhead.tryAcquire(deadline.remainingMillis())) {
+            if (deadline.isExpired()) {
+                return expiredWaiting(operation, request, startNanos);
             }
-            else {
-                log.error("{}Update requests are not supported by this plugin", logPrefix);
-                throw new UnsupportedOperationException("Update requests are not supported by this plugin");
+            response = failedResponse(operation, request, "Plugin is processing its limit of " + bulkhead.getMaxConcurrent() + " concurrent " + bulkhead.getName() + " requests");
+            recordRequest(operation, response, startNanos);
+            return response;
+        }
+        try {
+            response = limitedWork(operation, request, startNanos);
+        }
+        finally {
+            if (bulkhead != null) {
+                bulkhead.release();
             }
         }
-        if (request instanceof ReadRequest readRequest) {
-            log.debug("{} - Read Request", logPrefix);
-            if (supportedOperations.contains(PluginOperation.READ)) {
-                return doWork(readRequest);
+        return response;
+    }
+
+    // Answers a request whose deadline passed while it was waiting for a bulkhead slot
+    private PluginResponse expiredWaiting(PluginOperation operation, PluginRequest request, long startNanos) {
+        recordExpiredWaiting(request);
+        return deadlineResponse(operation, request, startNanos, "Request deadline passed while waiting to be processed");
+    }
+
+    private void recordExpiredWaiting(PluginRequest request) {
+        DeadlinePolicy deadlines = deadlinePolicy;
+        if (deadlines != null) {
+            deadlines.recordExpiredWaiting();
+        }
+        log.warn("recordExpiredWaiting() - Request {} passed its deadline while waiting to be processed", request.getRequestId());
+    }
+
+    private PluginResponse deadlineResponse(PluginOperation operation, PluginRequest request, long startNanos, String message) {
+        PluginResponse response = failedResponse(operation, request, message);
+        recordRequest(operation, response, startNanos);
+        return response;
+    }
+
+    // Records the outcome of a request in the request metrics, unless it is a warm-up read
+    private void recordRequest(PluginOperation operation, PluginResponse response, long startNanos) {
+        if (!isWarmupRead()) {
+            requestMetrics.record(operation, response, startNanos);
+        }
+    }
+
+    // Runs doWork under the concurrency limit, recording the outcome in the request metrics. Warm-up reads are
+    // not limited, so their times do not move the limit
+    private PluginResponse limitedWork(PluginOperation operation, PluginRequest request, long startNanos) {
+        PluginResponse response;
+        // read once, so a configuration reload cannot release a permit on a different limiter
+        ConcurrencyLimiter limiter = isWarmupRead() ? null : concurrencyLimiter;
+        // the limiter times from here, so time spent waiting in a bulkhead does not count as processing time
+        long limitStartNanos = System.nanoTime();
+        if (limiter != null && !limiter.tryAcquire()) {
+            // shed rather than queue, so the container gets an answer straight away
+            response = failedResponse(operation, request, "Plugin is processing its limit of " + limiter.getLimit() + " concurrent requests");
+            recordRequest(operation, response, startNanos);
+            return response;
+        }
+        try {
+            response = doWork(operation, request);
+        }
+        catch (RuntimeException ex) {
+            if (!isWarmupRead()) {
+                requestMetrics.recordException(operation, startNanos);
             }
-            else {
-                log.error("{}Read requests are not supported by this plugin", logPrefix);
-                throw new UnsupportedOperationException("Read requests are not supported by this plugin");
+            throw ex;
+        }
+        finally {
+            if (limiter != null) {
+                limiter.release(limitStartNanos);
             }
         }
-        if (request instanceof DeleteRequest deleteRequest) {
-            log.debug("{} - Delete Request", logPrefix);
-            if (supportedOperations.contains(PluginOperation.DELETE)) {
-                return doWork(deleteRequest);
+        recordRequest(operation, response, startNanos);
+        return response;
+    }
+
+    // Creates a FAILURE response of the right type for the operation
+    private static PluginResponse failedResponse(PluginOperation operation, PluginRequest request, String message) {
+        switch (operation) {
+            case CREATE:
+                return failedResponse(new CreateResponse(), request, message);
+            case UPDATE:
+                return failedResponse(new UpdateResponse(), request, message);
+            case READ:
+                return failedResponse(new ReadResponse(), request, message);
+            case DELETE:
+                return failedResponse(new DeleteResponse(), request, message);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    // Serves reads through the cache, and sends changes to the backend and drops the cached reads they affect
+    private PluginResponse doWork(PluginOperation operation, PluginRequest request) {
+        switch (operation) {
+            case CREATE:
+                return afterChange(callBackend(operation, request));
+            case UPDATE:
+            case DELETE:
+                return writeBehind(operation, request);
+            case READ:
+                return readWithIndex((ReadRequest) request);
+            default:
+                log.error("doWork() - Request class type not implemented");
+                throw new UnsupportedOperationException("Request class type not implemented");
+        }
+    }
+
+    // Journals an update or delete to be sent to the backend later and answers it straight away, or sends it
+    // now if write-behind is off for the operation or the queue cannot take it. A request is never sent directly
+    // while earlier writes to its object are waiting in the queue, as they would overwrite it when sent
+    private PluginResponse writeBehind(PluginOperation operation, PluginRequest request) {
+        WriteBehindQueue queue = writeBehind;
+        String objectId = operation == PluginOperation.UPDATE ? ((UpdateRequest) request).getObjectId() : ((DeleteRequest) request).getObjectId();
+        if (queue == null || objectId == null) {
+            return afterChange(callBackend(operation, request));
+        }
+        WriteBehindQueue.Submitted submitted;
+        if (writeBehindOperations.contains(operation)) {
+            submitted = queue.submit(objectId, request);
+        }
+        else {
+            submitted = queue.isPending(objectId) ? WriteBehindQueue.Submitted.REFUSED : WriteBehindQueue.Submitted.SEND_DIRECTLY;
+        }
+        if (submitted == WriteBehindQueue.Submitted.SEND_DIRECTLY) {
+            return afterChange(callBackend(operation, request));
+        }
+        if (submitted == WriteBehindQueue.Submitted.REFUSED) {
+            log.warn("writeBehind() - Refusing request {} as earlier writes to {} are still waiting to be sent", request.getRequestId(), objectId);
+            return failedResponse(operation, request, "Earlier writes to the object are still waiting to be sent, try again later");
+        }
+        PluginResponse response;
+        if (operation == PluginOperation.UPDATE) {
+            response = new UpdateResponse().setObjectDetails(((UpdateRequest) request).getObjectDetails());
+        }
+        else {
+            response = new DeleteResponse();
+        }
+        response.setRequestId(request.getRequestId()).setObjectId(objectId).setStatus(ResponseStatus.SUCCESS);
+        // cached reads are dropped now, but until the write is sent a read that goes to the backend still sees
+        // the old record
+        return afterChange(response);
+    }
+
+    // Sends a journalled update or delete to the backend, on a write-behind drain thread. Returns null without
+    // calling the backend while the circuit is open, so the queue retries it without counting an attempt
+    private PluginResponse writeBehindToBackend(PluginRequest request) {
+        PluginOperation operation = request instanceof UpdateRequest ? PluginOperation.UPDATE : PluginOperation.DELETE;
+        CircuitBreaker breaker = backendBreaker;
+        if (breaker == null) {
+            return afterChange(failedIfNull(operation, request, callDoWork(operation, request)));
+        }
+        if (!breaker.tryAcquire()) {
+            return null;
+        }
+        return afterChange(failedIfNull(operation, request, callAcquired(breaker, operation, request)));
+    }
+
+    // A null from doWork is a failure, as a null to the write-behind queue means the backend was not called
+    private static PluginResponse failedIfNull(PluginOperation operation, PluginRequest request, PluginResponse response) {
+        return response == null ? failedResponse(operation, request, "No response from the backend") : response;
+    }
+
+    // Calls the backend through the circuit breaker. While the circuit is open the request fails without a call
+    private PluginResponse callBackend(PluginOperation operation, PluginRequest request) {
+        // checked again just before the backend is called, as the deadline may have passed while the request
+        // waited for a bulkhead slot. Not counted by the circuit breaker, as the backend was never called
+        if (RequestDeadline.current().isExpired()) {
+            recordExpiredWaiting(request);
+            return failedResponse(operation, request, "Request deadline passed before the backend was called");
+        }
+        CircuitBreaker breaker = backendBreaker;
+        if (breaker == null) {
+            return callDoWork(operation, request);
+        }
+        if (!breaker.tryAcquire()) {
+            return failedResponse(operation, request, "Backend is unavailable, the circuit breaker is open");
+        }
+        return callAcquired(breaker, operation, request);
+    }
+
+    // Calls the backend once the circuit breaker has allowed the call, and records the outcome with it
+    private PluginResponse callAcquired(CircuitBreaker breaker, PluginOperation operation, PluginRequest request) {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        boolean cancelled = false;
+        try {
+            PluginResponse response = callDoWork(operation, request);
+            failed = response == null || response.getStatus() == ResponseStatus.FAILURE;
+            return response;
+        }
+        catch (CancellationException ex) {
+            // the caller stopped waiting, eg at its deadline, which says nothing about the backend
+            cancelled = true;
+            throw ex;
+        }
+        finally {
+            // recorded whatever the call ends with, including an Error, so a probe always gets its outcome
+            if (cancelled) {
+                breaker.onIgnored();
             }
             else {
-                log.error("{}Delete requests are not supported by this plugin", logPrefix);
-                throw new UnsupportedOperationException("Delete requests are not supported by this plugin");
+                breaker.onResult(startNanos, failed);
+            }
+        }
+    }
+
+    // Calls the doWork routine for the operation, via the batcher if batching is enabled
+    private PluginResponse callDoWork(PluginOperation operation, PluginRequest request) {
+        switch (operation) {
+            case CREATE:
+                return createBatcher == null ? doWork((CreateRequest) request) : awaitBatch(operation, request, createBatcher.submit((CreateRequest) request));
+            case UPDATE:
+                return doWork((UpdateRequest) request);
+            case READ:
+                return readBatcher == null ? hedgedRead((ReadRequest) request) : awaitBatch(operation, request, readBatcher.submit((ReadRequest) request));
+            case DELETE:
+                return doWork((DeleteRequest) request);
+            default:
+                throw new UnsupportedOperationException("Request class type not implemented");
+        }
+    }
+
+    // Serves reads from the response cache where possible. On a miss, identical reads already in flight are
+    // joined rather than repeated, and the result is cached. A warm-up read always goes on to the backend, so
+    // the warm-up never has to drop cached reads to reach it
+    private PluginResponse readThroughCache(ReadRequest request) {
+        final String logPrefix = "readThroughCache() - ";
+        String key = ResponseCache.keyFor(request);
+        if (key == null) {
+            return readFromBackend(request);
+        }
+        ResponseCache cache = readCache;
+        ReadResponse cached = isWarmupRead() ? null : cache.get(key, request.getRequestId());
+        if (cached != null) {
+            log.debug("{}Returning cached response for {}", logPrefix, key);
+            return cached;
+        }
+        ReadCoalescer coalescer = readCoalescer;
+        if (coalescer == null) {
+            return readAndCache(cache, key, request);
+        }
+        return coalescer.execute(key, request.getRequestId(), () -> readAndCache(cache, key, request));
+    }
+
+    // Calls doWork for a read that missed the cache, caching the result
+    private ReadResponse readAndCache(ResponseCache cache, String key, ReadRequest request) {
+        long generation = cache.generation();
+        ReadResponse response = readFromBackend(request);
+        if (response != null) {
+            cache.put(key, response, generation);
+        }
+        return response;
+    }
+
+    // Calls the backend for a read that could not be served from the cache
+    private ReadResponse readFromBackend(ReadRequest request) {
+        return (ReadResponse) callBackend(PluginOperation.READ, request);
+    }
+
+    // Calls doWork for a read, hedging it if hedging is enabled. Both attempts may run on hedge threads, so they
+    // are given the deadline and requestId of the request. Warm-up reads are not hedged, as their slow first
+    // reads would set the hedge delay
+    private ReadResponse hedgedRead(ReadRequest request) {
+        ReadHedger hedger = isWarmupRead() ? null : readHedger;
+        if (hedger == null) {
+            return doWork(request);
+        }
+        RequestDeadline deadline = RequestDeadline.current();
+        String requestId = MDC.get(MDC_REQUEST_ID);
+        Thread caller = Thread.currentThread();
+        Supplier<ReadResponse> attempt = () -> {
+            if (Thread.currentThread() == caller) {
+                // the hedge executor was full, so the read runs on the request's thread, which already has both
+                return doWork(request);
+            }
+            RequestDeadline.setCurrent(deadline);
+            if (requestId != null) {
+                MDC.put(MDC_REQUEST_ID, requestId);
             }
+            try {
+                return doWork(request);
+            }
+            finally {
+                RequestDeadline.clearCurrent();
+                MDC.remove(MDC_REQUEST_ID);
+            }
+        };
+        return hedger.execute(attempt, attempt);
+    }
+
+    // Waits for a batched request, rethrowing whatever the batch failed with. A request does not wait past its
+    // deadline, and is left out of its batch if the batch has not started by then
+    private PluginResponse awaitBatch(PluginOperation operation, PluginRequest request, CompletableFuture<? extends PluginResponse> future) {
+        RequestDeadline deadline = RequestDeadline.current();
+        try {
+            if (deadline == RequestDeadline.NONE) {
+                return future.join();
+            }
+            return future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+            future.cancel(false);
+            recordExpiredWaiting(request);
+            return failedResponse(operation, request, "Request deadline passed while waiting for its batch");
+        }
+        catch (InterruptedException ex) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            return failedResponse(operation, request, "Interrupted while waiting for its batch");
         }
+        catch (CompletionException | ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new CompletionException(ex.getCause());
+        }
+    }
 
-        log.error("{}Request class type not implemented", logPrefix);
-        throw new UnsupportedOperationException("Request class type not implemented");
+    // Drops any cached reads of an object that has been created, updated or deleted, and applies a successful
+    // change to the search index
+    private PluginResponse afterChange(PluginResponse response) {
+        if (response == null) {
+            return null;
+        }
+        readCache.invalidate(response.getObjectId());
+        if (response.getObjectId() != null) {
+            changeListener.accept(response.getObjectId());
+        }
+        SearchIndex index = currentSearchIndex();
+        if (index != null && response.getStatus() == ResponseStatus.SUCCESS) {
+            if (response instanceof CreateResponse createResponse) {
+                index.put(response.getObjectId(), createResponse.getObjectDetails());
+            }
+            else if (response instanceof UpdateResponse updateResponse) {
+                index.put(response.getObjectId(), updateResponse.getObjectDetails());
+            }
+            else if (response instanceof DeleteResponse) {
+                index.remove(response.getObjectId());
+            }
+        }
+        return response;
+    }
+
+    // The search index requests use, which for a shard may be kept by another shard
+    private SearchIndex currentSearchIndex() {
+        DemoPluginWorker owner = searchIndexShard;
+        return owner == null ? searchIndex : owner.searchIndex;
+    }
+
+    // Answers reads by search parameters from the search index where it can. A single match becomes a read by
+    // objectId, which the read cache can serve
+    private PluginResponse readWithIndex(ReadRequest request) {
+        SearchIndex index = currentSearchIndex();
+        if (index == null || (request.getObjectId() != null && !request.getObjectId().isEmpty())) {
+            return readThroughCache(request);
+        }
+        List<String> matches = index.search(request.getSearchParameters());
+        if (matches == null) {
+            return readThroughCache(request);
+        }
+        if (matches.size() == 1) {
+            ReadRequest byObjectId = new ReadRequest().setObjectId(matches.get(0));
+            byObjectId.setRequestId(request.getRequestId()).setRequestDate(request.getRequestDate());
+            return readThroughCache(byObjectId);
+        }
+        ReadResponse response = new ReadResponse();
+        response.setRequestId(request.getRequestId());
+        if (matches.isEmpty()) {
+            response.setStatus(ResponseStatus.RECORD_NOT_FOUND).setErrorMessage("No record matches the search parameters");
+        }
+        else {
+            response.setStatus(ResponseStatus.MULTIPLE_RECORDS).setErrorMessage(matches.size() + " records match the search parameters");
+        }
+        return response;
     }
 
     @Override
     public List<PluginOperation> getValidOperations() {
+        final String logPrefix = "getValidOperations() - ";
+        try {
+            awaitReady();
+        }
+        catch (IllegalStateException ex) {
+            log.error("{}{}", logPrefix, ex.getMessage());
+            return Collections.emptyList();
+        }
         return supportedOperations;
     }
 
@@ -399,6 +1849,8 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
         this.container = containerInterface;
     }
 
+    // The sources jar is read on the first call and shared by every call after that, so the
+    // container must not modify the returned array
     @Override
     public SourceContainer getSourceCode() {
         final String logPrefix = "getSourceCode() - ";
@@ -408,14 +1860,14 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
         SourceContainer sc = new SourceContainer();
         sc.setUsesAGPL(true);
 
-        String fileName = buildArtifact + "-" + buildVersion + "-sources.jar";
+        String fileName = sourceArtifact.getFileName();
         log.debug("{}Reading source file from ClassPath: {}", logPrefix, fileName);
         byte[] sourceCode = null;
         try {
-            sourceCode = this.getClass().getResourceAsStream("/" + fileName).readAllBytes();
+            sourceCode = sourceArtifact.getBytes();
         }
         catch (IOException ex) {
-            log.error("{}Exception reading source", logPrefix);
+            log.error("{}Exception reading source", logPrefix, ex);
         }
         sc.setSourceFileName(fileName);
         sc.setSourceJar(sourceCode);
@@ -423,10 +1875,40 @@ public class DemoPluginWorker implements PlatformConnectorPlugin {
         return sc;
 
     }
-    
+
+    @Override
+    public String getSourceCodeHash() {
+        final String logPrefix = "getSourceCodeHash() - ";
+        try {
+            return sourceArtifact.getHash();
+        }
+        catch (IOException ex) {
+            log.error("{}Exception reading source", logPrefix, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public InputStream openSourceCode() throws IOException {
+        return sourceArtifact.openStream();
+    }
+
+    // The codec is built from the schema declared in pluginSetup, so these wait for setup to finish
+    @Override
+    public byte[] encodeObjectDetails(Map<String, Serializable> objectDetails) {
+        awaitReady();
+        return detailsSchema.codec().encode(objectDetails);
+    }
+
+    @Override
+    public Map<String, Serializable> decodeObjectDetails(byte[] encoded) {
+        awaitReady();
+        return detailsSchema.codec().decode(encoded);
+    }
+
     @Override
     public boolean isSourceAvailable() {
-        return true;
+        return sourceArtifact.isAvailable();
     }
 
 }
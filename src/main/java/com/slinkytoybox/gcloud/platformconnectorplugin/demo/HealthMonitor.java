@@ -0,0 +1,205 @@
+/*
+ *   platformconnectorplugindemo - HealthMonitor.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the plugin health as a prebuilt snapshot, so container polls are
+ * answered from a single volatile read without building anything.
+ *
+ * The snapshot is rebuilt in the background at a fixed interval so metrics
+ * stay current, and immediately when a component reports a change through
+ * refreshNow(). When the overall health state changes, the new health is
+ * pushed to the container, but only once the new state has held for the
+ * debounce period, so a component flapping between states does not flood
+ * the container.
+ *
+ * Published snapshots are never modified, and callers must not modify them
+ * either.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class HealthMonitor {
+
+    private static final HealthResult NOT_STARTED = new HealthResult()
+            .setOverallStatus(new HealthStatus().setHealthState(HealthState.UNKNOWN).setHealthComment("Plugin has not started"));
+
+    private final Supplier<HealthResult> builder;
+    private final Consumer<HealthResult> pusher;
+    private final long refreshIntervalMillis;
+    private final long debounceNanos;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile HealthResult snapshot = NOT_STARTED;
+
+    // Only touched on the scheduler thread
+    private HealthState pushedState = null;
+    private HealthState pendingState = null;
+    private long pendingSince = 0;
+
+    /**
+     * @param name prefix for the monitor thread name
+     * @param builder builds a complete health result
+     * @param pusher sends a health result to the container
+     * @param refreshIntervalMillis how often the snapshot is rebuilt
+     * @param debounceMillis how long a new overall state must hold before it
+     * is pushed
+     */
+    HealthMonitor(String name, Supplier<HealthResult> builder, Consumer<HealthResult> pusher, long refreshIntervalMillis, long debounceMillis) {
+        this.builder = builder;
+        this.pusher = pusher;
+        this.refreshIntervalMillis = Math.max(10, refreshIntervalMillis);
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, debounceMillis));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(PluginExecutors.namedDaemonThreads(name + "-health"));
+    }
+
+    /**
+     * Builds the first snapshot on the calling thread and starts the
+     * background refresh. The initial state is not pushed, as the container
+     * polls for it once the plugin has started.
+     */
+    void start() {
+        HealthResult first = builder.get();
+        snapshot = first;
+        pushedState = stateOf(first);
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The current health snapshot. Does not allocate.
+     *
+     * @return the snapshot
+     */
+    HealthResult getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Requests an immediate rebuild, eg because a component changed state.
+     * Returns straight away; the rebuild runs on the monitor thread.
+     */
+    void refreshNow() {
+        submit(this::refresh);
+    }
+
+    /**
+     * Rebuilds the snapshot and pushes it to the container whatever the
+     * state.
+     */
+    void pushNow() {
+        submit(() -> {
+            HealthResult result = rebuild();
+            pendingState = null;
+            pushedState = stateOf(result);
+            push(result);
+        });
+    }
+
+    /**
+     * Stops the background refresh. The final health becomes the snapshot
+     * returned from then on.
+     *
+     * @param finalHealth
+     */
+    void stop(HealthResult finalHealth) {
+        scheduler.shutdownNow();
+        snapshot = finalHealth;
+    }
+
+    private void submit(Runnable task) {
+        if (!scheduler.isShutdown()) {
+            try {
+                scheduler.execute(task);
+            }
+            catch (RejectedExecutionException ex) {
+                // stopped between the check and the submit
+            }
+        }
+    }
+
+    private void refresh() {
+        final String logPrefix = "refresh() - ";
+        HealthResult result;
+        try {
+            result = rebuild();
+        }
+        catch (RuntimeException ex) {
+            log.error("{}Unable to build plugin health", logPrefix, ex);
+            return;
+        }
+        HealthState state = stateOf(result);
+        if (pushedState == null) {
+            // refresh requested before start(), take this as the initial state
+            pushedState = state;
+            return;
+        }
+        if (state == pushedState) {
+            pendingState = null;
+            return;
+        }
+        long now = System.nanoTime();
+        if (state != pendingState) {
+            pendingState = state;
+            pendingSince = now;
+        }
+        long held = now - pendingSince;
+        if (held >= debounceNanos) {
+            log.info("{}Overall health changed from {} to {}", logPrefix, pushedState, state);
+            pushedState = state;
+            pendingState = null;
+            push(result);
+        }
+        else {
+            // check again once the debounce period is up, rather than waiting for the next interval
+            scheduler.schedule(this::refresh, debounceNanos - held, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private HealthResult rebuild() {
+        HealthResult result = builder.get();
+        snapshot = result;
+        return result;
+    }
+
+    private void push(HealthResult result) {
+        final String logPrefix = "push() - ";
+        try {
+            pusher.accept(result);
+        }
+        catch (RuntimeException ex) {
+            log.error("{}Unable to push plugin health to the container", logPrefix, ex);
+        }
+    }
+
+    private static HealthState stateOf(HealthResult result) {
+        return result.getOverallStatus() == null ? HealthState.UNKNOWN : result.getOverallStatus().getHealthState();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *   platformconnectorplugindemo - LatencyHistogram.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of
+ * HdrHistogram. Each power of two range is split into 32 linear sub-buckets,
+ * giving roughly 3% precision from 1 microsecond up to about 12 days.
+ *
+ * The buckets are striped: each thread records into one of a few bucket
+ * arrays picked by its thread id, and the count, sum and maximum are
+ * LongAdders, so threads recording at the same time rarely touch the same
+ * cache line. Recording does not allocate, so it is safe to leave enabled on
+ * the request path. Reading percentiles merges the stripes and is intended for
+ * health polls only.
+ *
+ * The histogram counts everything recorded since it was created. Use
+ * RollingLatencyHistogram for figures covering recent recording only.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    // a power of two, at most 4 as each stripe is about 9KB
+    private static final int STRIPES = Math.min(4, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Records a value, normally a latency in microseconds. Negative values are
+     * recorded as 0 and values beyond the range are clamped.
+     *
+     * @param value
+     */
+    void record(long value) {
+        long clamped = value < 0 ? 0 : Math.min(value, MAX_VALUE);
+        stripeForCurrentThread().incrementAndGet(indexFor(clamped));
+        total.increment();
+        sum.add(clamped);
+        max.accumulate(clamped);
+    }
+
+    /**
+     * Clears the histogram without allocating. A value recorded at the same
+     * time may be partly kept, so this is for a histogram nothing should be
+     * recording into any more, such as a retired RollingLatencyHistogram slot.
+     */
+    void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    long getCount() {
+        return total.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0.0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the value at the given percentile. Concurrent recording may
+     * shift the result slightly but never makes it invalid.
+     *
+     * @param percentile between 0 and 100
+     * @return the highest value equivalent to the bucket holding the
+     * percentile, or 0 if nothing has been recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        return snapshot().getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Copies the histogram, so several figures can be read from the same
+     * counts.
+     *
+     * @return the copy
+     */
+    Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        addTo(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Adds the counts of this histogram to a snapshot, which then covers
+     * both.
+     *
+     * @param snapshot
+     */
+    void addTo(Snapshot snapshot) {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = stripe.get(i);
+                snapshot.counts[i] += count;
+                snapshot.count += count;
+            }
+        }
+        snapshot.sum += sum.sum();
+        snapshot.max = Math.max(snapshot.max, max.get());
+    }
+
+    private AtomicLongArray stripeForCurrentThread() {
+        long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (hash >>> 32) & (STRIPES - 1)];
+    }
+
+    private static int indexFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = (index % SUB_BUCKETS) + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Point in time copy of one or more histograms. Not thread safe.
+     */
+    static final class Snapshot {
+
+        private final long[] counts = new long[BUCKETS];
+        private long count = 0;
+        private long sum = 0;
+        private long max = 0;
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the highest value equivalent to the bucket holding the
+         * percentile, or 0 if nothing has been recorded
+         */
+        long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueIn(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
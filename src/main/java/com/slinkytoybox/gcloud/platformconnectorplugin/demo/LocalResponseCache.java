@@ -0,0 +1,345 @@
+/*
+ *   platformconnectorplugindemo - LocalResponseCache.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory ResponseCache with time to live and a bound on the number of
+ * entries.
+ *
+ * Entries are spread over a fixed number of segments, each an access ordered
+ * LRU map guarded by its own lock, so concurrent reads of different records
+ * rarely contend. Each segment holds at most maxEntries / segments entries and
+ * evicts its least recently used entry when full. RECORD_NOT_FOUND responses
+ * are cached with their own, normally shorter, time to live.
+ *
+ * Each response is cached against the objectId it holds, or for a read by id
+ * that found nothing, the id read. A put is dropped if that objectId has been
+ * invalidated since the generation passed to it was read, so a change to one
+ * object never stops responses for others being cached. Invalidation times are
+ * kept per stripe of objectIds rather than per objectId, so the memory used
+ * does not grow with the number of objects changed, at the cost of an
+ * occasional put being dropped for a change to another object in the stripe.
+ * A RECORD_NOT_FOUND search has no objectId, and any change may create the
+ * record it looked for, so these are dropped on every invalidation.
+ *
+ * Given a codec, the objectDetails are held encoded, which takes a fraction
+ * of the memory of a HashMap but decodes a new map on every hit. Without one
+ * every hit shares a single unmodifiable map.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class LocalResponseCache implements ResponseCache {
+
+    private static final String ID_PREFIX = "id:";
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final ObjectDetailsCodec codec;
+
+    private static final int STRIPES = 256;
+
+    // objectId to the keys it is cached under, so searches can be invalidated along with reads by id. The sets
+    // are only changed inside the map's compute methods
+    private final Map<String, Set<String>> keysByObjectId = new ConcurrentHashMap<>();
+    // keys of RECORD_NOT_FOUND searches, which have no objectId to be invalidated by
+    private final Set<String> searchMissKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong generation = new AtomicLong();
+
+    // Generation at which objectIds in each stripe were last invalidated, guarded by the stripe lock. A put
+    // holds the lock of its objectId while it checks this and adds the entry, so an invalidation cannot run
+    // between the two. Stripe locks are always taken before segment locks
+    private final long[] invalidatedAt = new long[STRIPES];
+    private final Object[] stripeLocks = new Object[STRIPES];
+    // Generation of the last invalidation of any object, guarded by searchMissLock
+    private long searchMissInvalidatedAt = 0;
+    private final Object searchMissLock = new Object();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxEntries maximum cached responses across all segments
+     * @param segments number of segments, rounded up to a power of two
+     * @param ttlMillis time to live for SUCCESS responses
+     * @param negativeTtlMillis time to live for RECORD_NOT_FOUND responses, 0
+     * to not cache them
+     * @param codec encodes the cached objectDetails, or null to hold them as
+     * maps
+     */
+    LocalResponseCache(int maxEntries, int segments, long ttlMillis, long negativeTtlMillis, ObjectDetailsCodec codec) {
+        int segmentCount = Integer.highestOneBit(Math.max(1, segments - 1)) << 1;
+        if (segments <= 1) {
+            segmentCount = 1;
+        }
+        int perSegment = Math.max(1, maxEntries / segmentCount);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment(perSegment);
+        }
+        this.segmentMask = segmentCount - 1;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.negativeTtlNanos = negativeTtlMillis * 1_000_000L;
+        this.codec = codec;
+        for (int i = 0; i < STRIPES; i++) {
+            stripeLocks[i] = new Object();
+        }
+    }
+
+    @Override
+    public ReadResponse get(String key, String requestId) {
+        Segment segment = segmentFor(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+                segment.remove(key);
+                removeAlias(entry.owner, key);
+                expirations.increment();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        ReadResponse response = new ReadResponse();
+        response.setObjectDetails(entry.encodedDetails == null ? entry.objectDetails : codec.decode(entry.encodedDetails))
+                .setRequestId(requestId)
+                .setStatus(entry.status)
+                .setObjectId(entry.objectId)
+                .setErrorMessage(entry.errorMessage);
+        return response;
+    }
+
+    @Override
+    public long generation() {
+        return generation.get();
+    }
+
+    @Override
+    public void put(String key, ReadResponse response, long readGeneration) {
+        long ttl;
+        if (response.getStatus() == ResponseStatus.SUCCESS) {
+            ttl = ttlNanos;
+        }
+        else if (response.getStatus() == ResponseStatus.RECORD_NOT_FOUND) {
+            ttl = negativeTtlNanos;
+        }
+        else {
+            return;
+        }
+        if (ttl <= 0) {
+            return;
+        }
+        Map<String, Serializable> details = null;
+        byte[] encodedDetails = null;
+        if (response.getObjectDetails() != null) {
+            if (codec == null) {
+                details = Collections.unmodifiableMap(new HashMap<>(response.getObjectDetails()));
+            }
+            else {
+                try {
+                    encodedDetails = codec.encode(response.getObjectDetails());
+                }
+                catch (IllegalArgumentException ex) {
+                    // a value the codec cannot encode, so these details are held as a map
+                    details = Collections.unmodifiableMap(new HashMap<>(response.getObjectDetails()));
+                }
+            }
+        }
+        String owner = response.getObjectId();
+        if (owner == null && key.startsWith(ID_PREFIX)) {
+            owner = key.substring(ID_PREFIX.length());
+        }
+        Entry entry = new Entry(owner, response.getObjectId(), response.getStatus(), response.getErrorMessage(), details, encodedDetails, System.nanoTime() + ttl);
+        if (owner == null) {
+            synchronized (searchMissLock) {
+                // an object was changed while this search was being read, and may now match it
+                if (searchMissInvalidatedAt > readGeneration) {
+                    return;
+                }
+                store(key, entry);
+                searchMissKeys.add(key);
+            }
+            return;
+        }
+        int stripe = stripeFor(owner);
+        synchronized (stripeLocks[stripe]) {
+            // the object was updated or deleted while this response was being read, so it may be stale
+            if (invalidatedAt[stripe] > readGeneration) {
+                return;
+            }
+            store(key, entry);
+            String alias = key;
+            keysByObjectId.compute(owner, (id, keys) -> {
+                Set<String> aliases = keys == null ? new HashSet<>() : keys;
+                aliases.add(alias);
+                return aliases;
+            });
+        }
+    }
+
+    @Override
+    public void invalidate(String objectId) {
+        if (objectId == null) {
+            return;
+        }
+        long now = generation.incrementAndGet();
+        invalidations.increment();
+        int stripe = stripeFor(objectId);
+        synchronized (stripeLocks[stripe]) {
+            invalidatedAt[stripe] = Math.max(invalidatedAt[stripe], now);
+            Set<String> keys = keysByObjectId.remove(objectId);
+            removeKey(ID_PREFIX + objectId);
+            if (keys != null) {
+                for (String key : keys) {
+                    removeKey(key);
+                }
+            }
+        }
+        synchronized (searchMissLock) {
+            searchMissInvalidatedAt = Math.max(searchMissInvalidatedAt, now);
+            for (String key : searchMissKeys) {
+                removeKey(key);
+            }
+            searchMissKeys.clear();
+        }
+    }
+
+    @Override
+    public void addHealthMetrics(List<HealthMetric> metrics) {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        metrics.add(new HealthMetric().setMetricName("readCacheSize").setMetricValue(size));
+        metrics.add(new HealthMetric().setMetricName("readCacheHits").setMetricValue(hits.sum()));
+        metrics.add(new HealthMetric().setMetricName("readCacheMisses").setMetricValue(misses.sum()));
+        metrics.add(new HealthMetric().setMetricName("readCacheEvictions").setMetricValue(evictions.sum()));
+        metrics.add(new HealthMetric().setMetricName("readCacheExpirations").setMetricValue(expirations.sum()));
+        metrics.add(new HealthMetric().setMetricName("readCacheInvalidations").setMetricValue(invalidations.sum()));
+    }
+
+    // Adds an entry, dropping the alias of any entry it replaces. Callers hold the lock for the entry's owner
+    private void store(String key, Entry entry) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry previous = segment.put(key, entry);
+            if (previous != null) {
+                removeAlias(previous.owner, key);
+            }
+        }
+    }
+
+    private void removeKey(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    private void removeAlias(String owner, String key) {
+        if (owner == null) {
+            searchMissKeys.remove(key);
+            return;
+        }
+        keysByObjectId.computeIfPresent(owner, (id, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private static int stripeFor(String objectId) {
+        int hash = objectId.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & segmentMask];
+    }
+
+    private static final class Entry {
+
+        // objectId the entry is invalidated by, null for a search that found nothing
+        private final String owner;
+        private final String objectId;
+        private final ResponseStatus status;
+        private final String errorMessage;
+        private final Map<String, Serializable> objectDetails;
+        private final byte[] encodedDetails;
+        private final long expiresAt;
+
+        private Entry(String owner, String objectId, ResponseStatus status, String errorMessage, Map<String, Serializable> objectDetails, byte[] encodedDetails, long expiresAt) {
+            this.owner = owner;
+            this.objectId = objectId;
+            this.status = status;
+            this.errorMessage = errorMessage;
+            this.objectDetails = objectDetails;
+            this.encodedDetails = encodedDetails;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Access ordered map which drops its least recently used entry once full. Callers hold the segment lock.
+    private final class Segment extends LinkedHashMap<String, Entry> {
+
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        private Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= maxEntries) {
+                return false;
+            }
+            evictions.increment();
+            removeAlias(eldest.getValue().owner, eldest.getKey());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *   platformconnectorplugindemo - MicroBatcher.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Groups individual requests of one operation into batches for a bulk
+ * backend call.
+ *
+ * A collector thread takes the first queued request, then keeps adding
+ * requests until the batch is full or the window since the first request has
+ * passed. The batch is run on a separate executor so the next batch can be
+ * collected while it is in flight, and the responses are matched back to the
+ * waiting callers by their position in the batch, so requests sharing a
+ * requestId, or with none, still get their own responses. A request whose
+ * caller has stopped waiting before its batch runs is left out of the batch.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ * @param <Q> request type
+ * @param <R> response type
+ */
+@Slf4j
+final class MicroBatcher<Q extends PluginRequest, R extends PluginResponse> {
+
+    private final String name;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final Function<List<Q>, List<R>> batchHandler;
+    private final BiFunction<Q, String, R> failureResponse;
+    private final ExecutorService batchExecutor;
+    private final BlockingQueue<Pending<Q, R>> queue;
+    private final Thread collector;
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts the batcher.
+     *
+     * @param threadName prefix for the collector thread name
+     * @param name operation name used for metrics and the collector thread
+     * @param maxBatchSize most requests in a single batch
+     * @param windowMicros longest a request waits for its batch to fill
+     * @param queueSize most requests waiting to be batched
+     * @param batchHandler the bulk doWork routine, returning the responses
+     * in the same order as the requests
+     * @param failureResponse builds a FAILURE response for a request with no
+     * result in its batch
+     * @param batchExecutor executor the batches are run on
+     */
+    MicroBatcher(String threadName, String name, int maxBatchSize, long windowMicros, int queueSize, Function<List<Q>, List<R>> batchHandler, BiFunction<Q, String, R> failureResponse, ExecutorService batchExecutor) {
+        this.name = name;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.batchHandler = batchHandler;
+        this.failureResponse = failureResponse;
+        this.batchExecutor = batchExecutor;
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+        this.collector = PluginExecutors.namedDaemonThreads(threadName + "-" + name + "-batch-collector").newThread(this::collect);
+        this.collector.start();
+    }
+
+    /**
+     * Queues a request for the next batch.
+     *
+     * @param request
+     * @return future completed with the request's response once its batch has
+     * run. Cancelling it before the batch runs leaves the request out of the
+     * batch
+     */
+    CompletableFuture<R> submit(Q request) {
+        Pending<Q, R> pending = new Pending<>(request);
+        if (!running) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException(name + " batcher is stopped"));
+        }
+        if (!queue.offer(pending)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException(name + " batch queue is full"));
+        }
+        // stop() may have run since the check above, and the collector may have drained the queue and finished
+        // before the request was added. If the request is still queued it is taken back, as no one may run it
+        if (!running && queue.remove(pending)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException(name + " batcher is stopped"));
+        }
+        return pending.future;
+    }
+
+    /**
+     * Stops collecting, running whatever is still queued as final batches.
+     * Once the collector has finished, any request still queued is failed
+     * rather than left waiting.
+     *
+     * @param timeoutMillis how long to wait for the collector to finish
+     */
+    void stop(long timeoutMillis) {
+        final String logPrefix = "stop() - ";
+        running = false;
+        collector.interrupt();
+        try {
+            collector.join(timeoutMillis);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (collector.isAlive()) {
+            log.warn("{}{} batch collector did not finish within {}ms", logPrefix, name, timeoutMillis);
+            return;
+        }
+        // nothing runs what is still queued once the collector has finished, so its callers are answered here
+        Pending<Q, R> left;
+        while ((left = queue.poll()) != null) {
+            left.future.completeExceptionally(new RejectedExecutionException(name + " batcher is stopped"));
+        }
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        metrics.add(new HealthMetric().setMetricName(name + "Batches").setMetricValue(batchSizes.getCount()));
+        metrics.add(new HealthMetric().setMetricName(name + "BatchQueued").setMetricValue(queue.size()));
+        metrics.add(new HealthMetric().setMetricName(name + "BatchSizeMean").setMetricValue(batchSizes.getMean()));
+        metrics.add(new HealthMetric().setMetricName(name + "BatchSizeP50").setMetricValue(batchSizes.getValueAtPercentile(50)));
+        metrics.add(new HealthMetric().setMetricName(name + "BatchSizeP95").setMetricValue(batchSizes.getValueAtPercentile(95)));
+        metrics.add(new HealthMetric().setMetricName(name + "BatchSizeMax").setMetricValue(batchSizes.getMax()));
+    }
+
+    private void collect() {
+        final String logPrefix = "collect() - ";
+        log.debug("{}{} batch collector started", logPrefix, name);
+        while (running || !queue.isEmpty()) {
+            List<Pending<Q, R>> batch = new ArrayList<>(maxBatchSize);
+            try {
+                Pending<Q, R> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    Pending<Q, R> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            }
+            catch (InterruptedException ex) {
+                // stop() interrupts to cut the current window short. The batch collected so far still runs, and the
+                // loop drains anything left
+            }
+            if (!batch.isEmpty()) {
+                dispatch(batch);
+            }
+        }
+        log.debug("{}{} batch collector stopped", logPrefix, name);
+    }
+
+    private void dispatch(List<Pending<Q, R>> batch) {
+        try {
+            batchExecutor.execute(() -> run(batch));
+        }
+        catch (RejectedExecutionException ex) {
+            // executor is saturated or shutting down, so run it here rather than dropping the batch
+            run(batch);
+        }
+    }
+
+    private void run(List<Pending<Q, R>> collected) {
+        final String logPrefix = "run() - ";
+        List<Pending<Q, R>> batch = new ArrayList<>(collected.size());
+        for (Pending<Q, R> pending : collected) {
+            // the caller has stopped waiting, eg its deadline passed, so it is not sent to the backend
+            if (!pending.future.isDone()) {
+                batch.add(pending);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batchSizes.record(batch.size());
+        List<Q> requests = new ArrayList<>(batch.size());
+        for (Pending<Q, R> pending : batch) {
+            requests.add(pending.request);
+        }
+
+        List<R> responses;
+        try {
+            responses = batchHandler.apply(requests);
+        }
+        catch (RuntimeException ex) {
+            log.error("{}{} batch of {} failed", logPrefix, name, batch.size(), ex);
+            for (Pending<Q, R> pending : batch) {
+                pending.future.completeExceptionally(ex);
+            }
+            return;
+        }
+
+        int returned = responses == null ? 0 : responses.size();
+        if (returned != batch.size()) {
+            log.warn("{}{} batch of {} returned {} responses", logPrefix, name, batch.size(), returned);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Pending<Q, R> pending = batch.get(i);
+            R response = i < returned ? responses.get(i) : null;
+            if (response == null) {
+                log.warn("{}{} batch returned no response for request {}", logPrefix, name, pending.request.getRequestId());
+                response = failureResponse.apply(pending.request, "No response was returned for this request by the batch operation");
+            }
+            pending.future.complete(response);
+        }
+    }
+
+    private static final class Pending<Q, R> {
+
+        private final Q request;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+
+        private Pending(Q request) {
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ *   platformconnectorplugindemo - ObjectDetailsCodec.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compact binary encoding of objectDetails maps, built from an
+ * ObjectDetailsSchema.
+ *
+ * Field names declared in the schema are written as a small integer id, and
+ * a field holding its schema constant is written as the id alone. Strings
+ * are written as UTF-8, numbers as variable length integers and booleans in
+ * the type byte, so nothing is boxed or described by class name. Fields not
+ * in the schema are written with their name, and values of any other type
+ * fall back to Java serialisation.
+ *
+ * Encoded details may come from outside the plugin, so Java serialised values
+ * are limited to JDK value types: classes in java.lang, java.math, java.time
+ * and java.util, and arrays of them, in small object graphs. Anything else is
+ * refused by both encode and decode, so no other class is ever created from
+ * the bytes.
+ *
+ * The ids come from the order fields were declared, so the encoding is only
+ * readable by a codec built from the same schema, in practice the running
+ * plugin. It is not meant for storing details across restarts.
+ *
+ * Encode buffers are pooled by the codec rather than held in thread locals,
+ * so container threads never keep plugin classes alive. Encoding allocates
+ * only the returned array. Codecs are thread safe.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class ObjectDetailsCodec {
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_TRUE = 4;
+    private static final int TYPE_FALSE = 5;
+    private static final int TYPE_DOUBLE = 6;
+    private static final int TYPE_FLOAT = 7;
+    private static final int TYPE_SHORT = 8;
+    private static final int TYPE_BYTE = 9;
+    private static final int TYPE_CHAR = 10;
+    private static final int TYPE_CONSTANT = 11;
+    private static final int TYPE_SERIALIZED = 12;
+
+    // buffers that grew past this are not kept for reuse
+    private static final int MAX_KEPT_BUFFER = 64 * 1024;
+    private static final int BUFFER_SLOTS = 16;
+
+    // packages whose classes may be Java serialised in details
+    private static final Set<String> VALUE_PACKAGES = Set.of("java.lang", "java.math", "java.time", "java.util");
+    private static final int MAX_SERIALIZED_DEPTH = 16;
+    private static final long MAX_SERIALIZED_REFERENCES = 10000;
+    private static final long MAX_SERIALIZED_ARRAY = 65536;
+    // Limits Java deserialisation to JDK value types in small object graphs. Used wherever the plugin reads Java
+    // serialised details, so every path shares one allow-list
+    static final ObjectInputFilter VALUE_FILTER = info -> {
+        if (info.depth() > MAX_SERIALIZED_DEPTH || info.references() > MAX_SERIALIZED_REFERENCES || info.arrayLength() > MAX_SERIALIZED_ARRAY) {
+            return ObjectInputFilter.Status.REJECTED;
+        }
+        if (info.serialClass() == null) {
+            return ObjectInputFilter.Status.UNDECIDED;
+        }
+        return isValueType(info.serialClass()) ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED;
+    };
+
+    // a thread takes the buffer in the slot for its id, or makes a new one if another thread has it
+    private final AtomicReferenceArray<Output> buffers = new AtomicReferenceArray<>(BUFFER_SLOTS);
+
+    private final String[] names;
+    private final Serializable[] constants;
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /**
+     * @param names field names, in id order
+     * @param constants the constant value of each field, or null for fields
+     * whose value varies
+     */
+    ObjectDetailsCodec(String[] names, Serializable[] constants) {
+        this.names = names.clone();
+        this.constants = constants.clone();
+        for (int i = 0; i < names.length; i++) {
+            ids.putIfAbsent(names[i], i);
+        }
+    }
+
+    /**
+     * Encodes a details map.
+     *
+     * @param details map to encode, may be null
+     * @return the encoded details
+     */
+    byte[] encode(Map<String, ? extends Serializable> details) {
+        int slot = (int) (Thread.currentThread().getId() & (BUFFER_SLOTS - 1));
+        Output out = buffers.getAndSet(slot, null);
+        if (out == null) {
+            out = new Output();
+        }
+        out.reset();
+        if (details == null) {
+            out.writeVarInt(0);
+        }
+        else {
+            out.writeVarInt(details.size() + 1);
+            for (Map.Entry<String, ? extends Serializable> field : details.entrySet()) {
+                writeField(out, field.getKey(), field.getValue());
+            }
+        }
+        byte[] encoded = Arrays.copyOf(out.bytes, out.length);
+        if (out.bytes.length <= MAX_KEPT_BUFFER) {
+            buffers.set(slot, out);
+        }
+        return encoded;
+    }
+
+    /**
+     * Decodes details encoded by this codec.
+     *
+     * @param encoded
+     * @return a new details map, or null if null was encoded
+     * @throws IllegalArgumentException if the bytes are not valid
+     */
+    Map<String, Serializable> decode(byte[] encoded) {
+        Input in = new Input(encoded);
+        int count = in.readVarInt() - 1;
+        if (count == -1) {
+            return null;
+        }
+        // every field takes at least an id and a type byte. The count sizes the map, so a count the bytes cannot
+        // hold is refused before anything is allocated for it
+        if (count > (encoded.length - in.position) / 2) {
+            throw new IllegalArgumentException("Encoded details claim " + count + " fields in " + encoded.length + " bytes");
+        }
+        Map<String, Serializable> details = new HashMap<>((int) Math.ceil(count / 0.75));
+        for (int i = 0; i < count; i++) {
+            int id = in.readVarInt() - 1;
+            String name = id < 0 ? in.readString() : nameFor(id);
+            int type = in.readByte();
+            details.put(name, type == TYPE_CONSTANT ? constantFor(id) : readValue(in, type));
+        }
+        if (in.position != encoded.length) {
+            throw new IllegalArgumentException("Encoded details have " + (encoded.length - in.position) + " trailing bytes");
+        }
+        return details;
+    }
+
+    private void writeField(Output out, String name, Serializable value) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            out.writeVarInt(0);
+            out.writeString(name);
+        }
+        else {
+            out.writeVarInt(id + 1);
+            if (value != null && value.equals(constants[id])) {
+                out.writeByte(TYPE_CONSTANT);
+                return;
+            }
+        }
+        writeValue(out, value);
+    }
+
+    private static void writeValue(Output out, Serializable value) {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        }
+        else if (value instanceof String string) {
+            out.writeByte(TYPE_STRING);
+            out.writeString(string);
+        }
+        else if (value instanceof Integer number) {
+            out.writeByte(TYPE_INT);
+            out.writeVarLong(zigZag(number));
+        }
+        else if (value instanceof Long number) {
+            out.writeByte(TYPE_LONG);
+            out.writeVarLong(zigZag(number));
+        }
+        else if (value instanceof Boolean flag) {
+            out.writeByte(flag ? TYPE_TRUE : TYPE_FALSE);
+        }
+        else if (value instanceof Double number) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits(number));
+        }
+        else if (value instanceof Float number) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeInt(Float.floatToRawIntBits(number));
+        }
+        else if (value instanceof Short number) {
+            out.writeByte(TYPE_SHORT);
+            out.writeVarLong(zigZag(number));
+        }
+        else if (value instanceof Byte number) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte(number & 0xFF);
+        }
+        else if (value instanceof Character character) {
+            out.writeByte(TYPE_CHAR);
+            out.writeVarInt(character);
+        }
+        else {
+            out.writeByte(TYPE_SERIALIZED);
+            byte[] serialized = serialize(value);
+            out.writeVarInt(serialized.length);
+            out.writeBytes(serialized, serialized.length);
+        }
+    }
+
+    private static Serializable readValue(Input in, int type) {
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return in.readString();
+            case TYPE_INT:
+                return (int) unZigZag(in.readVarLong());
+            case TYPE_LONG:
+                return unZigZag(in.readVarLong());
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case TYPE_FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case TYPE_SHORT:
+                return (short) unZigZag(in.readVarLong());
+            case TYPE_BYTE:
+                return (byte) in.readByte();
+            case TYPE_CHAR:
+                return (char) in.readVarInt();
+            case TYPE_SERIALIZED:
+                return deserialize(in.readBytes(in.readVarInt()));
+            default:
+                throw new IllegalArgumentException("Unknown value type " + type + " in encoded details");
+        }
+    }
+
+    private String nameFor(int id) {
+        if (id >= names.length) {
+            throw new IllegalArgumentException("Unknown field id " + id + " in encoded details");
+        }
+        return names[id];
+    }
+
+    private Serializable constantFor(int id) {
+        if (id < 0 || constants[id] == null) {
+            throw new IllegalArgumentException("Field " + (id < 0 ? "without an id" : names[id]) + " has no constant value");
+        }
+        return constants[id];
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Java serialises a value, refusing anything decode would not read back.
+     *
+     * @param value
+     * @return the serialised value
+     * @throws IllegalArgumentException if the value holds anything but JDK
+     * value types
+     */
+    static byte[] serialize(Serializable value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try ( ObjectOutputStream out = new ValueOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to serialise details value of " + value.getClass().getName(), ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a Java serialised value through VALUE_FILTER.
+     *
+     * @param serialized
+     * @return the value
+     * @throws IllegalArgumentException if the bytes are not valid or hold
+     * anything but JDK value types
+     */
+    static Serializable deserialize(byte[] serialized) {
+        try ( ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            in.setObjectInputFilter(VALUE_FILTER);
+            return (Serializable) in.readObject();
+        }
+        // a damaged stream can fail in many ways inside ObjectInputStream
+        catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            throw new IllegalArgumentException("Unable to read serialised details value", ex);
+        }
+    }
+
+    private static boolean isValueType(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return type.isPrimitive() || VALUE_PACKAGES.contains(type.getPackageName());
+    }
+
+    // Refuses to write anything decode would refuse to read back. Also used for the write-behind journal
+    static final class ValueOutputStream extends ObjectOutputStream {
+
+        ValueOutputStream(ByteArrayOutputStream bytes) throws IOException {
+            super(bytes);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj != null && !isValueType(obj.getClass())) {
+                throw new IOException(obj.getClass().getName() + " is not a JDK value type");
+            }
+            return obj;
+        }
+    }
+
+    // Growable encode buffer, reused by one thread
+    private static final class Output {
+
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        private void reset() {
+            length = 0;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        private void writeByte(int value) {
+            ensure(1);
+            bytes[length++] = (byte) value;
+        }
+
+        private void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeBytes(byte[] source, int count) {
+            ensure(count);
+            System.arraycopy(source, 0, bytes, length, count);
+            length += count;
+        }
+
+        // Most details are ASCII, which is copied straight in without encoding to a temporary array
+        private void writeString(String value) {
+            int chars = value.length();
+            boolean ascii = true;
+            for (int i = 0; i < chars && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                writeVarInt(chars);
+                ensure(chars);
+                for (int i = 0; i < chars; i++) {
+                    bytes[length++] = (byte) value.charAt(i);
+                }
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(utf8.length);
+            writeBytes(utf8, utf8.length);
+        }
+    }
+
+    private static final class Input {
+
+        private final byte[] bytes;
+        private int position;
+
+        private Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private void require(int count) {
+            if (count < 0 || count > bytes.length - position) {
+                throw new IllegalArgumentException("Encoded details are truncated");
+            }
+        }
+
+        private int readByte() {
+            require(1);
+            return bytes[position++] & 0xFF;
+        }
+
+        private int readVarInt() {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Encoded details hold an invalid length");
+            }
+            return (int) value;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int next = readByte();
+                value |= (long) (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Encoded details hold an invalid number");
+        }
+
+        private long readLong() {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        private int readInt() {
+            require(4);
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        private String readString() {
+            int length = readVarInt();
+            require(length);
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private byte[] readBytes(int length) {
+            require(length);
+            byte[] value = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *   platformconnectorplugindemo - ObjectDetailsSchema.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fixed set of fields a plugin returns in objectDetails, declared once in
+ * pluginSetup. Values that never change are boxed once when the schema is
+ * built, timestamps come from a shared coarse clock, and each new details map
+ * is sized up front so it never has to grow.
+ *
+ * The maps are plain HashMaps, as the container serialises objectDetails and
+ * may not have the plugin classes to read anything else. Where a compact form
+ * is wanted, eg in the read cache, codec() encodes details with the schema
+ * field names replaced by small ids.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class ObjectDetailsSchema {
+
+    private final String[] constantNames;
+    private final Serializable[] constantValues;
+    private final String[] timestampNames;
+    private final String[] otherNames;
+    private final CoarseClock clock;
+    private final ObjectDetailsCodec codec;
+
+    private ObjectDetailsSchema(Builder builder) {
+        this.constantNames = builder.constantNames.toArray(new String[0]);
+        this.constantValues = builder.constantValues.toArray(new Serializable[0]);
+        this.timestampNames = builder.timestampNames.toArray(new String[0]);
+        this.otherNames = builder.otherNames.toArray(new String[0]);
+        this.clock = new CoarseClock(builder.clockResolutionMillis);
+        int fields = constantNames.length + timestampNames.length + otherNames.length;
+        String[] names = new String[fields];
+        System.arraycopy(constantNames, 0, names, 0, constantNames.length);
+        System.arraycopy(timestampNames, 0, names, constantNames.length, timestampNames.length);
+        System.arraycopy(otherNames, 0, names, constantNames.length + timestampNames.length, otherNames.length);
+        this.codec = new ObjectDetailsCodec(names, Arrays.copyOf(constantValues, fields));
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a details map holding the schema fields.
+     *
+     * @return a new map with room for the schema fields only
+     */
+    Map<String, Serializable> newDetails() {
+        return fill(new HashMap<>(capacityFor(fieldCount())));
+    }
+
+    /**
+     * Creates a details map holding the schema fields, plus room for the
+     * given number of extra fields.
+     *
+     * @param extraFields fields the caller will add
+     * @return a new map
+     */
+    Map<String, Serializable> newDetails(int extraFields) {
+        return fill(new HashMap<>(capacityFor(fieldCount() + extraFields)));
+    }
+
+    /**
+     * Creates a details map holding the schema fields overlaid with the given
+     * fields, eg the details sent in a create request.
+     *
+     * @param fields fields to add, may be null
+     * @return a new map
+     */
+    Map<String, Serializable> newDetails(Map<String, ? extends Serializable> fields) {
+        if (fields == null) {
+            return newDetails();
+        }
+        Map<String, Serializable> details = newDetails(fields.size());
+        details.putAll(fields);
+        return details;
+    }
+
+    /**
+     * The binary encoding for details built from this schema. Every field
+     * declared in the schema is encoded by id, including those declared with
+     * field().
+     *
+     * @return the codec
+     */
+    ObjectDetailsCodec codec() {
+        return codec;
+    }
+
+    int fieldCount() {
+        return constantNames.length + timestampNames.length;
+    }
+
+    private Map<String, Serializable> fill(Map<String, Serializable> details) {
+        for (int i = 0; i < constantNames.length; i++) {
+            details.put(constantNames[i], constantValues[i]);
+        }
+        if (timestampNames.length > 0) {
+            String now = clock.nowString();
+            for (String name : timestampNames) {
+                details.put(name, now);
+            }
+        }
+        return details;
+    }
+
+    // HashMap resizes once it is three quarters full
+    private static int capacityFor(int fields) {
+        return (int) Math.ceil(fields / 0.75);
+    }
+
+    static final class Builder {
+
+        private final List<String> constantNames = new ArrayList<>();
+        private final List<Serializable> constantValues = new ArrayList<>();
+        private final List<String> timestampNames = new ArrayList<>();
+        private final List<String> otherNames = new ArrayList<>();
+        private long clockResolutionMillis = 1;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a field that has the same value in every response. The value
+         * is shared by every map, so it must be immutable.
+         *
+         * @param name field name
+         * @param value field value
+         * @return this builder
+         */
+        Builder constant(String name, Serializable value) {
+            constantNames.add(name);
+            constantValues.add(value);
+            return this;
+        }
+
+        /**
+         * Adds a field holding the time the response was built, as an
+         * ISO-8601 string.
+         *
+         * @param name field name
+         * @return this builder
+         */
+        Builder timestamp(String name) {
+            timestampNames.add(name);
+            return this;
+        }
+
+        /**
+         * Declares a field that responses may carry but newDetails does not
+         * fill in, eg one copied from the request, so the codec can encode
+         * its name by id.
+         *
+         * @param name field name
+         * @return this builder
+         */
+        Builder field(String name) {
+            otherNames.add(name);
+            return this;
+        }
+
+        /**
+         * @param clockResolutionMillis how long a timestamp is reused for,
+         * default 1ms
+         * @return this builder
+         */
+        Builder clockResolutionMillis(long clockResolutionMillis) {
+            this.clockResolutionMillis = clockResolutionMillis;
+            return this;
+        }
+
+        ObjectDetailsSchema build() {
+            return new ObjectDetailsSchema(this);
+        }
+    }
+}
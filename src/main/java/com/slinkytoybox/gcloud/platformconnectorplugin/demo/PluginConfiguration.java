@@ -24,6 +24,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Properties;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.ApplicationContext;
@@ -34,7 +36,8 @@ import org.springframework.context.annotation.Configuration;
  *
  * @author Michael Junek (michael@juneks.com.au)
  */
-@Configuration
+// Nothing calls the bean method directly, so the configuration class does not need a CGLIB proxy
+@Configuration(proxyBeanMethods = false)
 @Slf4j
 public class PluginConfiguration {
 
@@ -53,7 +56,9 @@ public class PluginConfiguration {
         // Read the inbuilt application properties from the JAR file / Classpath
         String appLoc = "/application.properties";
         try ( InputStream appProp = PluginConfiguration.class.getResourceAsStream(appLoc)) {
-            log.trace("{}Using stream {}", logPrefix, PluginConfiguration.class.getResource(appLoc).toString());
+            if (log.isTraceEnabled()) {
+                log.trace("{}Using stream {}", logPrefix, PluginConfiguration.class.getResource(appLoc).toString());
+            }
             pluginProperties.load(appProp);
         }
         catch (IOException | NullPointerException ex) {
@@ -77,8 +82,52 @@ public class PluginConfiguration {
         }
 
         // Create the new worker with its name, description and configuration
+        // The worker is also given the configuration file, so it can watch it for changes
         log.debug("{}Creating new plugin worker", logPrefix);
-        return new DemoPluginWorker(pluginId, pluginDescription, pluginProperties);
+        return createWorker(pluginId, pluginDescription, pluginProperties, Path.of(configPath));
+    }
+
+    /**
+     * Creates the worker for the configuration: a single DemoPluginWorker, or
+     * a ShardedPluginWorker when shard.count is more than 1.
+     *
+     * @param pluginId
+     * @param pluginDescription
+     * @param pluginProperties plugin configuration
+     * @param configFile the external configuration file, or null if there is
+     * none to watch
+     * @return the worker
+     */
+    static PlatformConnectorPlugin createWorker(String pluginId, String pluginDescription, Properties pluginProperties, Path configFile) {
+        final String logPrefix = "createWorker() - ";
+        int shardCount = PluginSettings.initial(pluginProperties).getInt("shard.count", 1);
+        if (shardCount > 1) {
+            log.info("{}Creating {} worker shards", logPrefix, shardCount);
+            return new ShardedPluginWorker(pluginId, pluginDescription, pluginProperties, configFile, shardCount);
+        }
+        return new DemoPluginWorker(pluginId, pluginDescription, pluginProperties, configFile);
+    }
+
+    /**
+     * Reads the configuration again, in the same way as at startup, when the
+     * configuration file changes. Unlike at startup, a configuration file that
+     * cannot be read is an error rather than being skipped.
+     *
+     * @param configFile the external configuration file
+     * @return the inbuilt application properties overlaid with the file
+     * @throws IOException if the file cannot be read
+     */
+    static Properties readConfiguration(Path configFile) throws IOException {
+        Properties pluginProperties = new Properties();
+        try ( InputStream appProp = PluginConfiguration.class.getResourceAsStream("/application.properties")) {
+            if (appProp != null) {
+                pluginProperties.load(appProp);
+            }
+        }
+        try ( InputStream fileStream = Files.newInputStream(configFile)) {
+            pluginProperties.load(fileStream);
+        }
+        return pluginProperties;
     }
 
 }
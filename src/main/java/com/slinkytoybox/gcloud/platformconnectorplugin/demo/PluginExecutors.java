@@ -0,0 +1,128 @@
+/*
+ *   platformconnectorplugindemo - PluginExecutors.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Factory for the executors owned by the plugin.
+ *
+ * The plugin is compiled for Java 17, so virtual threads are looked up
+ * reflectively and only used when the container is running on Java 21 or
+ * later.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class PluginExecutors {
+
+    private PluginExecutors() {
+    }
+
+    /**
+     * Creates the executor used for asynchronous request processing. On Java
+     * 21+ this is a virtual thread per task executor, otherwise a bounded pool
+     * of daemon platform threads which rejects work once its queue is full.
+     *
+     * @param namePrefix prefix for thread names
+     * @param maxThreads maximum platform threads
+     * @param queueSize maximum queued requests when all platform threads are
+     * busy
+     * @param preferVirtual use virtual threads if the runtime supports them
+     * @return the executor
+     */
+    static ExecutorService newRequestExecutor(String namePrefix, int maxThreads, int queueSize, boolean preferVirtual) {
+        final String logPrefix = "newRequestExecutor() - ";
+        if (preferVirtual && Runtime.version().feature() >= 21) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                log.info("{}Using virtual threads for {}", logPrefix, namePrefix);
+                return virtual;
+            }
+        }
+        log.info("{}Using bounded platform thread pool for {} with {} threads and queue size {}", logPrefix, namePrefix, maxThreads, queueSize);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), namedDaemonThreads(namePrefix), new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Creates a thread factory producing daemon threads named prefix-n.
+     *
+     * @param namePrefix
+     * @return the thread factory
+     */
+    static ThreadFactory namedDaemonThreads(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Shuts the executor down, waiting up to the timeout for in-flight work
+     * before interrupting it.
+     *
+     * @param executor
+     * @param timeoutMillis
+     */
+    static void shutdown(ExecutorService executor, long timeoutMillis) {
+        final String logPrefix = "shutdown() - ";
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                log.warn("{}Executor did not finish within {}ms, interrupting remaining tasks", logPrefix, timeoutMillis);
+                executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        final String logPrefix = "newVirtualThreadExecutor() - ";
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        }
+        catch (Throwable ex) {
+            log.warn("{}Virtual threads are not available, falling back to platform threads", logPrefix, ex);
+            return null;
+        }
+    }
+}
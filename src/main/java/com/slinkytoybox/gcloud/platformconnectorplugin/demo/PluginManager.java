@@ -26,7 +26,16 @@ import com.slinkytoybox.gcloud.platformconnectorplugin.SourceContainer;
 import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
 import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
 import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 import org.pf4j.Extension;
 import org.pf4j.PluginWrapper;
@@ -64,14 +73,20 @@ public class PluginManager extends SpringPlugin {
 
     }
 
+    // The context only registers PluginConfiguration, so there is no classpath scanning to do. Any slow
+    // setup work belongs in the worker's pluginSetup, which can run in the background (startup.background)
     @Override
     protected ApplicationContext createApplicationContext() {
+        final String logPrefix = "createApplicationContext() - ";
+        log.trace("{}Entering Method", logPrefix);
+        long startNanos = System.nanoTime();
         AnnotationConfigApplicationContext applicationContext = new AnnotationConfigApplicationContext();
         applicationContext.setClassLoader(getWrapper().getPluginClassLoader());
         applicationContext.register(PluginConfiguration.class);
         applicationContext.setId(getPluginName());  // this is important - it is how the plugin knows who it is.
         applicationContext.setDisplayName("Plugin_" + getPluginName() + "_" + getPluginVersion() + "_" + getPluginDescription());
         applicationContext.refresh();
+        log.info("{}Application context for plugin {} started in {}ms", logPrefix, getPluginName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
         return applicationContext;
     }
 
@@ -88,13 +103,19 @@ public class PluginManager extends SpringPlugin {
     }
 
     @Extension(ordinal = 1)
-    public static class PluginWrapperExtension implements PlatformConnectorPlugin {
+    public static class PluginWrapperExtension implements AsyncPlatformConnectorPlugin, StreamingSourcePlugin, CompactDetailsPlugin {
 
         private final PlatformConnectorPlugin worker;
+        private final AsyncPlatformConnectorPlugin asyncWorker;
+        private final StreamingSourcePlugin sourceWorker;
+        private final CompactDetailsPlugin detailsWorker;
 
         @Autowired
         public PluginWrapperExtension(final PlatformConnectorPlugin pluginInterface) {
             this.worker = pluginInterface;
+            this.asyncWorker = pluginInterface instanceof AsyncPlatformConnectorPlugin async ? async : null;
+            this.sourceWorker = pluginInterface instanceof StreamingSourcePlugin streaming ? streaming : null;
+            this.detailsWorker = pluginInterface instanceof CompactDetailsPlugin compact ? compact : null;
 
         }
 
@@ -103,6 +124,20 @@ public class PluginManager extends SpringPlugin {
             return worker.getResponseFromRequest(request);
         }
 
+        @Override
+        public CompletableFuture<PluginResponse> getResponseFromRequestAsync(PluginRequest request) {
+            if (asyncWorker != null) {
+                return asyncWorker.getResponseFromRequestAsync(request);
+            }
+            // Worker has no asynchronous entry point, so run it on the calling thread
+            try {
+                return CompletableFuture.completedFuture(worker.getResponseFromRequest(request));
+            }
+            catch (RuntimeException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+
         @Override
         public HealthResult getPluginHealth() {
             return worker.getPluginHealth();
@@ -127,6 +162,48 @@ public class PluginManager extends SpringPlugin {
         public boolean isSourceAvailable() {
             return worker.isSourceAvailable();
         }
+
+        @Override
+        public String getSourceCodeHash() {
+            return sourceWorker == null ? null : sourceWorker.getSourceCodeHash();
+        }
+
+        @Override
+        public InputStream openSourceCode() throws IOException {
+            if (sourceWorker != null) {
+                return sourceWorker.openSourceCode();
+            }
+            // Worker has no streaming support, so stream the array from getSourceCode
+            SourceContainer sourceCode = worker.getSourceCode();
+            if (sourceCode == null || sourceCode.getSourceJar() == null) {
+                throw new FileNotFoundException("Source code is not available");
+            }
+            return new ByteArrayInputStream(sourceCode.getSourceJar());
+        }
+
+        @Override
+        public byte[] encodeObjectDetails(Map<String, Serializable> objectDetails) {
+            if (detailsWorker != null) {
+                return detailsWorker.encodeObjectDetails(objectDetails);
+            }
+            // Worker has no compact encoding, so fall back to Java serialisation of the map, limited to the same
+            // JDK value types as the codec
+            return ObjectDetailsCodec.serialize(objectDetails == null ? null : new HashMap<>(objectDetails));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, Serializable> decodeObjectDetails(byte[] encoded) {
+            if (detailsWorker != null) {
+                return detailsWorker.decodeObjectDetails(encoded);
+            }
+            // read through the codec's allow-list, as the bytes come from the container
+            Serializable details = ObjectDetailsCodec.deserialize(encoded);
+            if (details != null && !(details instanceof Map)) {
+                throw new IllegalArgumentException("Encoded objectDetails hold a " + details.getClass().getName() + " rather than a map");
+            }
+            return (Map<String, Serializable>) details;
+        }
     }
 
 }
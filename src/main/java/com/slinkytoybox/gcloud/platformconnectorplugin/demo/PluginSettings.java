@@ -0,0 +1,153 @@
+/*
+ *   platformconnectorplugindemo - PluginSettings.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.time.OffsetDateTime;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Immutable snapshot of the plugin configuration. A reload never changes a
+ * snapshot; it builds a new one with the next version number, which replaces
+ * the old one as a whole, so anything reading a snapshot sees one consistent
+ * set of values.
+ *
+ * The first snapshot is lenient: an invalid value is logged and the default
+ * used, so a typo does not stop the plugin starting. Reloaded snapshots are
+ * strict and throw on an invalid value, so a bad change can be rejected
+ * without touching the running plugin.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class PluginSettings {
+
+    private final Properties properties = new Properties();
+    private final long version;
+    private final boolean strict;
+    private final OffsetDateTime loadedAt = OffsetDateTime.now();
+
+    private PluginSettings(Properties source, long version, boolean strict) {
+        this.properties.putAll(source);
+        this.version = version;
+        this.strict = strict;
+    }
+
+    /**
+     * @param source configuration read at startup
+     * @return the first, lenient, snapshot
+     */
+    static PluginSettings initial(Properties source) {
+        return new PluginSettings(source, 1, false);
+    }
+
+    /**
+     * @param source newly read configuration
+     * @return a strict snapshot with the next version number
+     */
+    PluginSettings reloaded(Properties source) {
+        return new PluginSettings(source, version + 1, true);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    OffsetDateTime getLoadedAt() {
+        return loadedAt;
+    }
+
+    String getString(String key) {
+        return properties.getProperty(key);
+    }
+
+    String getString(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    /**
+     * @param key
+     * @param defaultValue used if the setting is missing or blank
+     * @return the setting
+     * @throws IllegalArgumentException if this snapshot is strict and the
+     * value is not an integer
+     */
+    int getInt(String key, int defaultValue) {
+        final String logPrefix = "getInt() - ";
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex) {
+            if (strict) {
+                throw new IllegalArgumentException("Invalid value '" + value + "' for " + key + ", expected a whole number");
+            }
+            log.warn("{}Invalid value '{}' for {}, using default {}", logPrefix, value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param key
+     * @param defaultValue used if the setting is missing or blank
+     * @return the setting
+     * @throws IllegalArgumentException if this snapshot is strict and the
+     * value is not true or false
+     */
+    boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        value = value.trim();
+        if (strict && !value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException("Invalid value '" + value + "' for " + key + ", expected true or false");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    Set<String> keys() {
+        return new TreeSet<>(properties.stringPropertyNames());
+    }
+
+    /**
+     * Lists the settings that differ between the two snapshots.
+     *
+     * @param other
+     * @return keys added, removed or changed, sorted
+     */
+    Set<String> changedKeys(PluginSettings other) {
+        Set<String> changed = new TreeSet<>();
+        Set<String> all = new TreeSet<>(properties.stringPropertyNames());
+        all.addAll(other.properties.stringPropertyNames());
+        for (String key : all) {
+            if (!Objects.equals(properties.getProperty(key), other.properties.getProperty(key))) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+}
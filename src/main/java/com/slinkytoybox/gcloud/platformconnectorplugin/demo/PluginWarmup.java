@@ -0,0 +1,231 @@
+/*
+ *   platformconnectorplugindemo - PluginWarmup.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.ReadRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Warms the plugin up after setup by sending a set of reads through the
+ * normal request path, round after round, until the average read time stops
+ * changing. This gets the request path compiled, backend connections opened
+ * and the records read loaded into the read cache before the container's
+ * first calls arrive.
+ *
+ * Warm-up reads skip the read cache lookup, so every round reaches the
+ * backend, and cache what they read, so the last round leaves them cached.
+ * They are not counted in the request metrics, and nothing real traffic has
+ * cached is dropped for them.
+ * The plugin serves requests while warming; its health shows a Warmup
+ * component at WARNING until the warm-up finishes.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class PluginWarmup {
+
+    private final List<ReadRequest> requests;
+    private final Function<ReadRequest, PluginResponse> reader;
+    private final Runnable onFinished;
+    private final int maxRounds;
+    private final long maxNanos;
+    private final double tolerance;
+    private final int stableRounds;
+    private final Thread thread;
+
+    private volatile boolean finished = false;
+    private volatile int rounds = 0;
+    private volatile long requestsSent = 0;
+    private volatile long errors = 0;
+    private volatile long elapsedMillis = 0;
+    private volatile long firstRequestMicros = -1;
+    private volatile long firstRoundMicros = -1;
+    private volatile long lastRoundMicros = -1;
+
+    /**
+     * @param name prefix for the warm-up thread name
+     * @param requests reads sent in each round
+     * @param reader sends a warm-up read through the request path
+     * @param onFinished called on the warm-up thread once it has finished
+     * @param maxRounds most rounds
+     * @param maxMillis longest the warm-up runs
+     * @param tolerancePercent a round whose average read time is within this
+     * percentage of the round before is stable
+     * @param stableRounds stable rounds in a row needed to finish
+     */
+    PluginWarmup(String name, List<ReadRequest> requests, Function<ReadRequest, PluginResponse> reader, Runnable onFinished,
+            int maxRounds, long maxMillis, int tolerancePercent, int stableRounds) {
+        this.requests = requests;
+        this.reader = reader;
+        this.onFinished = onFinished;
+        this.maxRounds = Math.max(1, maxRounds);
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxMillis));
+        this.tolerance = Math.max(0, tolerancePercent) / 100.0;
+        this.stableRounds = Math.max(1, stableRounds);
+        this.thread = PluginExecutors.namedDaemonThreads(name + "-warmup").newThread(this::run);
+    }
+
+    /**
+     * Reads the warm-up requests: the objectIds given, then each line of the
+     * file. A line is an objectId, or search parameters written as
+     * name=value pairs separated by &amp;. Blank lines and lines starting
+     * with # are skipped.
+     *
+     * @param objectIds comma separated objectIds, may be null
+     * @param file file of recorded reads, may be null
+     * @return the requests
+     * @throws IOException if the file cannot be read
+     */
+    static List<ReadRequest> loadRequests(String objectIds, Path file) throws IOException {
+        List<ReadRequest> loaded = new ArrayList<>();
+        if (objectIds != null) {
+            for (String objectId : objectIds.split(",")) {
+                if (!objectId.isBlank()) {
+                    loaded.add(new ReadRequest().setObjectId(objectId.trim()));
+                }
+            }
+        }
+        if (file != null) {
+            for (String line : Files.readAllLines(file)) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                if (!trimmed.contains("=")) {
+                    loaded.add(new ReadRequest().setObjectId(trimmed));
+                    continue;
+                }
+                Map<String, String> searchParameters = new HashMap<>();
+                for (String pair : trimmed.split("&")) {
+                    int equals = pair.indexOf('=');
+                    if (equals > 0) {
+                        searchParameters.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+                    }
+                }
+                loaded.add(new ReadRequest().setSearchParameters(searchParameters));
+            }
+        }
+        return loaded;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Stops a warm-up still running, eg because the plugin is stopping
+    void stop() {
+        thread.interrupt();
+    }
+
+    HealthStatus getHealthStatus() {
+        if (!finished) {
+            return new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Plugin is warming up, round " + (rounds + 1));
+        }
+        return new HealthStatus().setHealthState(HealthState.HEALTHY).setHealthComment("Warmed up in " + elapsedMillis + "ms");
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        metrics.add(new HealthMetric().setMetricName("warmupFinished").setMetricValue(finished));
+        metrics.add(new HealthMetric().setMetricName("warmupMillis").setMetricValue(elapsedMillis));
+        metrics.add(new HealthMetric().setMetricName("warmupRounds").setMetricValue(rounds));
+        metrics.add(new HealthMetric().setMetricName("warmupRequests").setMetricValue(requestsSent));
+        metrics.add(new HealthMetric().setMetricName("warmupErrors").setMetricValue(errors));
+        metrics.add(new HealthMetric().setMetricName("warmupFirstRequestMicros").setMetricValue(firstRequestMicros));
+        metrics.add(new HealthMetric().setMetricName("warmupFirstRoundMicros").setMetricValue(firstRoundMicros));
+        metrics.add(new HealthMetric().setMetricName("warmupLastRoundMicros").setMetricValue(lastRoundMicros));
+    }
+
+    private void run() {
+        final String logPrefix = "run() - ";
+        log.info("{}Warming up with {} reads per round", logPrefix, requests.size());
+        long startNanos = System.nanoTime();
+        long previousMicros = -1;
+        int stable = 0;
+        try {
+            while (rounds < maxRounds && stable < stableRounds && System.nanoTime() - startNanos < maxNanos && !Thread.currentThread().isInterrupted()) {
+                long roundMicros = runRound(rounds);
+                if (rounds == 0) {
+                    firstRoundMicros = roundMicros;
+                }
+                lastRoundMicros = roundMicros;
+                if (previousMicros >= 0 && Math.abs(roundMicros - previousMicros) <= previousMicros * tolerance) {
+                    stable++;
+                }
+                else {
+                    stable = 0;
+                }
+                previousMicros = roundMicros;
+                rounds++;
+                elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                log.debug("{}Warm-up round {} averaged {}us per read", logPrefix, rounds, roundMicros);
+            }
+        }
+        finally {
+            elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            finished = true;
+        }
+        log.info("{}Warm-up finished after {} rounds in {}ms, average read time went from {}us to {}us{}", logPrefix, rounds, elapsedMillis,
+                firstRoundMicros, lastRoundMicros, stable >= stableRounds ? "" : " without settling");
+        onFinished.run();
+    }
+
+    // Sends every warm-up read once, returning the average read time
+    private long runRound(int round) {
+        final String logPrefix = "runRound() - ";
+        long totalNanos = 0;
+        int sent = 0;
+        for (ReadRequest template : requests) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            ReadRequest request = new ReadRequest().setObjectId(template.getObjectId()).setSearchParameters(template.getSearchParameters());
+            request.setRequestId("warmup-" + round + "-" + sent);
+            long requestStart = System.nanoTime();
+            try {
+                reader.apply(request);
+            }
+            catch (RuntimeException ex) {
+                errors++;
+                log.debug("{}Warm-up read failed", logPrefix, ex);
+            }
+            long requestNanos = System.nanoTime() - requestStart;
+            if (round == 0 && sent == 0) {
+                firstRequestMicros = TimeUnit.NANOSECONDS.toMicros(requestNanos);
+            }
+            totalNanos += requestNanos;
+            sent++;
+            requestsSent++;
+        }
+        return sent == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos / sent);
+    }
+}
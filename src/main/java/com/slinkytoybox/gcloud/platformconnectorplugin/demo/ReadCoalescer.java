@@ -0,0 +1,166 @@
+/*
+ *   platformconnectorplugindemo - ReadCoalescer.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent identical reads into a single backend call
+ * (single-flight). The first caller for a key runs the read; callers arriving
+ * with the same key while it is in flight wait for it and receive a copy of
+ * its response carrying their own requestId.
+ *
+ * Nothing is kept once the read completes, so results are never stale.
+ *
+ * A waiter waits no longer than its own request deadline, and is answered with
+ * a FAILURE response when it passes. If the read it joined was cancelled, eg
+ * because the first caller's deadline passed, the waiter runs the read itself
+ * rather than failing with a cancellation that was not its own.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class ReadCoalescer {
+
+    private final Map<String, CompletableFuture<ReadResponse>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * Runs the read, or joins an identical read already in flight.
+     *
+     * @param key cache key identifying identical reads
+     * @param requestId request id for the returned response
+     * @param read the backend read
+     * @return the response
+     * @throws CancellationException if this thread is interrupted while
+     * waiting for an identical read
+     */
+    ReadResponse execute(String key, String requestId, Supplier<ReadResponse> read) {
+        while (true) {
+            CompletableFuture<ReadResponse> mine = new CompletableFuture<>();
+            CompletableFuture<ReadResponse> existing = inFlight.putIfAbsent(key, mine);
+            if (existing == null) {
+                return lead(key, mine, read);
+            }
+            coalesced.increment();
+            try {
+                return copyFor(await(existing), requestId);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted waiting for an identical read");
+            }
+            catch (TimeoutException ex) {
+                expired.increment();
+                ReadResponse response = new ReadResponse();
+                response.setRequestId(requestId);
+                response.setStatus(ResponseStatus.FAILURE).setErrorMessage("Request deadline passed while waiting for an identical read");
+                return response;
+            }
+            catch (CancellationException ex) {
+                // the read joined was abandoned by its own caller, so it is run again, by this caller if no one
+                // else has started it. The finished read is removed here, as its caller may not have removed it yet
+                inFlight.remove(key, existing);
+                retried.increment();
+            }
+        }
+    }
+
+    // Runs the read as the first caller for the key, handing the result to anyone who joined it
+    private ReadResponse lead(String key, CompletableFuture<ReadResponse> mine, Supplier<ReadResponse> read) {
+        leaders.increment();
+        try {
+            ReadResponse response = read.get();
+            mine.complete(response);
+            return response;
+        }
+        catch (RuntimeException | Error ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        }
+        finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        metrics.add(new HealthMetric().setMetricName("readBackendCalls").setMetricValue(leaders.sum()));
+        metrics.add(new HealthMetric().setMetricName("readCoalesced").setMetricValue(coalesced.sum()));
+        metrics.add(new HealthMetric().setMetricName("readInFlight").setMetricValue(inFlight.size()));
+        metrics.add(new HealthMetric().setMetricName("readCoalescedRetried").setMetricValue(retried.sum()));
+        metrics.add(new HealthMetric().setMetricName("readCoalescedExpired").setMetricValue(expired.sum()));
+    }
+
+    // Waits for the read in flight, up to the deadline of this thread's request. A CancellationException means the
+    // read was cancelled, not this caller
+    private static ReadResponse await(CompletableFuture<ReadResponse> future) throws InterruptedException, TimeoutException {
+        RequestDeadline deadline = RequestDeadline.current();
+        try {
+            if (deadline == RequestDeadline.NONE) {
+                return future.get();
+            }
+            return future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CancellationException cancelled) {
+                throw cancelled;
+            }
+            if (ex.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (ex.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new CompletionException(ex.getCause());
+        }
+    }
+
+    // Each waiter gets its own response and details map, as the container may modify or serialise them independently
+    private static ReadResponse copyFor(ReadResponse source, String requestId) {
+        if (source == null) {
+            return null;
+        }
+        Map<String, Serializable> details = source.getObjectDetails() == null ? null : new HashMap<>(source.getObjectDetails());
+        ReadResponse copy = new ReadResponse();
+        copy.setObjectDetails(details)
+                .setRequestId(requestId)
+                .setStatus(source.getStatus())
+                .setObjectId(source.getObjectId())
+                .setErrorMessage(source.getErrorMessage());
+        return copy;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ *   platformconnectorplugindemo - ReadHedger.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hedges backend reads. A read runs on the executor while the caller waits
+ * for its answer, and if it has not returned within the hedge delay a second
+ * attempt is started alongside it. The first successful response is returned
+ * straight away and the thread running the other attempt is interrupted. The
+ * caller's thread is never interrupted, so a slow first attempt that ignores
+ * interrupts does not hold up a hedge that has answered. When the executor
+ * cannot take the first attempt, it runs on the caller's thread unhedged.
+ *
+ * The delay is a percentile of recent read times, recalculated every window,
+ * so only the slowest reads are hedged. Every attempt that answers is timed
+ * from when its read started, so a hedge that wins is recorded as the time
+ * the caller waited rather than the time since the hedge started. Until the
+ * first window has enough reads nothing is hedged. Hedges are limited to a
+ * percentage of reads, so a backend that slows down for everyone does not get
+ * extra load on top.
+ *
+ * The doWork routine can tell a hedge from the first attempt with
+ * isHedgeAttempt(), eg to send it to a different replica.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class ReadHedger {
+
+    private static final ThreadLocal<Boolean> HEDGE_ATTEMPT = new ThreadLocal<>();
+    // reads needed in a window before its percentile is trusted as the hedge delay
+    private static final long MIN_WINDOW_READS = 100;
+    // a hedge costs this many budget credits, and each read earns maxPercent of them
+    private static final long HEDGE_COST = 100;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long windowNanos;
+    private final long creditsPerRead;
+    private final long maxCredits;
+
+    private final AtomicLong credits = new AtomicLong();
+    private volatile LatencyHistogram window = new LatencyHistogram();
+    private final AtomicLong windowEndNanos;
+    private volatile long delayNanos = Long.MAX_VALUE;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+
+    /**
+     * @param executor runs the hedge attempts
+     * @param timer starts a hedge once a read has run for the hedge delay
+     * @param percentile percentile of recent read times used as the hedge
+     * delay
+     * @param minDelayMillis shortest hedge delay
+     * @param windowMillis how often the hedge delay is recalculated
+     * @param maxPercent most hedges as a percentage of reads
+     */
+    ReadHedger(ExecutorService executor, ScheduledExecutorService timer, double percentile, long minDelayMillis, long windowMillis, int maxPercent) {
+        this.executor = executor;
+        this.timer = timer;
+        this.percentile = Math.min(Math.max(percentile, 1), 99.9);
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, minDelayMillis));
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(100, windowMillis));
+        this.creditsPerRead = Math.max(0, maxPercent);
+        // up to ten hedges can be saved up for a burst of slow reads
+        this.maxCredits = HEDGE_COST * 10;
+        this.windowEndNanos = new AtomicLong(System.nanoTime() + windowNanos);
+    }
+
+    /**
+     * Whether the read running on this thread is a hedge.
+     *
+     * @return true for the second attempt of a hedged read
+     */
+    static boolean isHedgeAttempt() {
+        return HEDGE_ATTEMPT.get() != null;
+    }
+
+    /**
+     * Runs the read, hedging it if it is slow, and waits for its answer.
+     *
+     * @param read makes the first attempt, on an executor thread, or on this
+     * thread if the executor is full
+     * @param hedgeRead makes the hedge attempt, on an executor thread
+     * @return the first successful response, or the last response if neither
+     * succeeds
+     * @throws CancellationException if this thread is interrupted before the
+     * read has answered, eg because the request deadline passed
+     */
+    ReadResponse execute(Supplier<ReadResponse> read, Supplier<ReadResponse> hedgeRead) {
+        reads.increment();
+        earnCredit();
+        Race race = new Race(read, hedgeRead);
+        try {
+            race.primary = executor.submit(() -> race.attempt(false));
+        }
+        catch (RejectedExecutionException ex) {
+            // no thread for the first attempt, so it runs here and is not hedged
+            race.attempt(false);
+            return race.answer();
+        }
+        long delay = currentDelayNanos();
+        if (delay != Long.MAX_VALUE) {
+            try {
+                race.timer = timer.schedule(() -> startHedge(race), delay, TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException ex) {
+                // stopping, so the read is not hedged
+            }
+        }
+        try {
+            return race.answer();
+        }
+        finally {
+            // whichever attempt lost, or both if this thread gave up, is interrupted on its own thread
+            race.cancel();
+        }
+    }
+    // Runs on the timer thread once the read has taken the hedge delay
+    private void startHedge(Race race) {
+        if (race.result.isDone()) {
+            return;
+        }
+        if (!takeCredit()) {
+            overBudget.increment();
+            return;
+        }
+        race.running.incrementAndGet();
+        try {
+            race.hedge = executor.submit(() -> race.attempt(true));
+            hedges.increment();
+            if (race.result.isDone()) {
+                // the read was answered while the hedge was being started
+                race.hedge.cancel(true);
+            }
+        }
+        catch (RejectedExecutionException ex) {
+            if (race.running.decrementAndGet() == 0) {
+                // the first attempt failed while the hedge was being started, and left the result to it
+                race.completeWithPrimary();
+            }
+        }
+    }
+    private void earnCredit() {
+        if (creditsPerRead == 0) {
+            return;
+        }
+        long current = credits.get();
+        while (current < maxCredits && !credits.compareAndSet(current, Math.min(maxCredits, current + creditsPerRead))) {
+            current = credits.get();
+        }
+    }
+
+    private boolean takeCredit() {
+        long current = credits.get();
+        while (current >= HEDGE_COST) {
+            if (credits.compareAndSet(current, current - HEDGE_COST)) {
+                return true;
+            }
+            current = credits.get();
+        }
+        return false;
+    }
+
+    // The hedge delay, recalculated by the first read after the window ends
+    private long currentDelayNanos() {
+        long now = System.nanoTime();
+        long windowEnd = windowEndNanos.get();
+        if (now - windowEnd >= 0 && windowEndNanos.compareAndSet(windowEnd, now + windowNanos)) {
+            LatencyHistogram finished = window;
+            window = new LatencyHistogram();
+            if (finished.getCount() >= MIN_WINDOW_READS) {
+                delayNanos = Math.max(minDelayNanos, TimeUnit.MICROSECONDS.toNanos(finished.getValueAtPercentile(percentile)));
+            }
+        }
+        return delayNanos;
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        long readCount = reads.sum();
+        long hedgeCount = hedges.sum();
+        long wins = hedgeWins.sum();
+        long delay = delayNanos;
+        metrics.add(new HealthMetric().setMetricName("readHedgeDelayMillis").setMetricValue(delay == Long.MAX_VALUE ? -1 : Math.round(delay / 1e5) / 10.0));
+        metrics.add(new HealthMetric().setMetricName("readHedges").setMetricValue(hedgeCount));
+        metrics.add(new HealthMetric().setMetricName("readHedgeWins").setMetricValue(wins));
+        metrics.add(new HealthMetric().setMetricName("readHedgeOverBudget").setMetricValue(overBudget.sum()));
+        metrics.add(new HealthMetric().setMetricName("readHedgeRatePercent").setMetricValue(readCount == 0 ? 0 : Math.round(hedgeCount * 1000.0 / readCount) / 10.0));
+        metrics.add(new HealthMetric().setMetricName("readHedgeWinRatePercent").setMetricValue(hedgeCount == 0 ? 0 : Math.round(wins * 1000.0 / hedgeCount) / 10.0));
+    }
+
+    // The attempts of one read. The first successful response wins, and a failure only completes the read
+    // once no other attempt is left running
+    private final class Race {
+
+        private final Supplier<ReadResponse> read;
+        private final Supplier<ReadResponse> hedgeRead;
+        private final long startNanos = System.nanoTime();
+        private final CompletableFuture<ReadResponse> result = new CompletableFuture<>();
+        private final AtomicInteger running = new AtomicInteger(1);
+        private volatile Future<?> primary;
+        private volatile Future<?> timer;
+        private volatile Future<?> hedge;
+        private volatile ReadResponse primaryResponse;
+        private volatile Throwable primaryFailure;
+
+        private Race(Supplier<ReadResponse> read, Supplier<ReadResponse> hedgeRead) {
+            this.read = read;
+            this.hedgeRead = hedgeRead;
+        }
+
+        private void attempt(boolean isHedge) {
+            if (isHedge) {
+                HEDGE_ATTEMPT.set(Boolean.TRUE);
+            }
+            try {
+                ReadResponse response = isHedge ? hedgeRead.get() : read.get();
+                boolean failed = response == null || response.getStatus() == ResponseStatus.FAILURE;
+                if (!failed) {
+                    window.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+                }
+                if (!isHedge) {
+                    primaryResponse = response;
+                }
+                boolean last = running.decrementAndGet() == 0;
+                // the caller cancels the other attempt once it has the answer
+                if ((!failed || last) && result.complete(response) && isHedge) {
+                    hedgeWins.increment();
+                }
+            }
+            catch (RuntimeException | Error ex) {
+                if (!isHedge) {
+                    primaryFailure = ex;
+                }
+                if (running.decrementAndGet() == 0) {
+                    result.completeExceptionally(ex);
+                }
+            }
+            finally {
+                if (isHedge) {
+                    HEDGE_ATTEMPT.remove();
+                }
+            }
+        }
+
+        // Waits for the first successful response, or the last response if neither attempt succeeds
+        private ReadResponse answer() {
+            try {
+                return result.get();
+            }
+            catch (InterruptedException ex) {
+                // eg the request deadline passed, so neither attempt is wanted any more
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted waiting for a read");
+            }
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                if (ex.getCause() instanceof Error error) {
+                    throw error;
+                }
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+
+        private void completeWithPrimary() {
+            Throwable failure = primaryFailure;
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            }
+            else {
+                result.complete(primaryResponse);
+            }
+        }
+
+        // Stops a hedge starting and interrupts any attempt still running. An attempt that has finished is not
+        // affected, so this is safe to call once the read has its answer
+        private void cancel() {
+            Future<?> pending = timer;
+            Future<?> first = primary;
+            Future<?> second = hedge;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            if (first != null) {
+                first.cancel(true);
+            }
+            if (second != null) {
+                second.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *   platformconnectorplugindemo - RequestDeadline.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+/**
+ * The time by which a request must be answered, after which the container
+ * has given up on it and any further work on it is wasted.
+ *
+ * The deadline of the request being processed is held against the
+ * processing thread, so anything on the request path, including the doWork
+ * routines, can check it with current() without it being passed down. The
+ * deadline is wall clock time, as it is taken from the requestDate set by
+ * the container.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class RequestDeadline {
+
+    /**
+     * No deadline, for requests without a requestDate or when deadlines are
+     * disabled.
+     */
+    static final RequestDeadline NONE = new RequestDeadline(Long.MAX_VALUE);
+
+    private static final ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineMillis;
+
+    RequestDeadline(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * The deadline of the request being processed on this thread.
+     *
+     * @return the deadline, or NONE
+     */
+    static RequestDeadline current() {
+        RequestDeadline deadline = CURRENT.get();
+        return deadline == null ? NONE : deadline;
+    }
+
+    /**
+     * Holds the deadline against this thread until clearCurrent() is called.
+     *
+     * @param deadline
+     */
+    static void setCurrent(RequestDeadline deadline) {
+        CURRENT.set(deadline);
+    }
+
+    static void clearCurrent() {
+        CURRENT.remove();
+    }
+
+    boolean isExpired() {
+        return deadlineMillis != Long.MAX_VALUE && System.currentTimeMillis() >= deadlineMillis;
+    }
+
+    /**
+     * @return milliseconds left before the deadline, 0 once it has passed,
+     * or Long.MAX_VALUE if there is no deadline
+     */
+    long remainingMillis() {
+        if (deadlineMillis == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadlineMillis - System.currentTimeMillis());
+    }
+
+    long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+}
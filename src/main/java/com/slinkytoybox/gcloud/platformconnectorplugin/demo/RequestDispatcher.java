@@ -0,0 +1,175 @@
+/*
+ *   platformconnectorplugindemo - RequestDispatcher.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Precomputed dispatch table mapping an incoming request class to the
+ * operation it represents. The table is built once when the plugin starts, so
+ * the request path is an identity match on the request class (falling back to
+ * a cached ClassValue lookup for subclasses) instead of a chain of instanceof
+ * checks and a scan of the supported operations list.
+ *
+ * The caller switches on the resolved operation to invoke the matching doWork
+ * routine directly, which keeps each call site monomorphic for the JIT.
+ * Operations that are registered but not supported by the plugin, and unknown
+ * request classes, resolve to preallocated routes that carry the error to
+ * fail fast with.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class RequestDispatcher {
+
+    private static final Route NOT_IMPLEMENTED = new Route(null, false, "Request class type not implemented");
+
+    private final List<Registration> registrations;
+    private final Class<?>[] exactTypes;
+    private final Route[] exactRoutes;
+    private final ClassValue<Route> routes = new ClassValue<>() {
+        @Override
+        protected Route computeValue(Class<?> type) {
+            return resolve(type);
+        }
+    };
+
+    private RequestDispatcher(List<Registration> registrations) {
+        this.registrations = List.copyOf(registrations);
+        this.exactTypes = new Class<?>[this.registrations.size()];
+        this.exactRoutes = new Route[this.registrations.size()];
+        for (int i = 0; i < exactTypes.length; i++) {
+            exactTypes[i] = this.registrations.get(i).type;
+            exactRoutes[i] = this.registrations.get(i).route;
+        }
+    }
+
+    static Builder builder(Collection<PluginOperation> supportedOperations) {
+        return new Builder(supportedOperations);
+    }
+
+    /**
+     * Finds the route for the request's concrete class.
+     *
+     * @param request
+     * @return the route, never null
+     */
+    Route route(PluginRequest request) {
+        // The registered classes are almost always the concrete request classes, so try an identity match first
+        Class<?> type = request.getClass();
+        for (int i = 0; i < exactTypes.length; i++) {
+            if (exactTypes[i] == type) {
+                return exactRoutes[i];
+            }
+        }
+        return routes.get(type);
+    }
+
+    // Registrations are checked in the order they were added, so the first assignable type wins
+    private Route resolve(Class<?> type) {
+        for (Registration registration : registrations) {
+            if (registration.type.isAssignableFrom(type)) {
+                return registration.route;
+            }
+        }
+        return NOT_IMPLEMENTED;
+    }
+
+    /**
+     * A resolved dispatch target. Unsupported routes carry a precomputed error
+     * message, and unknown request classes have no operation.
+     */
+    static final class Route {
+
+        private final PluginOperation operation;
+        private final boolean supported;
+        private final String errorMessage;
+
+        private Route(PluginOperation operation, boolean supported, String errorMessage) {
+            this.operation = operation;
+            this.supported = supported;
+            this.errorMessage = errorMessage;
+        }
+
+        PluginOperation getOperation() {
+            return operation;
+        }
+
+        boolean isSupported() {
+            return supported;
+        }
+
+        String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+
+    private static final class Registration {
+
+        private final Class<? extends PluginRequest> type;
+        private final Route route;
+
+        private Registration(Class<? extends PluginRequest> type, Route route) {
+            this.type = type;
+            this.route = route;
+        }
+    }
+
+    static final class Builder {
+
+        private final Set<PluginOperation> supported = EnumSet.noneOf(PluginOperation.class);
+        private final List<Registration> registrations = new ArrayList<>();
+
+        private Builder(Collection<PluginOperation> supportedOperations) {
+            supported.addAll(supportedOperations);
+        }
+
+        /**
+         * Registers the request class for an operation. If the operation is
+         * not in the supported operations list, requests of this type are
+         * rejected.
+         *
+         * @param operation the operation this request type represents
+         * @param type the request class
+         * @param operationName name used in the unsupported operation message
+         * @return this builder
+         */
+        Builder register(PluginOperation operation, Class<? extends PluginRequest> type, String operationName) {
+            Route route;
+            if (supported.contains(operation)) {
+                route = new Route(operation, true, null);
+            }
+            else {
+                route = new Route(operation, false, operationName + " requests are not supported by this plugin");
+            }
+            registrations.add(new Registration(type, route));
+            return this;
+        }
+
+        RequestDispatcher build() {
+            return new RequestDispatcher(registrations);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *   platformconnectorplugindemo - RequestMetrics.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per operation request counters and latency histograms, reported as health
+ * metrics.
+ *
+ * All counters are LongAdders and histograms are preallocated, so recording a
+ * request does not allocate or take a lock. Counts cover every request since
+ * the plugin started, while latencies cover the last minute, so the
+ * percentiles follow the current latency.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class RequestMetrics {
+
+    private static final PluginOperation[] OPERATIONS = PluginOperation.values();
+    private static final ResponseStatus[] STATUSES = ResponseStatus.values();
+
+    private static final long LATENCY_WINDOW_MILLIS = 60_000;
+    private static final int LATENCY_WINDOW_SLOTS = 4;
+
+    private final OperationMetrics[] operations = new OperationMetrics[OPERATIONS.length];
+    private final RollingLatencyHistogram allLatency = new RollingLatencyHistogram(LATENCY_WINDOW_MILLIS, LATENCY_WINDOW_SLOTS);
+
+    RequestMetrics() {
+        for (PluginOperation operation : OPERATIONS) {
+            operations[operation.ordinal()] = new OperationMetrics(operation);
+        }
+    }
+
+    /**
+     * Records a completed request.
+     *
+     * @param operation
+     * @param response the response returned, may be null
+     * @param startNanos System.nanoTime() when the request started
+     */
+    void record(PluginOperation operation, PluginResponse response, long startNanos) {
+        long now = System.nanoTime();
+        long micros = (now - startNanos) / 1000;
+        OperationMetrics metrics = operations[operation.ordinal()];
+        metrics.requests.increment();
+        if (response != null && response.getStatus() != null) {
+            metrics.statuses[response.getStatus().ordinal()].increment();
+        }
+        metrics.latency.record(micros, now);
+        allLatency.record(micros, now);
+    }
+
+    /**
+     * Records a request which ended with an exception.
+     *
+     * @param operation
+     * @param startNanos System.nanoTime() when the request started
+     */
+    void recordException(PluginOperation operation, long startNanos) {
+        long now = System.nanoTime();
+        long micros = (now - startNanos) / 1000;
+        OperationMetrics metrics = operations[operation.ordinal()];
+        metrics.requests.increment();
+        metrics.exceptions.increment();
+        metrics.latency.record(micros, now);
+        allLatency.record(micros, now);
+    }
+
+    /**
+     * Adds request counts, counts by response status, exceptions and latency
+     * percentiles in microseconds for each operation, plus the mean response
+     * time across all operations in milliseconds. Latencies are over the last
+     * minute.
+     *
+     * @param metrics
+     */
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        metrics.add(new HealthMetric().setMetricName("responseTime").setMetricValue(allLatency.snapshot().getMean() / 1000.0));
+        for (OperationMetrics operation : operations) {
+            operation.addHealthMetrics(metrics);
+        }
+    }
+
+    private static final class OperationMetrics {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder exceptions = new LongAdder();
+        private final LongAdder[] statuses = new LongAdder[STATUSES.length];
+        private final RollingLatencyHistogram latency = new RollingLatencyHistogram(LATENCY_WINDOW_MILLIS, LATENCY_WINDOW_SLOTS);
+
+        // metric names are built once so health polls do not rebuild them
+        private final String requestsName;
+        private final String exceptionsName;
+        private final String[] statusNames = new String[STATUSES.length];
+        private final String p50Name;
+        private final String p95Name;
+        private final String p99Name;
+        private final String maxName;
+
+        private OperationMetrics(PluginOperation operation) {
+            String prefix = operation.name().toLowerCase(Locale.ROOT);
+            for (ResponseStatus status : STATUSES) {
+                statuses[status.ordinal()] = new LongAdder();
+                statusNames[status.ordinal()] = prefix + "Status" + camelCase(status.name());
+            }
+            requestsName = prefix + "Requests";
+            exceptionsName = prefix + "Exceptions";
+            p50Name = prefix + "LatencyP50Micros";
+            p95Name = prefix + "LatencyP95Micros";
+            p99Name = prefix + "LatencyP99Micros";
+            maxName = prefix + "LatencyMaxMicros";
+        }
+
+        private void addHealthMetrics(List<HealthMetric> metrics) {
+            metrics.add(new HealthMetric().setMetricName(requestsName).setMetricValue(requests.sum()));
+            metrics.add(new HealthMetric().setMetricName(exceptionsName).setMetricValue(exceptions.sum()));
+            for (ResponseStatus status : STATUSES) {
+                metrics.add(new HealthMetric().setMetricName(statusNames[status.ordinal()]).setMetricValue(statuses[status.ordinal()].sum()));
+            }
+            LatencyHistogram.Snapshot recent = latency.snapshot();
+            metrics.add(new HealthMetric().setMetricName(p50Name).setMetricValue(recent.getValueAtPercentile(50)));
+            metrics.add(new HealthMetric().setMetricName(p95Name).setMetricValue(recent.getValueAtPercentile(95)));
+            metrics.add(new HealthMetric().setMetricName(p99Name).setMetricValue(recent.getValueAtPercentile(99)));
+            metrics.add(new HealthMetric().setMetricName(maxName).setMetricValue(recent.getMax()));
+        }
+
+        // RECORD_NOT_FOUND -> RecordNotFound
+        private static String camelCase(String enumName) {
+            StringBuilder result = new StringBuilder();
+            for (String part : enumName.split("_")) {
+                if (!part.isEmpty()) {
+                    result.append(part.charAt(0)).append(part.substring(1).toLowerCase(Locale.ROOT));
+                }
+            }
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *   platformconnectorplugindemo - ResponseCache.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.ReadRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cache of read responses sitting in front of doWork(ReadRequest).
+ * Implementations must be thread safe, and must never hand out a cached
+ * response object directly, as every caller needs its own requestId.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+interface ResponseCache {
+
+    /**
+     * Looks up a cached response.
+     *
+     * @param key cache key from keyFor()
+     * @param requestId request id to set on the returned copy
+     * @return a copy of the cached response, or null on a miss
+     */
+    ReadResponse get(String key, String requestId);
+
+    /**
+     * Current invalidation generation. Read this before calling the backend
+     * and pass it to put(), so a response read before an update or delete of
+     * its object cannot be cached after it.
+     *
+     * @return the generation
+     */
+    long generation();
+
+    /**
+     * Caches a backend response. Only SUCCESS and RECORD_NOT_FOUND responses
+     * are cached.
+     *
+     * @param key cache key from keyFor()
+     * @param response the backend response
+     * @param generation value of generation() before the backend call
+     */
+    void put(String key, ReadResponse response, long generation);
+
+    /**
+     * Removes every cached response for the object, whether it was cached by
+     * objectId or by search parameters.
+     *
+     * @param objectId
+     */
+    void invalidate(String objectId);
+
+    /**
+     * Adds the cache statistics to a health metrics list.
+     *
+     * @param metrics
+     */
+    void addHealthMetrics(List<HealthMetric> metrics);
+
+    /**
+     * Builds the cache key for a read request. Reads by objectId are keyed on
+     * the id, searches on the search parameters sorted by name. Each search
+     * name and value is written with its length in front, so no choice of
+     * names and values can give two different searches the same key.
+     *
+     * @param req
+     * @return the key, or null if the request cannot be cached
+     */
+    static String keyFor(ReadRequest req) {
+        if (req.getObjectId() != null && !req.getObjectId().isEmpty()) {
+            return "id:" + req.getObjectId();
+        }
+        Map<String, ?> searchParameters = req.getSearchParameters();
+        if (searchParameters == null || searchParameters.isEmpty()) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder("search:");
+        for (Map.Entry<String, ?> parameter : new TreeMap<String, Object>(searchParameters).entrySet()) {
+            appendLengthPrefixed(key, parameter.getKey());
+            appendLengthPrefixed(key, parameter.getValue() == null ? null : parameter.getValue().toString());
+        }
+        return key.toString();
+    }
+
+    private static void appendLengthPrefixed(StringBuilder key, String value) {
+        if (value == null) {
+            key.append('-');
+            return;
+        }
+        key.append(value.length()).append(':').append(value);
+    }
+
+    /**
+     * A cache which never holds anything, used when caching is disabled.
+     *
+     * @return the disabled cache
+     */
+    static ResponseCache disabled() {
+        return DisabledResponseCache.INSTANCE;
+    }
+
+    final class DisabledResponseCache implements ResponseCache {
+
+        private static final DisabledResponseCache INSTANCE = new DisabledResponseCache();
+
+        private DisabledResponseCache() {
+        }
+
+        @Override
+        public ReadResponse get(String key, String requestId) {
+            return null;
+        }
+
+        @Override
+        public long generation() {
+            return 0;
+        }
+
+        @Override
+        public void put(String key, ReadResponse response, long generation) {
+            // nothing to cache
+        }
+
+        @Override
+        public void invalidate(String objectId) {
+            // nothing to invalidate
+        }
+
+        @Override
+        public void addHealthMetrics(List<HealthMetric> metrics) {
+            // no statistics when disabled
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *   platformconnectorplugindemo - RollingLatencyHistogram.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histogram covering a rolling window of recent recording.
+ *
+ * The window is split into a ring of slots, each its own LatencyHistogram.
+ * Values are recorded into the current slot, and when its time is up the
+ * oldest slot is cleared and becomes current. Slots are reused rather than
+ * replaced, so rotating does not allocate on the request path. Reading merges
+ * every slot, so the figures cover between one slot short of the window and
+ * the whole window. A value recorded into the current slot just as it is
+ * retired still lands in a slot within the window.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class RollingLatencyHistogram {
+
+    private final long slotNanos;
+    private final LatencyHistogram[] slots;
+
+    private volatile LatencyHistogram current;
+    private volatile long currentEndsAt;
+    // Only changed while holding the lock on this
+    private int currentIndex = 0;
+
+    /**
+     * @param windowMillis how far back the figures reach
+     * @param slotCount number of slots the window is split into
+     */
+    RollingLatencyHistogram(long windowMillis, int slotCount) {
+        int count = Math.max(2, slotCount);
+        this.slotNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(count, windowMillis)) / count;
+        this.slots = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            slots[i] = new LatencyHistogram();
+        }
+        this.current = slots[0];
+        this.currentEndsAt = System.nanoTime() + slotNanos;
+    }
+
+    /**
+     * Records a value, normally a latency in microseconds.
+     *
+     * @param value
+     * @param nowNanos System.nanoTime() when the value was taken
+     */
+    void record(long value, long nowNanos) {
+        if (nowNanos - currentEndsAt >= 0) {
+            advance(nowNanos);
+        }
+        current.record(value);
+    }
+
+    /**
+     * Merges the slots still in the window.
+     *
+     * @return the snapshot
+     */
+    LatencyHistogram.Snapshot snapshot() {
+        advance(System.nanoTime());
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        for (LatencyHistogram slot : slots) {
+            slot.addTo(snapshot);
+        }
+        return snapshot;
+    }
+
+    // Retires every slot whose time is up
+    private synchronized void advance(long nowNanos) {
+        long behind = nowNanos - currentEndsAt;
+        if (behind < 0) {
+            return;
+        }
+        // a slot per slot period that has passed, but no more than the whole ring after a quiet spell
+        long retire = Math.min(slots.length, behind / slotNanos + 1);
+        for (long i = 0; i < retire; i++) {
+            currentIndex = (currentIndex + 1) % slots.length;
+            slots[currentIndex].reset();
+        }
+        current = slots[currentIndex];
+        currentEndsAt = nowNanos + slotNanos - behind % slotNanos;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ *   platformconnectorplugindemo - SearchIndex.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+/**
+ * In memory index from the values of chosen objectDetails fields to the
+ * objects holding them, so a read by search parameters can be answered
+ * without a backend query.
+ *
+ * To keep the index small, values are not stored. Each value is reduced to a
+ * 64 bit hash, and each field is an open addressed table of hash to object
+ * number held in two primitive arrays. ObjectIds are held once, in an array
+ * indexed by object number. Two different values only collide with a
+ * probability of about 1 in 2^64 per pair.
+ *
+ * Values are matched exactly after trimming and ignoring case. A search can
+ * only be answered if every search parameter is an indexed field; any other
+ * search is left to the backend.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class SearchIndex {
+
+    // Hash stored for a field with no value. Real values never hash to it
+    private static final long NO_VALUE = 0;
+
+    private final String[] fields;
+    private final LongIntMultimap byObjectId = new LongIntMultimap();
+    private final LongIntMultimap[] byField;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock
+    private String[] objectIds = new String[16];
+    private long[] fieldHashes;
+    private int[] freeNumbers = new int[16];
+    private int freeCount = 0;
+    private int nextNumber = 0;
+    private int size = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder multiple = new LongAdder();
+    private final LongAdder notIndexed = new LongAdder();
+    private volatile boolean loaded = false;
+
+    /**
+     * @param fields the objectDetails fields to index, which are also the
+     * search parameter names
+     */
+    SearchIndex(List<String> fields) {
+        this.fields = fields.toArray(new String[0]);
+        this.byField = new LongIntMultimap[this.fields.length];
+        for (int i = 0; i < byField.length; i++) {
+            byField[i] = new LongIntMultimap();
+        }
+        this.fieldHashes = new long[objectIds.length * Math.max(1, this.fields.length)];
+    }
+
+    /**
+     * Adds every object in a bulk snapshot, and marks the index loaded.
+     * Searches are not answered from the index until it has been loaded, as
+     * a miss would otherwise be wrong.
+     *
+     * @param snapshot objectDetails by objectId
+     */
+    void load(Map<String, Map<String, Serializable>> snapshot) {
+        lock.writeLock().lock();
+        try {
+            snapshot.forEach(this::putLocked);
+            loaded = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Adds or updates an object. Indexed fields missing from the details keep
+     * their current value, and fields present with a null or blank value
+     * are removed, so a response carrying only some fields does not drop the
+     * rest.
+     *
+     * @param objectId
+     * @param details the object details, or null to remove the object
+     */
+    void put(String objectId, Map<String, Serializable> details) {
+        lock.writeLock().lock();
+        try {
+            putLocked(objectId, details);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String objectId) {
+        lock.writeLock().lock();
+        try {
+            int number = find(objectId);
+            if (number >= 0) {
+                removeLocked(objectId, number);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the objects matching every search parameter.
+     *
+     * @param searchParameters
+     * @return the matching objectIds, empty if none match, or null if the
+     * search cannot be answered from the index
+     */
+    List<String> search(Map<String, String> searchParameters) {
+        if (!loaded || searchParameters == null || searchParameters.isEmpty()) {
+            notIndexed.increment();
+            return null;
+        }
+        int[] fieldIndexes = new int[searchParameters.size()];
+        long[] hashes = new long[fieldIndexes.length];
+        int count = 0;
+        for (Map.Entry<String, String> parameter : searchParameters.entrySet()) {
+            int field = fieldIndex(parameter.getKey());
+            if (field < 0) {
+                notIndexed.increment();
+                return null;
+            }
+            fieldIndexes[count] = field;
+            hashes[count++] = hash(parameter.getValue());
+        }
+        if (hashes[0] == NO_VALUE) {
+            notFound.increment();
+            return Collections.emptyList();
+        }
+        List<String> matches = new ArrayList<>(1);
+        lock.readLock().lock();
+        try {
+            int width = fields.length;
+            byField[fieldIndexes[0]].forEach(hashes[0], number -> {
+                for (int i = 1; i < fieldIndexes.length; i++) {
+                    if (fieldHashes[number * width + fieldIndexes[i]] != hashes[i]) {
+                        return;
+                    }
+                }
+                matches.add(objectIds[number]);
+            });
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        if (matches.isEmpty()) {
+            notFound.increment();
+        }
+        else if (matches.size() == 1) {
+            hits.increment();
+        }
+        else {
+            multiple.increment();
+        }
+        return matches;
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        int objects;
+        long bytes;
+        lock.readLock().lock();
+        try {
+            objects = size;
+            bytes = memoryBytes();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        metrics.add(new HealthMetric().setMetricName("searchIndexObjects").setMetricValue(objects));
+        metrics.add(new HealthMetric().setMetricName("searchIndexMemoryBytes").setMetricValue(bytes));
+        metrics.add(new HealthMetric().setMetricName("searchIndexHits").setMetricValue(hits.sum()));
+        metrics.add(new HealthMetric().setMetricName("searchIndexNotFound").setMetricValue(notFound.sum()));
+        metrics.add(new HealthMetric().setMetricName("searchIndexMultiple").setMetricValue(multiple.sum()));
+        metrics.add(new HealthMetric().setMetricName("searchIndexNotIndexed").setMetricValue(notIndexed.sum()));
+    }
+
+    private void putLocked(String objectId, Map<String, Serializable> details) {
+        if (objectId == null) {
+            return;
+        }
+        int number = find(objectId);
+        if (details == null) {
+            if (number >= 0) {
+                removeLocked(objectId, number);
+            }
+            return;
+        }
+        if (number < 0) {
+            number = allocate(objectId);
+        }
+        int width = fields.length;
+        for (int field = 0; field < width; field++) {
+            if (!details.containsKey(fields[field])) {
+                continue;
+            }
+            long newHash = hash(details.get(fields[field]));
+            int slot = number * width + field;
+            long oldHash = fieldHashes[slot];
+            if (oldHash == newHash) {
+                continue;
+            }
+            if (oldHash != NO_VALUE) {
+                byField[field].remove(oldHash, number);
+            }
+            if (newHash != NO_VALUE) {
+                byField[field].put(newHash, number);
+            }
+            fieldHashes[slot] = newHash;
+        }
+    }
+
+    private void removeLocked(String objectId, int number) {
+        int width = fields.length;
+        for (int field = 0; field < width; field++) {
+            long oldHash = fieldHashes[number * width + field];
+            if (oldHash != NO_VALUE) {
+                byField[field].remove(oldHash, number);
+                fieldHashes[number * width + field] = NO_VALUE;
+            }
+        }
+        byObjectId.remove(hash(objectId), number);
+        objectIds[number] = null;
+        if (freeCount == freeNumbers.length) {
+            freeNumbers = Arrays.copyOf(freeNumbers, freeCount * 2);
+        }
+        freeNumbers[freeCount++] = number;
+        size--;
+    }
+
+    // The object number of an objectId, or -1
+    private int find(String objectId) {
+        int[] found = {-1};
+        byObjectId.forEach(hash(objectId), number -> {
+            if (objectId.equals(objectIds[number])) {
+                found[0] = number;
+            }
+        });
+        return found[0];
+    }
+
+    private int allocate(String objectId) {
+        int number;
+        if (freeCount > 0) {
+            number = freeNumbers[--freeCount];
+        }
+        else {
+            number = nextNumber++;
+            if (number == objectIds.length) {
+                objectIds = Arrays.copyOf(objectIds, number * 2);
+                fieldHashes = Arrays.copyOf(fieldHashes, number * 2 * Math.max(1, fields.length));
+            }
+        }
+        objectIds[number] = objectId;
+        byObjectId.put(hash(objectId), number);
+        size++;
+        return number;
+    }
+
+    private int fieldIndex(String name) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Arrays, plus the objectId strings at their compact Latin-1 size
+    private long memoryBytes() {
+        long bytes = byObjectId.memoryBytes() + objectIds.length * 8L + fieldHashes.length * 8L + freeNumbers.length * 4L;
+        for (LongIntMultimap table : byField) {
+            bytes += table.memoryBytes();
+        }
+        for (int i = 0; i < nextNumber; i++) {
+            if (objectIds[i] != null) {
+                bytes += 40 + objectIds[i].length();
+            }
+        }
+        return bytes;
+    }
+
+    // 64 bit FNV-1a of the trimmed, lower case value, then mixed so the low bits can index the tables
+    static long hash(Object value) {
+        if (value == null) {
+            return NO_VALUE;
+        }
+        String text = value.toString().trim().toLowerCase(Locale.ROOT);
+        if (text.isEmpty()) {
+            return NO_VALUE;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == NO_VALUE ? 1 : hash;
+    }
+
+    /**
+     * Open addressed multimap from long to int, held in two arrays. A key may
+     * map to several values. Removed entries are left as tombstones until the
+     * next resize, so lookups probing past them still find later entries.
+     */
+    private static final class LongIntMultimap {
+
+        private static final int EMPTY = -1;
+        private static final int REMOVED = -2;
+
+        private long[] keys = new long[16];
+        private int[] values = newValues(16);
+        private int size = 0;
+        private int removed = 0;
+
+        void put(long key, int value) {
+            if ((size + removed + 1) * 4L > keys.length * 3L) {
+                // grow only if live entries need it, otherwise rebuilding just clears the tombstones
+                resize((size + 1) * 2L > keys.length ? keys.length * 2 : keys.length);
+            }
+            int mask = keys.length - 1;
+            int slot = (int) key & mask;
+            while (values[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == REMOVED) {
+                removed--;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        void remove(long key, int value) {
+            int mask = keys.length - 1;
+            for (int slot = (int) key & mask; values[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (keys[slot] == key && values[slot] == value) {
+                    values[slot] = REMOVED;
+                    size--;
+                    removed++;
+                    return;
+                }
+            }
+        }
+
+        void forEach(long key, IntConsumer action) {
+            int mask = keys.length - 1;
+            for (int slot = (int) key & mask; values[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (values[slot] >= 0 && keys[slot] == key) {
+                    action.accept(values[slot]);
+                }
+            }
+        }
+
+        long memoryBytes() {
+            return keys.length * 12L;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = newValues(capacity);
+            size = 0;
+            removed = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] >= 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int[] newValues(int capacity) {
+            int[] values = new int[capacity];
+            Arrays.fill(values, EMPTY);
+            return values;
+        }
+    }
+}
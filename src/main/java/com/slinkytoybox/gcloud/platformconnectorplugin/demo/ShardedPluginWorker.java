@@ -0,0 +1,348 @@
+/*
+ *   platformconnectorplugindemo - ShardedPluginWorker.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.ContainerInterface;
+import com.slinkytoybox.gcloud.platformconnectorplugin.PluginOperation;
+import com.slinkytoybox.gcloud.platformconnectorplugin.SourceContainer;
+import com.slinkytoybox.gcloud.platformconnectorplugin.exceptions.PluginException;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.DeleteRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.ReadRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.UpdateRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs several independent DemoPluginWorker shards in one plugin, each with
+ * its own executors, caches, backend connections and health, and routes each
+ * request to one of them by a hash of its objectId. Reads without an objectId
+ * are routed by their search parameters, and creates go to a random shard.
+ *
+ * Reads, updates and deletes by objectId for one object always reach the same
+ * shard, so read coalescing and write-behind order work as they do unsharded.
+ * A search can be answered on a different shard to the one its object's
+ * changes go through, so every change is also sent to the other shards to
+ * drop their cached reads of the object. The first shard keeps one search
+ * index, loaded and refreshed once, that every shard searches and updates.
+ *
+ * The container sees one plugin. Its health has a component per shard
+ * showing the shard state and load, the components and metrics of each shard
+ * prefixed with the shard name, and the worst overall state of the shards.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+public class ShardedPluginWorker implements AsyncPlatformConnectorPlugin, StreamingSourcePlugin, CompactDetailsPlugin {
+
+    private final String pluginId;
+    private final DemoPluginWorker[] shards;
+    private final LongAdder[] routed;
+    private final LongAdder[] inFlight;
+    private final HealthMonitor healthMonitor;
+    private volatile ContainerInterface container = null;
+
+    /**
+     * @param pluginId
+     * @param pluginDescription
+     * @param config plugin configuration, used by every shard
+     * @param configFile configuration file each shard watches, or null
+     * @param shardCount number of shards
+     */
+    public ShardedPluginWorker(String pluginId, String pluginDescription, Properties config, Path configFile, int shardCount) {
+        this.pluginId = pluginId;
+        this.shards = new DemoPluginWorker[shardCount];
+        this.routed = new LongAdder[shardCount];
+        this.inFlight = new LongAdder[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new DemoPluginWorker(pluginId, "shard" + i, pluginDescription, config, configFile);
+            routed[i] = new LongAdder();
+            inFlight[i] = new LongAdder();
+        }
+        for (int i = 0; i < shardCount; i++) {
+            int shard = i;
+            shards[i].joinShards(i == 0 ? null : shards[0], request -> shardFor(request) == shard, objectId -> invalidateOtherShards(shard, objectId));
+        }
+        PluginSettings settings = PluginSettings.initial(config);
+        this.healthMonitor = new HealthMonitor(pluginId, this::buildHealth, this::pushHealth,
+                settings.getInt("health.refreshIntervalMillis", 1000), settings.getInt("health.debounceMillis", 2000));
+    }
+
+    // Sets up the shards at the same time, so startup takes as long as the slowest shard rather than all of them
+    @PostConstruct
+    void setup() throws PluginException {
+        final String logPrefix = "setup() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Starting {} worker shards", logPrefix, shards.length);
+        // shards push their health changes through the combined health, rather than straight to the container
+        ContainerInterface shardContainer = (shardId, health) -> healthMonitor.pushNow();
+        List<CompletableFuture<Void>> setups = new ArrayList<>(shards.length);
+        for (DemoPluginWorker shard : shards) {
+            shard.setContainerInterface(shardContainer);
+            CompletableFuture<Void> setup = new CompletableFuture<>();
+            PluginExecutors.namedDaemonThreads(pluginId + "-shard-startup").newThread(() -> {
+                try {
+                    shard.setup();
+                    setup.complete(null);
+                }
+                catch (PluginException | RuntimeException ex) {
+                    setup.completeExceptionally(ex);
+                }
+            }).start();
+            setups.add(setup);
+        }
+        Throwable failure = null;
+        for (CompletableFuture<Void> setup : setups) {
+            try {
+                setup.join();
+            }
+            catch (RuntimeException ex) {
+                failure = ex.getCause() == null ? ex : ex.getCause();
+            }
+        }
+        if (failure != null) {
+            log.error("{}Worker shard setup failed, stopping the other shards", logPrefix, failure);
+            for (int i = 0; i < shards.length; i++) {
+                if (!setups.get(i).isCompletedExceptionally()) {
+                    shards[i].destroy();
+                }
+            }
+            throw failure instanceof PluginException pluginException ? pluginException : new PluginException("Worker shard setup failed: " + failure.getMessage());
+        }
+        healthMonitor.start();
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    @PreDestroy
+    void destroy() {
+        final String logPrefix = "destroy() - ";
+        log.trace("{}Entering Method", logPrefix);
+        HealthResult response = new HealthResult().setOverallStatus(new HealthStatus().setHealthState(HealthState.FAILED).setHealthComment("Plugin shutting down"));
+        healthMonitor.stop(response);
+        pushHealth(response);
+        // the shards drain their in-flight requests at the same time
+        List<Thread> stopping = new ArrayList<>(shards.length);
+        for (DemoPluginWorker shard : shards) {
+            Thread thread = PluginExecutors.namedDaemonThreads(pluginId + "-shard-shutdown").newThread(shard::destroy);
+            thread.start();
+            stopping.add(thread);
+        }
+        for (Thread thread : stopping) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        log.trace("{}Leaving Method", logPrefix);
+    }
+
+    @Override
+    public PluginResponse getResponseFromRequest(PluginRequest request) {
+        int shard = shardFor(request);
+        routed[shard].increment();
+        inFlight[shard].increment();
+        try {
+            return shards[shard].getResponseFromRequest(request);
+        }
+        finally {
+            inFlight[shard].decrement();
+        }
+    }
+
+    @Override
+    public CompletableFuture<PluginResponse> getResponseFromRequestAsync(PluginRequest request) {
+        int shard = shardFor(request);
+        routed[shard].increment();
+        inFlight[shard].increment();
+        CompletableFuture<PluginResponse> future;
+        try {
+            future = shards[shard].getResponseFromRequestAsync(request);
+        }
+        catch (RuntimeException ex) {
+            inFlight[shard].decrement();
+            throw ex;
+        }
+        LongAdder shardInFlight = inFlight[shard];
+        future.whenComplete((response, ex) -> shardInFlight.decrement());
+        return future;
+    }
+
+    // Picks the shard for a request from its objectId, or for a search from its search parameters
+    int shardFor(PluginRequest request) {
+        String key = null;
+        if (request instanceof UpdateRequest update) {
+            key = update.getObjectId();
+        }
+        else if (request instanceof DeleteRequest delete) {
+            key = delete.getObjectId();
+        }
+        else if (request instanceof ReadRequest read) {
+            // by the objectId alone, so a read reaches the same shard as the object's updates
+            key = read.getObjectId() != null && !read.getObjectId().isEmpty() ? read.getObjectId() : ResponseCache.keyFor(read);
+        }
+        if (key == null) {
+            return ThreadLocalRandom.current().nextInt(shards.length);
+        }
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    // A change through one shard may have left a search answered by another shard in its read cache
+    private void invalidateOtherShards(int changedShard, String objectId) {
+        for (int i = 0; i < shards.length; i++) {
+            if (i != changedShard) {
+                shards[i].invalidateCached(objectId);
+            }
+        }
+    }
+
+    @Override
+    public HealthResult getPluginHealth() {
+        return healthMonitor.getSnapshot();
+    }
+
+    // Combines the shard health snapshots, with each shard's share of the requests so an uneven spread of
+    // objectIds shows up
+    private HealthResult buildHealth() {
+        Map<String, HealthStatus> componentStatus = new HashMap<>();
+        List<HealthMetric> metrics = new ArrayList<>(128 * shards.length);
+        HealthStatus overallStatus = new HealthStatus().setHealthState(HealthState.HEALTHY);
+        long total = 0;
+        for (LongAdder requests : routed) {
+            total += requests.sum();
+        }
+        metrics.add(new HealthMetric().setMetricName("shardCount").setMetricValue(shards.length));
+        for (int i = 0; i < shards.length; i++) {
+            String name = "shard" + i;
+            HealthResult shardHealth = shards[i].getPluginHealth();
+            HealthStatus shardStatus = shardHealth.getOverallStatus() == null ? new HealthStatus().setHealthState(HealthState.UNKNOWN) : shardHealth.getOverallStatus();
+            long requests = routed[i].sum();
+            long requestsInFlight = inFlight[i].sum();
+            String load = requests + " requests (" + (total == 0 ? 0 : requests * 100 / total) + "%), " + requestsInFlight + " in flight";
+            componentStatus.put("Shard" + i, new HealthStatus().setHealthState(shardStatus.getHealthState())
+                    .setHealthComment(shardStatus.getHealthComment() == null ? load : load + ". " + shardStatus.getHealthComment()));
+            if (severity(shardStatus.getHealthState()) > severity(overallStatus.getHealthState())) {
+                overallStatus = new HealthStatus().setHealthState(shardStatus.getHealthState())
+                        .setHealthComment(shardStatus.getHealthComment() == null ? null : "Shard" + i + ": " + shardStatus.getHealthComment());
+            }
+            if (shardHealth.getComponentStatus() != null) {
+                shardHealth.getComponentStatus().forEach((component, status) -> componentStatus.put(name + "." + component, status));
+            }
+            metrics.add(new HealthMetric().setMetricName(name + "Requests").setMetricValue(requests));
+            metrics.add(new HealthMetric().setMetricName(name + "InFlight").setMetricValue(requestsInFlight));
+            if (shardHealth.getMetrics() != null) {
+                for (HealthMetric metric : shardHealth.getMetrics()) {
+                    metrics.add(new HealthMetric().setMetricName(name + "." + metric.getMetricName()).setMetricValue(metric.getMetricValue()));
+                }
+            }
+        }
+        return new HealthResult().setOverallStatus(overallStatus).setComponentStatus(componentStatus).setMetrics(metrics);
+    }
+
+    // UNKNOWN ranks above HEALTHY here, so the plugin is not reported healthy while a shard is still starting
+    private static int severity(HealthState state) {
+        if (state == HealthState.FAILED) {
+            return 3;
+        }
+        else if (state == HealthState.WARNING) {
+            return 2;
+        }
+        else if (state == HealthState.UNKNOWN) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private void pushHealth(HealthResult health) {
+        final String logPrefix = "pushHealth() - ";
+        ContainerInterface current = container;
+        if (current == null) {
+            log.warn("{}Container interface is not yet set. Not doing callback", logPrefix);
+            return;
+        }
+        log.info("{}Sending {} plugin health to container application", logPrefix, health.getOverallStatus().getHealthState());
+        current.setPluginHealth(pluginId, health);
+    }
+
+    // Every shard is set up the same way, so the first one answers for all of them
+    @Override
+    public List<PluginOperation> getValidOperations() {
+        return shards[0].getValidOperations();
+    }
+
+    @Override
+    public void setContainerInterface(ContainerInterface containerInterface) {
+        final String logPrefix = "setContainerInterface() - ";
+        log.trace("{}Entering Method", logPrefix);
+        log.info("{}Setting container interface", logPrefix);
+        this.container = containerInterface;
+    }
+
+    @Override
+    public SourceContainer getSourceCode() {
+        return shards[0].getSourceCode();
+    }
+
+    @Override
+    public boolean isSourceAvailable() {
+        return shards[0].isSourceAvailable();
+    }
+
+    @Override
+    public String getSourceCodeHash() {
+        return shards[0].getSourceCodeHash();
+    }
+
+    @Override
+    public InputStream openSourceCode() throws IOException {
+        return shards[0].openSourceCode();
+    }
+
+    @Override
+    public byte[] encodeObjectDetails(Map<String, Serializable> objectDetails) {
+        return shards[0].encodeObjectDetails(objectDetails);
+    }
+
+    @Override
+    public Map<String, Serializable> decodeObjectDetails(byte[] encoded) {
+        return shards[0].decodeObjectDetails(encoded);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *   platformconnectorplugindemo - SourceArtifact.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The plugin's sources jar, read from the classpath the first time it is
+ * needed and then held for the life of the plugin. Every caller shares the
+ * same array, so it must be treated as read only.
+ *
+ * The jar is a resource inside the plugin jar, so it is read into memory once
+ * rather than mapped. A missing resource is remembered, but a failed read is
+ * retried on the next call.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class SourceArtifact {
+
+    private final Class<?> owner;
+    private final String fileName;
+    private final String resourceName;
+    private final boolean available;
+
+    private volatile Contents contents = null;
+
+    /**
+     * @param owner class whose class loader holds the sources jar
+     * @param fileName file name of the sources jar at the root of the classpath
+     */
+    SourceArtifact(Class<?> owner, String fileName) {
+        this.owner = owner;
+        this.fileName = fileName;
+        this.resourceName = "/" + fileName;
+        this.available = owner.getResource(resourceName) != null;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * The sources jar. Loads it on the first call.
+     *
+     * @return the shared contents, which must not be modified
+     * @throws IOException if the jar is missing or cannot be read
+     */
+    byte[] getBytes() throws IOException {
+        return load().bytes;
+    }
+
+    /**
+     * @return SHA-256 of the sources jar as lower case hex
+     * @throws IOException if the jar is missing or cannot be read
+     */
+    String getHash() throws IOException {
+        return load().hash;
+    }
+
+    /**
+     * @return a new stream over the shared contents
+     * @throws IOException if the jar is missing or cannot be read
+     */
+    InputStream openStream() throws IOException {
+        return new ByteArrayInputStream(load().bytes);
+    }
+
+    private Contents load() throws IOException {
+        Contents loaded = contents;
+        if (loaded != null) {
+            return loaded;
+        }
+        synchronized (this) {
+            if (contents == null) {
+                contents = read();
+            }
+            return contents;
+        }
+    }
+
+    private Contents read() throws IOException {
+        final String logPrefix = "read() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!available) {
+            throw new FileNotFoundException("Source file " + fileName + " is not on the classpath");
+        }
+        byte[] bytes;
+        try ( InputStream in = owner.getResourceAsStream(resourceName)) {
+            if (in == null) {
+                throw new FileNotFoundException("Source file " + fileName + " is not on the classpath");
+            }
+            bytes = in.readAllBytes();
+        }
+        String hash;
+        try {
+            hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        log.info("{}Loaded {} bytes of source from {}, SHA-256 {}", logPrefix, bytes.length, fileName, hash);
+        return new Contents(bytes, hash);
+    }
+
+    private static final class Contents {
+
+        private final byte[] bytes;
+        private final String hash;
+
+        private Contents(byte[] bytes, String hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+    }
+}
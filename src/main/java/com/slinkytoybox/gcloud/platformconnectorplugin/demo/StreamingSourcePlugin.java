@@ -0,0 +1,52 @@
+/*
+ *   platformconnectorplugindemo - StreamingSourcePlugin.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Optional source code delivery for containers that would rather stream the
+ * sources jar than receive it as one array inside a SourceContainer, and that
+ * want to skip fetching sources they already hold.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+public interface StreamingSourcePlugin {
+
+    /**
+     * SHA-256 of the sources jar as lower case hex. If it matches the hash of
+     * a previous fetch, the sources have not changed.
+     *
+     * @return the hash, or null if no sources are available
+     */
+    String getSourceCodeHash();
+
+    /**
+     * Opens a stream over the sources jar. The stream reads from the copy the
+     * plugin already holds, so opening it does not allocate a new buffer for
+     * the jar.
+     *
+     * @return the stream
+     * @throws IOException if the sources cannot be read or are not available
+     */
+    InputStream openSourceCode() throws IOException;
+
+}
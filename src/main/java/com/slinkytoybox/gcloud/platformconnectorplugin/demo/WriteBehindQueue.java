@@ -0,0 +1,643 @@
+/*
+ *   platformconnectorplugindemo - WriteBehindQueue.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.DeleteRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.UpdateRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Write-behind for update and delete requests. A request is appended to a
+ * local journal and accepted straight away, and drain threads send it to the
+ * backend afterwards.
+ *
+ * Requests for the same objectId are sent one at a time in the order they
+ * were accepted. A request the queue cannot take is only sent directly when
+ * nothing is waiting for its objectId, so an older request can never
+ * overwrite it. While they wait they are compacted: consecutive updates are
+ * merged into one, with later fields overriding earlier ones, and a delete
+ * replaces everything before it. A request that fails is retried with
+ * exponential backoff. Once it has failed the maximum number of times it is
+ * written to the dead-letter file in the journal directory, so it is not lost.
+ * A request the writer did not send, eg because the circuit breaker is open,
+ * is retried without counting an attempt. A RECORD_NOT_FOUND response is final
+ * and the request is dropped straight away.
+ *
+ * Anything not sent when the plugin stops stays in the journal and is sent
+ * after the next start. As the checkpoint is only written periodically, a
+ * request may be sent again after a restart, so the backend writes must be
+ * safe to repeat.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class WriteBehindQueue {
+
+    static final String DEAD_LETTER_FILE = "dead-letter.log";
+
+    // What submit() did with a request
+    enum Submitted {
+        // journalled, to be sent later
+        ACCEPTED,
+        // not accepted, and nothing is waiting for the object, so the request can be sent directly
+        SEND_DIRECTLY,
+        // not accepted, and earlier requests for the object are waiting, which would overwrite it if it were
+        // sent directly
+        REFUSED
+    }
+
+    private final WriteJournal journal;
+    private final Function<PluginRequest, PluginResponse> writer;
+    private final int maxPending;
+    private final int maxAttempts;
+    private final long retryNanos;
+    private final long lagWarnMillis;
+    private final Path deadLetterFile;
+    private final Object deadLetterLock = new Object();
+    private final List<Thread> drainers = new ArrayList<>();
+    private final ScheduledExecutorService syncer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Guarded by lock. Waiting objects in the order their first request was accepted
+    private final LinkedHashMap<String, PendingWrites> pending = new LinkedHashMap<>();
+    private final Map<String, PendingWrites> draining = new HashMap<>();
+    // First journal position of every waiting or draining object, so the checkpoint is found without a scan
+    private final TreeSet<Long> firstPositions = new TreeSet<>();
+    private int pendingRequests = 0;
+    private boolean running = true;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder compacted = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private volatile long recovered = 0;
+    private volatile double replayRate = 0;
+    private long lastReplayed = 0;
+    private long lastRateNanos = System.nanoTime();
+
+    /**
+     * Opens the journal and reloads anything not yet sent. Call start() to
+     * begin sending.
+     *
+     * @param name prefix for the thread names
+     * @param directory journal directory
+     * @param segmentBytes size of each journal file
+     * @param writer sends a request to the backend, returning null if it
+     * was not sent, eg because the circuit breaker is open
+     * @param threads number of drain threads
+     * @param maxPending most requests waiting before new ones are refused
+     * @param maxAttempts attempts before a failing request is dead-lettered
+     * @param retryMillis wait before the first retry, doubling for each
+     * retry after it
+     * @param lagWarnMillis lag at which the component reports WARNING
+     * @param syncMillis how often the journal is written to disk and
+     * checkpointed
+     * @throws IOException if the journal cannot be opened or read
+     */
+    WriteBehindQueue(String name, Path directory, int segmentBytes, Function<PluginRequest, PluginResponse> writer, int threads, int maxPending,
+            int maxAttempts, long retryMillis, long lagWarnMillis, long syncMillis) throws IOException {
+        final String logPrefix = "WriteBehindQueue() - ";
+        this.journal = new WriteJournal(directory, segmentBytes);
+        this.deadLetterFile = directory.resolve(DEAD_LETTER_FILE);
+        this.writer = writer;
+        this.maxPending = Math.max(1, maxPending);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, retryMillis));
+        this.lagWarnMillis = lagWarnMillis;
+        journal.recover((position, record) -> {
+            try {
+                enqueue(deserialize(record), position, System.currentTimeMillis());
+            }
+            catch (IOException ex) {
+                log.error("{}Skipping unreadable journal record at {}", logPrefix, Long.toHexString(position), ex);
+                dropped.increment();
+            }
+        });
+        recovered = pendingRequests;
+        if (recovered > 0) {
+            log.info("{}Recovered {} unsent requests for {} objects from {}", logPrefix, recovered, pending.size(), directory);
+        }
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            drainers.add(PluginExecutors.namedDaemonThreads(name + "-writebehind").newThread(this::drain));
+        }
+        this.syncer = Executors.newSingleThreadScheduledExecutor(PluginExecutors.namedDaemonThreads(name + "-journal"));
+        syncer.scheduleWithFixedDelay(this::sync, syncMillis, Math.max(1, syncMillis), TimeUnit.MILLISECONDS);
+    }
+
+    void start() {
+        drainers.forEach(Thread::start);
+    }
+
+    /**
+     * Journals the request for sending later.
+     *
+     * @param objectId
+     * @param request an UpdateRequest or DeleteRequest
+     * @return ACCEPTED if the request was journalled. Otherwise the queue is
+     * full, stopped or the journal could not be written, and the request may
+     * only be sent directly if SEND_DIRECTLY is returned
+     */
+    Submitted submit(String objectId, PluginRequest request) {
+        final String logPrefix = "submit() - ";
+        byte[] record;
+        try {
+            record = serialize(request);
+        }
+        catch (IOException ex) {
+            log.error("{}Unable to serialise request {}", logPrefix, request.getRequestId(), ex);
+            record = null;
+        }
+        lock.lock();
+        try {
+            if (record == null || !running || pendingRequests >= maxPending) {
+                return notAccepted(objectId);
+            }
+            // appended and queued under one lock, so the checkpoint never passes a request not yet queued
+            long position = journal.append(record);
+            enqueue(request, position, System.currentTimeMillis());
+            accepted.increment();
+            changed.signal();
+            return Submitted.ACCEPTED;
+        }
+        catch (IOException | IllegalArgumentException ex) {
+            log.error("{}Unable to journal request {}", logPrefix, request.getRequestId(), ex);
+            return notAccepted(objectId);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether requests for the object are waiting or being sent. While they
+     * are, a request for the object sent directly could be overwritten by
+     * them.
+     *
+     * @param objectId
+     * @return true if the queue holds requests for the object
+     */
+    boolean isPending(String objectId) {
+        lock.lock();
+        try {
+            return pending.containsKey(objectId) || draining.containsKey(objectId);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Called holding the lock. Requests left in the journal when stopped are sent after the next start, so they count
+    private Submitted notAccepted(String objectId) {
+        if (pending.containsKey(objectId) || draining.containsKey(objectId)) {
+            refused.increment();
+            return Submitted.REFUSED;
+        }
+        return Submitted.SEND_DIRECTLY;
+    }
+
+    /**
+     * Stops sending and closes the journal. Requests being sent are given
+     * the timeout to finish; anything not sent stays in the journal.
+     *
+     * @param timeoutMillis
+     */
+    void stop(long timeoutMillis) {
+        lock.lock();
+        try {
+            running = false;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Thread drainer : drainers) {
+            try {
+                drainer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        syncer.shutdownNow();
+        try {
+            // a sync already running must finish before the journal is closed
+            syncer.awaitTermination(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        lock.lock();
+        try {
+            journal.close();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    HealthStatus getHealthStatus() {
+        long lag = lagMillis();
+        if (lagWarnMillis > 0 && lag > lagWarnMillis) {
+            return new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Oldest unsent write is " + lag + "ms old");
+        }
+        return new HealthStatus().setHealthState(HealthState.HEALTHY);
+    }
+
+    void addHealthMetrics(List<HealthMetric> metrics) {
+        int requests;
+        int objects;
+        long journalBytes;
+        lock.lock();
+        try {
+            requests = pendingRequests;
+            objects = pending.size() + draining.size();
+            journalBytes = journal.pendingBytes();
+        }
+        finally {
+            lock.unlock();
+        }
+        metrics.add(new HealthMetric().setMetricName("writeBehindDepth").setMetricValue(requests));
+        metrics.add(new HealthMetric().setMetricName("writeBehindObjects").setMetricValue(objects));
+        metrics.add(new HealthMetric().setMetricName("writeBehindLagMillis").setMetricValue(lagMillis()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindJournalBytes").setMetricValue(journalBytes));
+        metrics.add(new HealthMetric().setMetricName("writeBehindAccepted").setMetricValue(accepted.sum()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindCompacted").setMetricValue(compacted.sum()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindReplayed").setMetricValue(replayed.sum()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindReplayRate").setMetricValue(Math.round(replayRate * 10) / 10.0));
+        metrics.add(new HealthMetric().setMetricName("writeBehindRetries").setMetricValue(retries.sum()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindDeferred").setMetricValue(deferred.sum()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindDropped").setMetricValue(dropped.sum()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindDeadLettered").setMetricValue(deadLettered.sum()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindRefused").setMetricValue(refused.sum()));
+        metrics.add(new HealthMetric().setMetricName("writeBehindRecovered").setMetricValue(recovered));
+    }
+
+    // Time since the oldest unsent request was accepted
+    private long lagMillis() {
+        long oldest = Long.MAX_VALUE;
+        lock.lock();
+        try {
+            for (PendingWrites writes : pending.values()) {
+                oldest = Math.min(oldest, writes.acceptedMillis);
+            }
+            for (PendingWrites writes : draining.values()) {
+                oldest = Math.min(oldest, writes.acceptedMillis);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    // Adds a request to its object's waiting requests, compacting them. Called holding the lock
+    private void enqueue(PluginRequest request, long position, long acceptedMillis) {
+        String objectId = objectIdOf(request);
+        PendingWrites writes = pending.get(objectId);
+        if (writes == null) {
+            writes = new PendingWrites(objectId, position, acceptedMillis);
+            pending.put(objectId, writes);
+            firstPositions.add(position);
+        }
+        int before = writes.requests.size();
+        writes.add(request);
+        int removed = before + 1 - writes.requests.size();
+        compacted.add(removed);
+        pendingRequests += 1 - removed;
+    }
+
+    // Drain thread. Takes the oldest object that is due and not already being sent, and sends its requests in order
+    private void drain() {
+        final String logPrefix = "drain() - ";
+        while (true) {
+            PendingWrites writes = take();
+            if (writes == null) {
+                return;
+            }
+            boolean failed = false;
+            boolean notSent = false;
+            while (!writes.requests.isEmpty()) {
+                PluginRequest request = writes.requests.get(0);
+                PluginResponse response;
+                try {
+                    response = writer.apply(request);
+                    if (response == null) {
+                        notSent = true;
+                        break;
+                    }
+                }
+                catch (RuntimeException ex) {
+                    log.warn("{}Write-behind request {} for {} failed", logPrefix, request.getRequestId(), writes.objectId, ex);
+                    response = null;
+                }
+                if (response != null && response.getStatus() == ResponseStatus.RECORD_NOT_FOUND) {
+                    log.warn("{}Dropping write-behind request {} as {} was not found", logPrefix, request.getRequestId(), writes.objectId);
+                    dropped.increment();
+                }
+                else if (response == null || response.getStatus() == ResponseStatus.FAILURE) {
+                    failed = true;
+                    break;
+                }
+                else {
+                    replayed.increment();
+                }
+                writes.requests.remove(0);
+                writes.attempts = 0;
+                done(1);
+            }
+            if (notSent) {
+                // the backend was not called, so the attempt is not counted
+                deferred.increment();
+                writes.notBeforeNanos = System.nanoTime() + retryNanos;
+            }
+            else if (failed && ++writes.attempts >= maxAttempts && deadLetter(writes)) {
+                log.error("{}Dead-lettered {} write-behind requests for {} after {} attempts", logPrefix, writes.requests.size(), writes.objectId, writes.attempts);
+                deadLettered.add(writes.requests.size());
+                done(writes.requests.size());
+                writes.requests.clear();
+            }
+            else if (failed) {
+                retries.increment();
+                writes.notBeforeNanos = System.nanoTime() + (retryNanos << Math.min(writes.attempts - 1, 16));
+            }
+            finish(writes);
+        }
+    }
+
+    // Waits for an object that is due to be sent. Returns null once stopped
+    private PendingWrites take() {
+        lock.lock();
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                long nextDue = Long.MAX_VALUE;
+                for (Iterator<PendingWrites> it = pending.values().iterator(); it.hasNext();) {
+                    PendingWrites writes = it.next();
+                    if (draining.containsKey(writes.objectId)) {
+                        continue;
+                    }
+                    if (writes.notBeforeNanos - now <= 0) {
+                        it.remove();
+                        draining.put(writes.objectId, writes);
+                        return writes;
+                    }
+                    nextDue = Math.min(nextDue, writes.notBeforeNanos - now);
+                }
+                if (nextDue == Long.MAX_VALUE) {
+                    changed.await();
+                }
+                else {
+                    changed.awaitNanos(nextDue);
+                }
+            }
+            return null;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void done(int requests) {
+        lock.lock();
+        try {
+            pendingRequests -= requests;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns an object after sending. Requests left after a failure go back in front of any accepted meanwhile
+    private void finish(PendingWrites writes) {
+        lock.lock();
+        try {
+            draining.remove(writes.objectId);
+            if (writes.requests.isEmpty()) {
+                firstPositions.remove(writes.firstPosition);
+            }
+            else {
+                PendingWrites newer = pending.remove(writes.objectId);
+                if (newer != null) {
+                    firstPositions.remove(newer.firstPosition);
+                    int before = writes.requests.size() + newer.requests.size();
+                    for (PluginRequest request : newer.requests) {
+                        writes.add(request);
+                    }
+                    int removed = before - writes.requests.size();
+                    compacted.add(removed);
+                    pendingRequests -= removed;
+                }
+                pending.put(writes.objectId, writes);
+            }
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes the journal to disk, moves the checkpoint up to the oldest unsent request, and updates the replay rate.
+    // Only finding the oldest request holds the lock, so submit() is not held up by the disk
+    private void sync() {
+        final String logPrefix = "sync() - ";
+        long oldest;
+        lock.lock();
+        try {
+            oldest = firstPositions.isEmpty() ? journal.endPosition() : firstPositions.first();
+        }
+        finally {
+            lock.unlock();
+        }
+        try {
+            journal.force();
+            journal.checkpoint(oldest);
+        }
+        catch (IOException ex) {
+            log.error("{}Unable to write the journal checkpoint", logPrefix, ex);
+        }
+        long now = System.nanoTime();
+        long total = replayed.sum();
+        if (now - lastRateNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            replayRate = (total - lastReplayed) * 1e9 / (now - lastRateNanos);
+            lastReplayed = total;
+            lastRateNanos = now;
+        }
+    }
+
+    // Appends requests that ran out of attempts to the dead-letter file. Returns false if it could not be written,
+    // in which case they are kept and retried
+    private boolean deadLetter(PendingWrites writes) {
+        final String logPrefix = "deadLetter() - ";
+        String now = OffsetDateTime.now().toString();
+        List<String> lines = new ArrayList<>(writes.requests.size());
+        for (PluginRequest request : writes.requests) {
+            StringBuilder line = new StringBuilder(128).append(now)
+                    .append(request instanceof UpdateRequest ? " UPDATE" : " DELETE")
+                    .append(" objectId=").append(writes.objectId)
+                    .append(" requestId=").append(request.getRequestId())
+                    .append(" requestDate=").append(request.getRequestDate());
+            if (request instanceof UpdateRequest update) {
+                line.append(" objectDetails=").append(update.getObjectDetails());
+            }
+            lines.add(line.toString());
+        }
+        synchronized (deadLetterLock) {
+            try {
+                Files.write(deadLetterFile, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                return true;
+            }
+            catch (IOException ex) {
+                log.error("{}Unable to write {} requests for {} to {}, keeping them to retry", logPrefix, lines.size(), writes.objectId, deadLetterFile, ex);
+                return false;
+            }
+        }
+    }
+
+    private static String objectIdOf(PluginRequest request) {
+        if (request instanceof UpdateRequest update) {
+            return update.getObjectId();
+        }
+        if (request instanceof DeleteRequest delete) {
+            return delete.getObjectId();
+        }
+        throw new IllegalArgumentException("Write-behind only supports update and delete requests");
+    }
+
+    // Journal record: request type, objectId, requestId, requestDate and, for updates, the object details. Details
+    // deserialize() would refuse are refused here, so an accepted request is never lost on replay
+    private static byte[] serialize(PluginRequest request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try ( ObjectOutputStream out = new ObjectDetailsCodec.ValueOutputStream(bytes)) {
+            out.writeBoolean(request instanceof UpdateRequest);
+            out.writeUTF(objectIdOf(request));
+            out.writeObject(request.getRequestId());
+            out.writeObject(request.getRequestDate());
+            if (request instanceof UpdateRequest update) {
+                out.writeObject(update.getObjectDetails() == null ? null : new HashMap<>(update.getObjectDetails()));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    // Records are read through the details codec's allow-list, as anyone able to write to the journal directory
+    // could otherwise have any class on the classpath created on replay
+    @SuppressWarnings("unchecked")
+    private static PluginRequest deserialize(byte[] record) throws IOException {
+        try ( ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record))) {
+            in.setObjectInputFilter(ObjectDetailsCodec.VALUE_FILTER);
+            boolean update = in.readBoolean();
+            String objectId = in.readUTF();
+            String requestId = (String) in.readObject();
+            OffsetDateTime requestDate = (OffsetDateTime) in.readObject();
+            PluginRequest request = update
+                    ? new UpdateRequest().setObjectId(objectId).setObjectDetails((Map<String, Serializable>) in.readObject())
+                    : new DeleteRequest().setObjectId(objectId);
+            return request.setRequestId(requestId).setRequestDate(requestDate);
+        }
+        // a damaged record can fail in many ways inside ObjectInputStream
+        catch (ClassNotFoundException | RuntimeException ex) {
+            throw new IOException("Journal record could not be read", ex);
+        }
+    }
+
+    // The requests waiting for one object, in the order they must be sent
+    private static final class PendingWrites {
+
+        private final String objectId;
+        private final List<PluginRequest> requests = new ArrayList<>(2);
+        private long firstPosition;
+        private long acceptedMillis;
+        private int attempts = 0;
+        private long notBeforeNanos = System.nanoTime();
+
+        private PendingWrites(String objectId, long firstPosition, long acceptedMillis) {
+            this.objectId = objectId;
+            this.firstPosition = firstPosition;
+            this.acceptedMillis = acceptedMillis;
+        }
+
+        // A delete makes everything before it pointless, and an update following an update is merged into it
+        private void add(PluginRequest request) {
+            if (request instanceof DeleteRequest) {
+                requests.clear();
+                requests.add(request);
+                return;
+            }
+            int last = requests.size() - 1;
+            if (last >= 0 && requests.get(last) instanceof UpdateRequest earlier && request instanceof UpdateRequest later) {
+                Map<String, Serializable> details = new HashMap<>();
+                if (earlier.getObjectDetails() != null) {
+                    details.putAll(earlier.getObjectDetails());
+                }
+                if (later.getObjectDetails() != null) {
+                    details.putAll(later.getObjectDetails());
+                }
+                UpdateRequest merged = new UpdateRequest().setObjectId(later.getObjectId()).setObjectDetails(details);
+                merged.setRequestId(later.getRequestId()).setRequestDate(later.getRequestDate());
+                requests.set(last, merged);
+                return;
+            }
+            requests.add(request);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ *   platformconnectorplugindemo - WriteJournal.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only journal of records held in memory mapped segment files.
+ *
+ * A record is its length, a CRC32 of its contents, then the contents. Segment
+ * files are created at full size, so the zero length after the last record
+ * marks the end of a segment, and a record torn by a crash is detected by its
+ * CRC. Records are addressed by position, the segment number in the high 32
+ * bits and the offset within the segment in the low 32 bits, so positions
+ * sort in journal order.
+ *
+ * A record written to the mapped segment is in the operating system page
+ * cache as soon as append() returns, so it survives the plugin or JVM being
+ * stopped. force() writes it to disk, which is only needed to survive the
+ * operating system stopping, and is left to the caller to batch.
+ *
+ * The checkpoint is the position before which every record has been
+ * processed. Recovery reads from the checkpoint, and segments wholly before it
+ * are deleted. A checkpoint file that cannot be read is treated as position 0,
+ * so everything still in the journal is replayed.
+ *
+ * On opening, appends carry on after the last whole record of the last
+ * segment, so a restart does not leave a new segment behind each time. A
+ * segment is unmapped as soon as appends move on from it, rather than when its
+ * buffer is garbage collected.
+ *
+ * Callers must serialise append(), endPosition(), recover() and
+ * pendingBytes(). force() and checkpoint() may run on another thread at the
+ * same time as those, but not at the same time as each other.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+final class WriteJournal implements AutoCloseable {
+
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final CRC32 crc = new CRC32();
+
+    // guards swapping and unmapping the buffer against force() on another thread
+    private final Object bufferLock = new Object();
+    private volatile long segment;
+    private MappedByteBuffer buffer;
+    private volatile boolean dirty = false;
+    private volatile long checkpoint;
+    private long openedAt;
+    private long closedAt;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex) {
+            log.debug("Journal segments will be unmapped by the garbage collector", ex);
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * Opens the journal, creating the directory if needed. Appends go after
+     * the last whole record already in the journal.
+     *
+     * @param directory
+     * @param segmentBytes size of each segment file
+     * @throws IOException
+     */
+    WriteJournal(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        Files.createDirectories(directory);
+        Path checkpointFile = directory.resolve(CHECKPOINT_FILE);
+        checkpoint = readCheckpoint(checkpointFile);
+        List<Long> segments = segments();
+        long last = segments.isEmpty() ? -1 : segments.get(segments.size() - 1);
+        boolean reused = false;
+        if (last >= 0 && last >= segmentOf(checkpoint)) {
+            openSegment(last);
+            int end = readRecords(last, buffer, 0, buffer.limit(), null);
+            if (position(last, end) >= checkpoint) {
+                clearFrom(end);
+                buffer.position(end);
+                reused = true;
+            }
+            else {
+                // the tail ends before the checkpoint, so appends there would be skipped by the next recovery
+                unmap(buffer);
+            }
+        }
+        if (!reused) {
+            long first = offsetOf(checkpoint) == 0 ? segmentOf(checkpoint) : segmentOf(checkpoint) + 1;
+            openSegment(Math.max(last + 1, first));
+        }
+        openedAt = endPosition();
+    }
+
+    /**
+     * Reads every record from the checkpoint up to where this journal was
+     * opened.
+     *
+     * @param consumer given each record's position and contents
+     * @throws IOException
+     */
+    void recover(RecordConsumer consumer) throws IOException {
+        for (long number : segments()) {
+            if (number > segmentOf(openedAt) || number < segmentOf(checkpoint)) {
+                continue;
+            }
+            int offset = number == segmentOf(checkpoint) ? offsetOf(checkpoint) : 0;
+            if (number == segmentOf(openedAt)) {
+                readRecords(number, buffer.duplicate(), offset, offsetOf(openedAt), consumer);
+            }
+            else {
+                ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(segmentPath(number)));
+                readRecords(number, contents, offset, contents.limit(), consumer);
+            }
+        }
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param record
+     * @return the position of the record
+     * @throws IOException if a new segment could not be created
+     * @throws IllegalArgumentException if the record and the end of segment
+     * marker after it do not fit in a segment
+     */
+    long append(byte[] record) throws IOException {
+        if (record.length > segmentBytes - HEADER_BYTES * 2) {
+            throw new IllegalArgumentException("Record of " + record.length + " bytes is larger than a journal segment");
+        }
+        // keep room for the zero length marking the end of the segment
+        if (buffer.remaining() < record.length + HEADER_BYTES * 2) {
+            synchronized (bufferLock) {
+                MappedByteBuffer full = buffer;
+                full.force();
+                openSegment(segment + 1);
+                unmap(full);
+            }
+        }
+        long position = position(segment, buffer.position());
+        buffer.putInt(record.length).putInt(checksum(record)).put(record);
+        dirty = true;
+        return position;
+    }
+
+    // Position the next record will be written at
+    long endPosition() {
+        return buffer == null ? closedAt : position(segment, buffer.position());
+    }
+
+    /**
+     * Writes appended records to disk, if there are any since the last call.
+     */
+    void force() {
+        synchronized (bufferLock) {
+            if (dirty && buffer != null) {
+                // cleared first, so a record appended while forcing is left for the next call
+                dirty = false;
+                buffer.force();
+            }
+        }
+    }
+
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Records that everything before the position has been processed, and
+     * deletes the segments no longer needed.
+     *
+     * @param position
+     * @throws IOException
+     */
+    void checkpoint(long position) throws IOException {
+        if (position <= checkpoint) {
+            return;
+        }
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(temporary, Long.toString(position), StandardCharsets.US_ASCII);
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpoint = position;
+        for (long number : segments()) {
+            if (number < segmentOf(position) && number != segment) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+
+    // Approximate journal bytes from the checkpoint to the end
+    long pendingBytes() {
+        long end = endPosition();
+        return (segmentOf(end) - segmentOf(checkpoint)) * segmentBytes + offsetOf(end) - offsetOf(checkpoint);
+    }
+
+    /**
+     * Writes appended records to disk and unmaps the segment. The journal
+     * cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (bufferLock) {
+            if (buffer != null) {
+                closedAt = endPosition();
+                buffer.force();
+                unmap(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    // Reads whole records from offset up to limit, giving each to the consumer if there is one. Returns the
+    // offset after the last whole record
+    private int readRecords(long number, ByteBuffer contents, int offset, int limit, RecordConsumer consumer) throws IOException {
+        final String logPrefix = "readRecords() - ";
+        while (offset + HEADER_BYTES <= limit) {
+            int length = contents.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > limit) {
+                if (length != 0) {
+                    log.warn("{}Ignoring torn record at offset {} of journal segment {}", logPrefix, offset, number);
+                }
+                break;
+            }
+            byte[] record = new byte[length];
+            contents.get(offset + HEADER_BYTES, record);
+            if (checksum(record) != contents.getInt(offset + 4)) {
+                log.warn("{}Ignoring torn record at offset {} of journal segment {}", logPrefix, offset, number);
+                break;
+            }
+            if (consumer != null) {
+                consumer.accept(position(number, offset), record);
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    // Zeroes anything left of a torn record after the offset, so it cannot be read as following records
+    // appended later
+    private void clearFrom(int offset) {
+        if (offset + HEADER_BYTES > buffer.limit() || buffer.getInt(offset) == 0) {
+            return;
+        }
+        byte[] zeros = new byte[4096];
+        for (int at = offset; at < buffer.limit(); at += zeros.length) {
+            buffer.put(at, zeros, 0, Math.min(zeros.length, buffer.limit() - at));
+        }
+        buffer.force();
+    }
+
+    private void openSegment(long number) throws IOException {
+        try ( FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // an existing segment may be larger, if it was written with a larger segmentBytes
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+        }
+        segment = number;
+        dirty = false;
+    }
+
+    // Releases the mapping straight away where the JVM allows it. The buffer must not be used afterwards
+    private static void unmap(MappedByteBuffer mapped) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, mapped);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex) {
+            log.debug("unmap() - Unable to unmap a journal segment, leaving it to the garbage collector", ex);
+        }
+    }
+
+    private static long readCheckpoint(Path checkpointFile) throws IOException {
+        final String logPrefix = "readCheckpoint() - ";
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+        String text = Files.readString(checkpointFile, StandardCharsets.US_ASCII).trim();
+        try {
+            long position = Long.parseLong(text);
+            if (position >= 0) {
+                return position;
+            }
+        }
+        catch (NumberFormatException ex) {
+            // logged below
+        }
+        log.warn("{}Journal checkpoint '{}' in {} is not readable, replaying the journal from the start", logPrefix, text, checkpointFile);
+        return 0;
+    }
+
+    private List<Long> segments() throws IOException {
+        final String logPrefix = "segments() - ";
+        List<Long> numbers = new ArrayList<>();
+        try ( Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> {
+                        try {
+                            numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                        }
+                        catch (NumberFormatException ex) {
+                            log.warn("{}Ignoring {} in {}, as it is not named like a journal segment", logPrefix, name, directory);
+                        }
+                    });
+        }
+        numbers.removeIf(number -> number < 0);
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private int checksum(byte[] record) {
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static long position(long segment, int offset) {
+        return (segment << 32) | offset;
+    }
+
+    private static long segmentOf(long position) {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+
+        void accept(long position, byte[] record) throws IOException;
+    }
+}
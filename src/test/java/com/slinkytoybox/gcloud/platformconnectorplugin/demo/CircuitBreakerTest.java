@@ -0,0 +1,128 @@
+/*
+ *   platformconnectorplugindemo - CircuitBreakerTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class CircuitBreakerTest {
+
+    private final AtomicInteger stateChanges = new AtomicInteger();
+    private final CircuitBreaker breaker = CircuitBreaker.builder("Backend")
+            .window(10, 4)
+            .failureRatePercent(50)
+            .slowCalls(60000, 80)
+            .recovery(50, 2)
+            .onStateChange(stateChanges::incrementAndGet)
+            .build();
+
+    @Test
+    void opensWhenFailureRateReached() {
+        call(false);
+        call(true);
+        call(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        call(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, stateChanges.get());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(HealthState.FAILED, breaker.getHealthStatus().getHealthState());
+    }
+
+    @Test
+    void warnsAtHalfTheFailureRate() {
+        for (int i = 0; i < 7; i++) {
+            call(false);
+        }
+        call(true);
+        call(true);
+        call(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(HealthState.WARNING, breaker.getHealthStatus().getHealthState());
+    }
+
+    @Test
+    void healthReadHalfOpensWithoutRequests() throws InterruptedException {
+        open();
+        Thread.sleep(80);
+        // no request has arrived, the health refresh alone moves the breaker on
+        assertEquals(HealthState.WARNING, breaker.getHealthStatus().getHealthState());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(2, stateChanges.get());
+    }
+
+    @Test
+    void successfulProbesClose() throws InterruptedException {
+        open();
+        Thread.sleep(80);
+        call(false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        call(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(HealthState.HEALTHY, breaker.getHealthStatus().getHealthState());
+    }
+
+    @Test
+    void failedProbesReopen() throws InterruptedException {
+        open();
+        Thread.sleep(80);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        // only the configured number of probes are let through
+        assertFalse(breaker.tryAcquire());
+        breaker.onResult(System.nanoTime(), true);
+        breaker.onResult(System.nanoTime(), true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void ignoredProbeIsGivenBack() throws InterruptedException {
+        open();
+        Thread.sleep(80);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        // eg the caller gave up at its deadline, so another call gets to probe
+        breaker.onIgnored();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(System.nanoTime(), false);
+        breaker.onResult(System.nanoTime(), false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private void open() {
+        for (int i = 0; i < 4; i++) {
+            call(true);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private void call(boolean failed) {
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(System.nanoTime(), failed);
+    }
+}
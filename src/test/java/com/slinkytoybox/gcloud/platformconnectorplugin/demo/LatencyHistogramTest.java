@@ -0,0 +1,100 @@
+/*
+ *   platformconnectorplugindemo - LatencyHistogramTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class LatencyHistogramTest {
+
+    @Test
+    void percentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+        assertEquals(5000, histogram.getValueAtPercentile(50), 5000 * 0.035);
+        assertEquals(9900, histogram.getValueAtPercentile(99), 9900 * 0.035);
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    void countsFromEveryThread() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(100);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(80000, snapshot.getCount());
+        assertEquals(100, snapshot.getValueAtPercentile(50));
+    }
+
+    @Test
+    void resetClearsEveryFigure() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5000);
+        histogram.record(10);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0.0, histogram.getMean());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        histogram.record(20);
+        assertEquals(1, histogram.getCount());
+        assertEquals(20, histogram.getMax());
+    }
+
+    @Test
+    void rollingWindowForgetsOldValues() {
+        RollingLatencyHistogram histogram = new RollingLatencyHistogram(60000, 4);
+        long now = System.nanoTime();
+        histogram.record(5000, now);
+        histogram.record(10, now);
+        assertEquals(5000, histogram.snapshot().getMax());
+
+        // two slots later both values are still in the window
+        long later = now + TimeUnit.SECONDS.toNanos(30);
+        histogram.record(20, later);
+        assertEquals(3, histogram.snapshot().getCount());
+
+        // once a whole window has passed only the new value is left
+        histogram.record(30, later + TimeUnit.SECONDS.toNanos(60));
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(30, snapshot.getMax());
+    }
+}
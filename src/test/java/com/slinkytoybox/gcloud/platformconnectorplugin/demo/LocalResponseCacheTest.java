@@ -0,0 +1,174 @@
+/*
+ *   platformconnectorplugindemo - LocalResponseCacheTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.ReadRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class LocalResponseCacheTest {
+
+    private final LocalResponseCache cache = new LocalResponseCache(1000, 4, 60000, 60000, null);
+
+    @Test
+    void searchKeysDoNotCollide() {
+        String joined = ResponseCache.keyFor(search("Name", "a&Phone=1"));
+        String split = ResponseCache.keyFor(search("Name", "a", "Phone", "1"));
+        assertNotEquals(joined, split);
+        assertNotEquals(ResponseCache.keyFor(search("a=b", "c")), ResponseCache.keyFor(search("a", "b=c")));
+        assertEquals(ResponseCache.keyFor(search("Phone", "1", "Name", "a")), split);
+    }
+
+    @Test
+    void invalidateRemovesReadsAndSearches() {
+        String byId = ResponseCache.keyFor(new ReadRequest().setObjectId("A"));
+        String bySearch = ResponseCache.keyFor(search("Phone", "1"));
+        cache.put(byId, found("A", 1), cache.generation());
+        cache.put(bySearch, found("A", 1), cache.generation());
+        assertNotNull(cache.get(byId, "r1"));
+        assertEquals("r2", cache.get(bySearch, "r2").getRequestId());
+
+        cache.invalidate("A");
+        assertNull(cache.get(byId, "r3"));
+        assertNull(cache.get(bySearch, "r4"));
+    }
+
+    @Test
+    void changeToAnotherObjectDoesNotDropPut() {
+        String byId = ResponseCache.keyFor(new ReadRequest().setObjectId("A"));
+        long generation = cache.generation();
+        cache.invalidate("B");
+        cache.put(byId, found("A", 1), generation);
+        assertNotNull(cache.get(byId, "r1"));
+    }
+
+    @Test
+    void putReadBeforeChangeIsDropped() {
+        String byId = ResponseCache.keyFor(new ReadRequest().setObjectId("A"));
+        String bySearch = ResponseCache.keyFor(search("Phone", "1"));
+        long generation = cache.generation();
+        cache.invalidate("A");
+        cache.put(byId, found("A", 1), generation);
+        cache.put(bySearch, found("A", 1), generation);
+        assertNull(cache.get(byId, "r1"));
+        assertNull(cache.get(bySearch, "r2"));
+    }
+
+    @Test
+    void notFoundSearchIsDroppedByAnyChange() {
+        String bySearch = ResponseCache.keyFor(search("Phone", "1"));
+        long generation = cache.generation();
+        cache.put(bySearch, notFound(), generation);
+        assertEquals(ResponseStatus.RECORD_NOT_FOUND, cache.get(bySearch, "r1").getStatus());
+
+        // a create of any object may be the record the search looked for
+        cache.invalidate("created");
+        assertNull(cache.get(bySearch, "r2"));
+        cache.put(bySearch, notFound(), generation);
+        assertNull(cache.get(bySearch, "r3"));
+    }
+
+    @Test
+    void notFoundReadIsDroppedWithItsObjectId() {
+        String byId = ResponseCache.keyFor(new ReadRequest().setObjectId("A"));
+        long generation = cache.generation();
+        cache.invalidate("A");
+        cache.put(byId, notFound(), generation);
+        assertNull(cache.get(byId, "r1"));
+    }
+
+    @Test
+    void concurrentPutNeverLeavesStaleEntry() throws InterruptedException {
+        String byId = ResponseCache.keyFor(new ReadRequest().setObjectId("A"));
+        String bySearch = ResponseCache.keyFor(search("Phone", "1"));
+        AtomicLong backendVersion = new AtomicLong();
+        // version of the last change whose invalidation has finished
+        AtomicLong committed = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        CountDownLatch readersDone = new CountDownLatch(4);
+
+        for (int t = 0; t < 4; t++) {
+            String key = t % 2 == 0 ? byId : bySearch;
+            Thread reader = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        long expected = committed.get();
+                        long generation = cache.generation();
+                        long version = backendVersion.get();
+                        cache.put(key, found("A", version), generation);
+                        ReadResponse cached = cache.get(key, "check");
+                        if (cached != null && (long) cached.getObjectDetails().get("version") < expected) {
+                            failure.compareAndSet(null, key + " served version " + cached.getObjectDetails().get("version") + " after " + expected);
+                        }
+                    }
+                }
+                finally {
+                    readersDone.countDown();
+                }
+            });
+            reader.start();
+        }
+        for (int i = 0; i < 20000; i++) {
+            long version = backendVersion.incrementAndGet();
+            cache.invalidate("A");
+            committed.set(version);
+        }
+        running.set(false);
+        assertTrue(readersDone.await(10, TimeUnit.SECONDS));
+        assertNull(failure.get());
+    }
+
+    private static ReadRequest search(String... nameValues) {
+        Map<String, String> parameters = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            parameters.put(nameValues[i], nameValues[i + 1]);
+        }
+        return new ReadRequest().setSearchParameters(parameters);
+    }
+
+    private static ReadResponse found(String objectId, long version) {
+        Map<String, Serializable> details = new HashMap<>();
+        details.put("version", version);
+        ReadResponse response = new ReadResponse().setObjectDetails(details);
+        response.setObjectId(objectId).setStatus(ResponseStatus.SUCCESS);
+        return response;
+    }
+
+    private static ReadResponse notFound() {
+        ReadResponse response = new ReadResponse();
+        response.setStatus(ResponseStatus.RECORD_NOT_FOUND);
+        return response;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *   platformconnectorplugindemo - MicroBatcherTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.ReadRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class MicroBatcherTest {
+
+    // one batch thread, so a batch waits for the one before it
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private MicroBatcher<ReadRequest, ReadResponse> batcher;
+
+    @AfterEach
+    void tearDown() {
+        if (batcher != null) {
+            batcher.stop(1000);
+        }
+        executor.shutdownNow();
+    }
+
+    @Test
+    void responsesMatchedByPositionNotRequestId() throws Exception {
+        // the handler answers with the objectId it was asked for, and the requestId of the request
+        batcher = start(50, 20000, requests -> {
+            List<ReadResponse> responses = new ArrayList<>();
+            for (ReadRequest request : requests) {
+                responses.add(response(request));
+            }
+            return responses;
+        });
+        List<CompletableFuture<ReadResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            // every request shares one requestId, or has none
+            futures.add(batcher.submit(request("object" + i, i % 2 == 0 ? "same" : null)));
+        }
+        for (int i = 0; i < 10; i++) {
+            ReadResponse response = futures.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals(ResponseStatus.SUCCESS, response.getStatus());
+            assertEquals("object" + i, response.getObjectId());
+        }
+    }
+
+    @Test
+    void missingResponsesFail() throws Exception {
+        batcher = start(50, 20000, requests -> List.of(response(requests.get(0))));
+        CompletableFuture<ReadResponse> first = batcher.submit(request("a", "1"));
+        CompletableFuture<ReadResponse> second = batcher.submit(request("b", "2"));
+        assertEquals(ResponseStatus.SUCCESS, first.get(5, TimeUnit.SECONDS).getStatus());
+        ReadResponse failed = second.get(5, TimeUnit.SECONDS);
+        assertEquals(ResponseStatus.FAILURE, failed.getStatus());
+        assertEquals("2", failed.getRequestId());
+    }
+
+    @Test
+    void cancelledRequestsLeftOutOfBatch() throws Exception {
+        List<String> sent = new CopyOnWriteArrayList<>();
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+        batcher = start(1, 0, requests -> {
+            requests.forEach(request -> sent.add(request.getObjectId()));
+            firstBatchStarted.countDown();
+            try {
+                releaseFirstBatch.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return requests.stream().map(MicroBatcherTest::response).toList();
+        });
+        CompletableFuture<ReadResponse> first = batcher.submit(request("a", "1"));
+        assertTrue(firstBatchStarted.await(5, TimeUnit.SECONDS));
+        CompletableFuture<ReadResponse> second = batcher.submit(request("b", "2"));
+        CompletableFuture<ReadResponse> third = batcher.submit(request("c", "3"));
+        second.cancel(false);
+        releaseFirstBatch.countDown();
+        assertEquals("a", first.get(5, TimeUnit.SECONDS).getObjectId());
+        assertEquals("c", third.get(5, TimeUnit.SECONDS).getObjectId());
+        assertEquals(List.of("a", "c"), sent);
+    }
+
+    @Test
+    void collectorThreadNamedAfterInstance() {
+        batcher = start(50, 2000, requests -> List.of());
+        assertTrue(Thread.getAllStackTraces().keySet().stream().anyMatch(thread -> thread.getName().startsWith("testPlugin-shard1-read-batch-collector")));
+    }
+
+    @Test
+    void everyRequestIsAnsweredWhenSubmitRacesStop() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            MicroBatcher<ReadRequest, ReadResponse> racing = start(50, 100, requests -> {
+                List<ReadResponse> responses = new ArrayList<>();
+                for (ReadRequest request : requests) {
+                    responses.add(response(request));
+                }
+                return responses;
+            });
+            List<CompletableFuture<ReadResponse>> futures = new CopyOnWriteArrayList<>();
+            CountDownLatch started = new CountDownLatch(2);
+            List<Thread> submitters = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                Thread submitter = new Thread(() -> {
+                    started.countDown();
+                    for (int i = 0; i < 200; i++) {
+                        futures.add(racing.submit(request("object" + i, null)));
+                    }
+                });
+                submitter.start();
+                submitters.add(submitter);
+            }
+            started.await();
+            racing.stop(1000);
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+            for (CompletableFuture<ReadResponse> future : futures) {
+                // answered, or refused as the batcher stopped, but never left waiting
+                try {
+                    assertEquals(ResponseStatus.SUCCESS, future.get(5, TimeUnit.SECONDS).getStatus());
+                }
+                catch (ExecutionException ex) {
+                    assertInstanceOf(RejectedExecutionException.class, ex.getCause());
+                }
+            }
+        }
+    }
+
+    private MicroBatcher<ReadRequest, ReadResponse> start(int maxSize, long windowMicros, Function<List<ReadRequest>, List<ReadResponse>> handler) {
+        return new MicroBatcher<>("testPlugin-shard1", "read", maxSize, windowMicros, 100, handler, (request, message) -> {
+            ReadResponse response = new ReadResponse();
+            response.setRequestId(request.getRequestId()).setStatus(ResponseStatus.FAILURE).setErrorMessage(message);
+            return response;
+        }, executor);
+    }
+
+    private static ReadRequest request(String objectId, String requestId) {
+        ReadRequest request = new ReadRequest().setObjectId(objectId);
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    private static ReadResponse response(ReadRequest request) {
+        ReadResponse response = new ReadResponse();
+        response.setRequestId(request.getRequestId()).setObjectId(request.getObjectId()).setStatus(ResponseStatus.SUCCESS);
+        return response;
+    }
+}
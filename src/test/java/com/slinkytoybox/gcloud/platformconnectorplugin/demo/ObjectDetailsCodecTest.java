@@ -0,0 +1,163 @@
+/*
+ *   platformconnectorplugindemo - ObjectDetailsCodecTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class ObjectDetailsCodecTest {
+
+    private final ObjectDetailsCodec codec = new ObjectDetailsCodec(new String[]{"Phone", "Source", "Count"}, new Serializable[]{null, "Demo", null});
+
+    @Test
+    void roundTripsEveryValueType() {
+        Map<String, Serializable> details = new HashMap<>();
+        details.put("Phone", "0400 000 000");
+        details.put("Source", "Demo");
+        details.put("Count", -42);
+        details.put("unicode", "caf\u00e9 \u2713");
+        details.put("long", Long.MIN_VALUE);
+        details.put("true", true);
+        details.put("false", false);
+        details.put("double", 1.5d);
+        details.put("float", -2.25f);
+        details.put("short", (short) -7);
+        details.put("byte", (byte) 200);
+        details.put("char", 'z');
+        details.put("null", null);
+        details.put("decimal", new BigDecimal("12.345"));
+        details.put("date", LocalDate.of(2023, 1, 31));
+        details.put("list", new ArrayList<>(List.of("a", "b")));
+        details.put("array", new int[]{1, 2, 3});
+        Map<String, Serializable> decoded = codec.decode(codec.encode(details));
+        int[] array = (int[]) decoded.remove("array");
+        assertArrayEquals(new int[]{1, 2, 3}, array);
+        details.remove("array");
+        assertEquals(details, decoded);
+    }
+
+    @Test
+    void roundTripsEmptyAndNullDetails() {
+        assertNull(codec.decode(codec.encode(null)));
+        assertEquals(Map.of(), codec.decode(codec.encode(new HashMap<>())));
+    }
+
+    @Test
+    void schemaConstantIsWrittenAsItsIdAlone() {
+        byte[] constant = codec.encode(Map.of("Source", "Demo"));
+        byte[] other = codec.encode(Map.of("Source", "Other"));
+        assertEquals(3, constant.length);
+        assertTrue(other.length > constant.length);
+        assertEquals("Other", codec.decode(other).get("Source"));
+    }
+
+    @Test
+    void refusesToEncodeValuesItWouldNotDecode() {
+        Map<String, Serializable> details = new HashMap<>();
+        details.put("custom", new Custom());
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(details));
+        details.put("custom", new ArrayList<>(List.of(new Custom())));
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(details));
+    }
+
+    @Test
+    void refusesSerialisedClassesOutsideTheJdkValueTypes() throws IOException {
+        byte[] encoded = serialisedField(new Custom());
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> codec.decode(encoded));
+        assertEquals("Unable to read serialised details value", ex.getMessage());
+        // the same framing with an allowed value decodes
+        assertEquals(new BigDecimal("1.5"), codec.decode(serialisedField(new BigDecimal("1.5"))).get("x"));
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        byte[] valid = codec.encode(Map.of("Phone", "0400000000", "other", 5));
+        for (int length = 0; length < valid.length; length++) {
+            byte[] truncated = Arrays.copyOf(valid, length);
+            assertThrows(IllegalArgumentException.class, () -> codec.decode(truncated), "truncated to " + length);
+        }
+        byte[] trailing = Arrays.copyOf(valid, valid.length + 1);
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(trailing));
+        // one field with id 10, which the schema does not have
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[]{2, 11, 1, 0}));
+        // one field named x with value type 99
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[]{2, 0, 1, 'x', 99}));
+        // a constant for the field with no constant value
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[]{2, 1, 11}));
+        // a length that does not fit in an int
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F}));
+    }
+
+    @Test
+    void rejectsAFieldCountTheBytesCannotHold() {
+        // a count of Integer.MAX_VALUE - 1 fields in five bytes, which must not size the map
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                () -> codec.decode(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}));
+        assertTrue(ex.getMessage().contains("fields in 5 bytes"), ex.getMessage());
+        // a count past the top bit of a long
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+            (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01}));
+        // two fields need at least four bytes after the count
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[]{3, 1, 0}));
+    }
+
+    // One field named x holding a Java serialised value, written without the codec's checks
+    private static byte[] serialisedField(Serializable value) throws IOException {
+        ByteArrayOutputStream serialised = new ByteArrayOutputStream();
+        try ( ObjectOutputStream out = new ObjectOutputStream(serialised)) {
+            out.writeObject(value);
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        encoded.write(2);
+        encoded.write(0);
+        encoded.write(1);
+        encoded.writeBytes("x".getBytes(StandardCharsets.US_ASCII));
+        encoded.write(12);
+        int length = serialised.size();
+        while ((length & ~0x7F) != 0) {
+            encoded.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        encoded.write(length);
+        encoded.writeBytes(serialised.toByteArray());
+        return encoded.toByteArray();
+    }
+
+    private static final class Custom implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
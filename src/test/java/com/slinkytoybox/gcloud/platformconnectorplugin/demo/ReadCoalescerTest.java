@@ -0,0 +1,141 @@
+/*
+ *   platformconnectorplugindemo - ReadCoalescerTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class ReadCoalescerTest {
+
+    private final ReadCoalescer coalescer = new ReadCoalescer();
+
+    @Test
+    void waiterGetsACopyWithItsOwnRequestId() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<ReadResponse> leader = CompletableFuture.supplyAsync(() -> coalescer.execute("id:a", "r1", () -> {
+            await(release);
+            return response(ResponseStatus.SUCCESS, "r1");
+        }));
+        awaitTrue(() -> metric("readInFlight") == 1);
+        CompletableFuture<ReadResponse> waiter = CompletableFuture.supplyAsync(() -> coalescer.execute("id:a", "r2", () -> fail("waiter called the backend")));
+        awaitTrue(() -> metric("readCoalesced") == 1);
+        release.countDown();
+        assertEquals("r1", leader.get(10, TimeUnit.SECONDS).getRequestId());
+        ReadResponse joined = waiter.get(10, TimeUnit.SECONDS);
+        assertEquals("r2", joined.getRequestId());
+        assertEquals(ResponseStatus.SUCCESS, joined.getStatus());
+        assertEquals(1, metric("readBackendCalls"));
+    }
+
+    @Test
+    void waiterGivesUpAtItsOwnDeadline() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture.runAsync(() -> coalescer.execute("id:a", "r1", () -> {
+                await(release);
+                return response(ResponseStatus.SUCCESS, "r1");
+            }));
+            awaitTrue(() -> metric("readInFlight") == 1);
+            RequestDeadline.setCurrent(new RequestDeadline(System.currentTimeMillis() + 50));
+            try {
+                ReadResponse response = coalescer.execute("id:a", "r2", () -> fail("waiter called the backend"));
+                assertEquals(ResponseStatus.FAILURE, response.getStatus());
+                assertEquals("r2", response.getRequestId());
+            }
+            finally {
+                RequestDeadline.clearCurrent();
+            }
+            assertEquals(1, metric("readCoalescedExpired"));
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void waiterRunsTheReadItselfWhenTheLeaderIsCancelled() throws Exception {
+        CountDownLatch cancel = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<ReadResponse> leader = CompletableFuture.supplyAsync(() -> coalescer.execute("id:a", "r1", () -> {
+            calls.incrementAndGet();
+            await(cancel);
+            // eg the leader's own deadline passed
+            throw new CancellationException("Leader cancelled");
+        }));
+        awaitTrue(() -> metric("readInFlight") == 1);
+        CompletableFuture<ReadResponse> waiter = CompletableFuture.supplyAsync(() -> coalescer.execute("id:a", "r2", () -> {
+            calls.incrementAndGet();
+            return response(ResponseStatus.SUCCESS, "r2");
+        }));
+        awaitTrue(() -> metric("readCoalesced") == 1);
+        cancel.countDown();
+        ReadResponse response = waiter.get(10, TimeUnit.SECONDS);
+        assertEquals(ResponseStatus.SUCCESS, response.getStatus());
+        assertEquals("r2", response.getRequestId());
+        assertEquals(2, calls.get());
+        assertEquals(1, metric("readCoalescedRetried"));
+        assertThrows(Exception.class, () -> leader.get(10, TimeUnit.SECONDS));
+    }
+
+    private long metric(String name) {
+        List<HealthMetric> metrics = new ArrayList<>();
+        coalescer.addHealthMetrics(metrics);
+        return metrics.stream().filter(metric -> metric.getMetricName().equals(name)).mapToLong(metric -> ((Number) metric.getMetricValue()).longValue()).findFirst().orElseThrow();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ReadResponse response(ResponseStatus status, String requestId) {
+        ReadResponse response = new ReadResponse();
+        response.setRequestId(requestId);
+        response.setStatus(status);
+        return response;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *   platformconnectorplugindemo - ReadHedgerTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class ReadHedgerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final ReadHedger hedger = new ReadHedger(executor, timer, 50, 1, 100, 100);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    @Test
+    void firstAttemptRunsOnTheCallersThreadWhenTheExecutorIsFull() {
+        ExecutorService full = Executors.newSingleThreadExecutor();
+        full.shutdown();
+        ReadHedger fullHedger = new ReadHedger(full, timer, 50, 1, 100, 100);
+        Thread caller = Thread.currentThread();
+        AtomicInteger hedgeCalls = new AtomicInteger();
+        ReadResponse response = fullHedger.execute(() -> {
+            assertSame(caller, Thread.currentThread());
+            return response(ResponseStatus.SUCCESS);
+        }, () -> {
+            hedgeCalls.incrementAndGet();
+            return response(ResponseStatus.SUCCESS);
+        });
+        assertEquals(ResponseStatus.SUCCESS, response.getStatus());
+        assertEquals(0, hedgeCalls.get());
+    }
+
+    @Test
+    void hedgeAnswersWithoutWaitingForAFirstAttemptThatIgnoresInterrupts() throws InterruptedException {
+        learnDelay();
+        long winsBefore = metric("readHedgeWins");
+        AtomicBoolean release = new AtomicBoolean();
+        AtomicBoolean firstInterrupted = new AtomicBoolean();
+        try {
+            long startNanos = System.nanoTime();
+            ReadResponse response = hedger.execute(() -> {
+                // eg a blocking socket read, which carries on when its thread is interrupted
+                while (!release.get()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        firstInterrupted.set(true);
+                    }
+                    LockSupport.parkNanos(100000);
+                }
+                return response(ResponseStatus.FAILURE);
+            }, () -> response(ResponseStatus.SUCCESS));
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            assertEquals(ResponseStatus.SUCCESS, response.getStatus());
+            // hedge delay of 1ms, plus a margin for a slow scheduler
+            assertTrue(waitedMillis < 1000, "waited " + waitedMillis + "ms");
+            assertFalse(Thread.currentThread().isInterrupted());
+            awaitMetric("readHedgeWins", winsBefore + 1);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!firstInterrupted.get() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(firstInterrupted.get());
+        }
+        finally {
+            release.set(true);
+        }
+    }
+
+    @Test
+    void slowReadIsHedgedAndTheCallerIsNotInterrupted() throws InterruptedException {
+        learnDelay();
+        ReadResponse response = hedger.execute(() -> {
+            try {
+                Thread.sleep(10000);
+                return response(ResponseStatus.SUCCESS);
+            }
+            catch (InterruptedException ex) {
+                // cancelled once the hedge won
+                Thread.currentThread().interrupt();
+                return response(ResponseStatus.FAILURE);
+            }
+        }, () -> {
+            assertTrue(ReadHedger.isHedgeAttempt());
+            return response(ResponseStatus.SUCCESS);
+        });
+        assertEquals(ResponseStatus.SUCCESS, response.getStatus());
+        assertFalse(Thread.currentThread().isInterrupted());
+        awaitMetric("readHedgeWins", 1);
+    }
+
+    @Test
+    void interruptedCallerGetsACancellation() {
+        // a read that has not answered, as one that already has is returned even to an interrupted caller
+        Supplier<ReadResponse> slow = () -> {
+            try {
+                Thread.sleep(10000);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return response(ResponseStatus.FAILURE);
+        };
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(CancellationException.class, () -> hedger.execute(slow, slow));
+        }
+        finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    void failureIsReturnedWhenBothAttemptsFail() throws InterruptedException {
+        learnDelay();
+        // a hedge of one of the fast reads may still be starting, so only an increase is checked
+        long hedgesBefore = metric("readHedges");
+        Supplier<ReadResponse> slowFailure = () -> {
+            try {
+                Thread.sleep(20);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return response(ResponseStatus.FAILURE);
+        };
+        assertEquals(ResponseStatus.FAILURE, hedger.execute(slowFailure, slowFailure).getStatus());
+        assertTrue(metric("readHedges") > hedgesBefore);
+    }
+
+    // Fills a window with fast reads, so the next read sets the hedge delay to the minimum
+    private void learnDelay() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            hedger.execute(() -> response(ResponseStatus.SUCCESS), () -> response(ResponseStatus.SUCCESS));
+        }
+        Thread.sleep(120);
+        hedger.execute(() -> response(ResponseStatus.SUCCESS), () -> response(ResponseStatus.SUCCESS));
+        assertEquals(1.0, ((Number) metricValue("readHedgeDelayMillis")).doubleValue());
+    }
+
+    // A win is counted by the hedge thread just after it answers, so the caller can read the metric before it
+    private void awaitMetric(String name, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (metric(name) != expected && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, metric(name));
+    }
+
+    private long metric(String name) {
+        return ((Number) metricValue(name)).longValue();
+    }
+
+    private Object metricValue(String name) {
+        List<HealthMetric> metrics = new ArrayList<>();
+        hedger.addHealthMetrics(metrics);
+        return metrics.stream().filter(metric -> metric.getMetricName().equals(name)).findFirst().orElseThrow().getMetricValue();
+    }
+
+    private static ReadResponse response(ResponseStatus status) {
+        ReadResponse response = new ReadResponse();
+        response.setStatus(status);
+        return response;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *   platformconnectorplugindemo - SearchIndexTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class SearchIndexTest {
+
+    private final SearchIndex index = new SearchIndex(List.of("Phone", "Email"));
+
+    @BeforeEach
+    void load() {
+        Map<String, Map<String, Serializable>> snapshot = new HashMap<>();
+        snapshot.put("a", details("Phone", "111", "Email", "a@example.com"));
+        snapshot.put("b", details("Phone", "222", "Email", "b@example.com"));
+        index.load(snapshot);
+    }
+
+    @Test
+    void notAnsweredUntilLoaded() {
+        SearchIndex empty = new SearchIndex(List.of("Phone"));
+        assertNull(empty.search(Map.of("Phone", "111")));
+        empty.load(Map.of());
+        assertEquals(List.of(), empty.search(Map.of("Phone", "111")));
+    }
+
+    @Test
+    void unindexedParameterNotAnswered() {
+        assertNull(index.search(Map.of("Phone", "111", "Name", "Alice")));
+        assertNull(index.search(Map.of()));
+    }
+
+    @Test
+    void matchesTrimmedIgnoringCase() {
+        assertEquals(List.of("a"), index.search(Map.of("Email", "  A@Example.COM ")));
+        assertEquals(List.of("b"), index.search(Map.of("Phone", "222", "Email", "b@example.com")));
+        assertEquals(List.of(), index.search(Map.of("Phone", "222", "Email", "a@example.com")));
+    }
+
+    @Test
+    void partialUpdateKeepsMissingFields() {
+        index.put("a", details("Phone", "333"));
+        assertEquals(List.of(), index.search(Map.of("Phone", "111")));
+        assertEquals(List.of("a"), index.search(Map.of("Phone", "333")));
+        // Email was not in the update, so it is kept
+        assertEquals(List.of("a"), index.search(Map.of("Email", "a@example.com")));
+        assertEquals(List.of("a"), index.search(Map.of("Phone", "333", "Email", "a@example.com")));
+    }
+
+    @Test
+    void blankOrNullValueRemovesField() {
+        index.put("a", details("Email", " "));
+        assertEquals(List.of(), index.search(Map.of("Email", "a@example.com")));
+        assertEquals(List.of("a"), index.search(Map.of("Phone", "111")));
+        Map<String, Serializable> nullPhone = new HashMap<>();
+        nullPhone.put("Phone", null);
+        index.put("a", nullPhone);
+        assertEquals(List.of(), index.search(Map.of("Phone", "111")));
+    }
+
+    @Test
+    void removedObjectNumberReused() {
+        index.remove("a");
+        assertEquals(List.of(), index.search(Map.of("Phone", "111")));
+        index.put("c", details("Phone", "444"));
+        assertEquals(List.of("c"), index.search(Map.of("Phone", "444")));
+        // the reused number starts with no values from the removed object
+        assertEquals(List.of(), index.search(Map.of("Email", "a@example.com")));
+        index.put("d", details("Phone", "222"));
+        assertEquals(Set.of("b", "d"), new HashSet<>(index.search(Map.of("Phone", "222"))));
+    }
+
+    @Test
+    void growsAndSurvivesChurn() {
+        for (int i = 0; i < 1000; i++) {
+            index.put("object" + i, details("Phone", "p" + i, "Email", "e" + (i % 10)));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            index.remove("object" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? List.of() : List.of("object" + i), index.search(Map.of("Phone", "p" + i)));
+        }
+        // e1 is only on odd objects, which were kept, and e2 only on even ones, which were removed
+        assertEquals(100, index.search(Map.of("Email", "e1")).size());
+        assertEquals(List.of(), index.search(Map.of("Email", "e2")));
+        assertEquals(List.of("a"), index.search(Map.of("Phone", "111")));
+    }
+
+    private static Map<String, Serializable> details(String... nameValues) {
+        Map<String, Serializable> details = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            details.put(nameValues[i], nameValues[i + 1]);
+        }
+        return details;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *   platformconnectorplugindemo - ShardedPluginWorkerTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.CreateRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.DeleteRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.ReadRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.UpdateRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class ShardedPluginWorkerTest {
+
+    private ShardedPluginWorker worker;
+
+    @AfterEach
+    void destroy() {
+        if (worker != null) {
+            worker.destroy();
+        }
+    }
+
+    @Test
+    void readsAndWritesOfAnObjectReachTheSameShard() throws Exception {
+        worker = start(new Properties(), 3);
+        for (int i = 0; i < 100; i++) {
+            String objectId = "object" + i;
+            int shard = worker.shardFor(new ReadRequest().setObjectId(objectId));
+            assertEquals(shard, worker.shardFor(new UpdateRequest().setObjectId(objectId)));
+            assertEquals(shard, worker.shardFor(new DeleteRequest().setObjectId(objectId)));
+        }
+    }
+
+    @Test
+    void aChangeDropsCachedSearchesOnOtherShards() throws Exception {
+        Properties config = new Properties();
+        config.setProperty("cache.read.enabled", "true");
+        config.setProperty("health.refreshIntervalMillis", "10");
+        worker = start(config, 2);
+        // the demo backend answers every search with DemoReadObjectId
+        DeleteRequest delete = new DeleteRequest().setObjectId("DemoReadObjectId");
+        ReadRequest search = null;
+        for (int i = 0; search == null; i++) {
+            ReadRequest candidate = new ReadRequest().setSearchParameters(Map.of("Phone", "040000000" + i));
+            if (worker.shardFor(candidate) != worker.shardFor(delete)) {
+                search = candidate;
+            }
+        }
+        String searchShard = "shard" + worker.shardFor(search);
+        assertEquals(ResponseStatus.SUCCESS, worker.getResponseFromRequest(search).getStatus());
+
+        assertEquals(ResponseStatus.SUCCESS, worker.getResponseFromRequest(delete).getStatus());
+        awaitMetric(searchShard + ".readCacheInvalidations", 1);
+    }
+
+    @Test
+    void searchesSeeChangesMadeThroughAnotherShard() throws Exception {
+        Properties config = new Properties();
+        config.setProperty("index.search.enabled", "true");
+        config.setProperty("index.search.fields", "Phone");
+        worker = start(config, 2);
+        // creates go to a random shard, so some of these are made through a shard other than their search
+        for (int i = 0; i < 10; i++) {
+            String phone = "040000000" + i;
+            ReadRequest search = new ReadRequest().setSearchParameters(Map.of("Phone", phone));
+            assertEquals(ResponseStatus.RECORD_NOT_FOUND, worker.getResponseFromRequest(search).getStatus());
+            Map<String, Serializable> details = new HashMap<>();
+            details.put("Phone", phone);
+            PluginResponse created = worker.getResponseFromRequest(new CreateRequest().setObjectDetails(details));
+            assertEquals(ResponseStatus.SUCCESS, created.getStatus());
+
+            PluginResponse found = worker.getResponseFromRequest(search);
+            assertEquals(ResponseStatus.SUCCESS, found.getStatus());
+            assertEquals(created.getObjectId(), found.getObjectId());
+        }
+    }
+
+    private static ShardedPluginWorker start(Properties config, int shardCount) throws Exception {
+        ShardedPluginWorker started = new ShardedPluginWorker("test", "Test plugin", config, null, shardCount);
+        started.setContainerInterface((pluginId, health) -> {
+        });
+        started.setup();
+        return started;
+    }
+
+    private void awaitMetric(String name, long atLeast) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (metric(worker.getPluginHealth(), name) < atLeast) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for " + name);
+            Thread.sleep(10);
+        }
+    }
+
+    private static long metric(HealthResult health, String name) {
+        if (health.getMetrics() == null) {
+            return -1;
+        }
+        for (HealthMetric metric : health.getMetrics()) {
+            if (metric.getMetricName().equals(name)) {
+                return ((Number) metric.getMetricValue()).longValue();
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *   platformconnectorplugindemo - WriteBehindQueueTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.DeleteRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.PluginRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.UpdateRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.UpdateResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class WriteBehindQueueTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void requestsNotSentDoNotUseUpAttempts() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        WriteBehindQueue queue = open(request -> calls.incrementAndGet() <= 5 ? null : response(request, ResponseStatus.SUCCESS), 1);
+        queue.start();
+        assertEquals(WriteBehindQueue.Submitted.ACCEPTED, queue.submit("a", update("a", "r1")));
+        awaitTrue(() -> metric(queue, "writeBehindReplayed") == 1);
+        queue.stop(1000);
+        assertEquals(5, metric(queue, "writeBehindDeferred"));
+        assertEquals(0, metric(queue, "writeBehindDeadLettered"));
+        assertFalse(Files.exists(directory.resolve(WriteBehindQueue.DEAD_LETTER_FILE)));
+    }
+
+    @Test
+    void requestsOutOfAttemptsAreDeadLettered() throws Exception {
+        WriteBehindQueue queue = open(request -> response(request, ResponseStatus.FAILURE), 2);
+        queue.start();
+        assertEquals(WriteBehindQueue.Submitted.ACCEPTED, queue.submit("a", update("a", "r1")));
+        awaitTrue(() -> metric(queue, "writeBehindDeadLettered") == 1);
+        queue.stop(1000);
+        String deadLetters = Files.readString(directory.resolve(WriteBehindQueue.DEAD_LETTER_FILE));
+        assertTrue(deadLetters.contains("UPDATE objectId=a requestId=r1"), deadLetters);
+
+        // dead-lettered requests are not sent again after a restart
+        WriteBehindQueue reopened = open(request -> response(request, ResponseStatus.SUCCESS), 2);
+        assertEquals(0, metric(reopened, "writeBehindRecovered"));
+        reopened.stop(1000);
+    }
+
+    @Test
+    void unsentRequestsAreSentAfterARestart() throws Exception {
+        WriteBehindQueue queue = open(request -> response(request, ResponseStatus.SUCCESS), 2);
+        assertEquals(WriteBehindQueue.Submitted.ACCEPTED, queue.submit("a", update("a", "r1")));
+        assertEquals(WriteBehindQueue.Submitted.ACCEPTED, queue.submit("a", update("a", "r2")));
+        assertEquals(WriteBehindQueue.Submitted.ACCEPTED, queue.submit("b", new DeleteRequest().setObjectId("b").setRequestId("r3")));
+        queue.stop(1000);
+
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        WriteBehindQueue reopened = open(request -> {
+            sent.add(request.getRequestId());
+            return response(request, ResponseStatus.SUCCESS);
+        }, 2);
+        // the two updates of a are merged into one
+        assertEquals(2, metric(reopened, "writeBehindRecovered"));
+        reopened.start();
+        awaitTrue(() -> sent.size() == 2);
+        reopened.stop(1000);
+        assertEquals(List.of("r2", "r3"), sent);
+    }
+
+    @Test
+    void fullQueueNeverLetsADirectWriteBeOverwritten() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch sending = new CountDownLatch(1);
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        WriteBehindQueue queue = open(request -> {
+            sending.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(objectIdOf(request) + ":" + request.getRequestId());
+            return response(request, ResponseStatus.SUCCESS);
+        }, 2, 2);
+        queue.start();
+        assertEquals(WriteBehindQueue.Submitted.ACCEPTED, queue.submit("a", update("a", "r1")));
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        assertEquals(WriteBehindQueue.Submitted.ACCEPTED, queue.submit("b", update("b", "r2")));
+
+        // the queue is full. c has nothing waiting so it can be sent directly, but a is being sent and b is waiting
+        for (PluginRequest request : List.of(update("c", "r3"), new DeleteRequest().setObjectId("a").setRequestId("r4"), update("b", "r5"))) {
+            WriteBehindQueue.Submitted submitted = queue.submit(objectIdOf(request), request);
+            if (submitted == WriteBehindQueue.Submitted.SEND_DIRECTLY) {
+                sent.add(objectIdOf(request) + ":" + request.getRequestId());
+            }
+            else {
+                assertEquals(WriteBehindQueue.Submitted.REFUSED, submitted, request.getRequestId());
+            }
+        }
+        assertTrue(queue.isPending("a"));
+        assertFalse(queue.isPending("c"));
+        release.countDown();
+        awaitTrue(() -> metric(queue, "writeBehindReplayed") == 2);
+        queue.stop(1000);
+        assertEquals(List.of("c:r3", "a:r1", "b:r2"), sent);
+        assertEquals(2, metric(queue, "writeBehindRefused"));
+    }
+
+    @Test
+    void journalRecordsAreReadThroughTheValueAllowList() throws Exception {
+        // a record as submit() writes it, holding a class outside the JDK value types
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try ( ObjectOutputStream out = new ObjectOutputStream(record)) {
+            out.writeBoolean(true);
+            out.writeUTF("a");
+            out.writeObject("r1");
+            out.writeObject(null);
+            out.writeObject(new HashMap<>(Map.of("name", new Custom())));
+        }
+        WriteJournal journal = new WriteJournal(directory, 64 * 1024);
+        journal.append(record.toByteArray());
+        journal.close();
+
+        WriteBehindQueue queue = open(request -> response(request, ResponseStatus.SUCCESS), 2);
+        assertEquals(0, metric(queue, "writeBehindRecovered"));
+        assertEquals(1, metric(queue, "writeBehindDropped"));
+        // submit() refuses to journal what replay would refuse to read
+        UpdateRequest custom = new UpdateRequest().setObjectId("b").setObjectDetails(Map.<String, Serializable>of("name", new Custom()));
+        assertEquals(WriteBehindQueue.Submitted.SEND_DIRECTLY, queue.submit("b", custom));
+        queue.stop(1000);
+    }
+
+    private WriteBehindQueue open(Function<PluginRequest, PluginResponse> writer, int maxAttempts) throws IOException {
+        return open(writer, maxAttempts, 100);
+    }
+
+    private WriteBehindQueue open(Function<PluginRequest, PluginResponse> writer, int maxAttempts, int maxPending) throws IOException {
+        return new WriteBehindQueue("test", directory, 64 * 1024, writer, 1, maxPending, maxAttempts, 1, 30000, 10);
+    }
+
+    private static String objectIdOf(PluginRequest request) {
+        return request instanceof UpdateRequest update ? update.getObjectId() : ((DeleteRequest) request).getObjectId();
+    }
+
+    private static UpdateRequest update(String objectId, String requestId) {
+        UpdateRequest request = new UpdateRequest().setObjectId(objectId).setObjectDetails(Map.<String, Serializable>of("name", requestId));
+        request.setRequestId(requestId);
+        return request;
+    }
+
+    private static PluginResponse response(PluginRequest request, ResponseStatus status) {
+        return new UpdateResponse().setRequestId(request.getRequestId()).setStatus(status);
+    }
+
+    private static long metric(WriteBehindQueue queue, String name) {
+        List<HealthMetric> metrics = new ArrayList<>();
+        queue.addHealthMetrics(metrics);
+        return metrics.stream().filter(metric -> metric.getMetricName().equals(name)).mapToLong(metric -> ((Number) metric.getMetricValue()).longValue()).findFirst().orElseThrow();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting");
+            Thread.sleep(5);
+        }
+    }
+
+    private static final class Custom implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
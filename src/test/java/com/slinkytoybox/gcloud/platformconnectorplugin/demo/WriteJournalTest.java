@@ -0,0 +1,166 @@
+/*
+ *   platformconnectorplugindemo - WriteJournalTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.platformconnectorplugin.demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class WriteJournalTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoversRecordsAfterReopeningInTheSameSegment() throws IOException {
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            journal.append(bytes("one"));
+            journal.append(bytes("two"));
+        }
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            assertEquals(List.of("one", "two"), recover(journal));
+            journal.append(bytes("three"));
+        }
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            assertEquals(List.of("one", "two", "three"), recover(journal));
+        }
+        assertEquals(1, segmentFiles().size());
+    }
+
+    @Test
+    void recoversFromTheCheckpoint() throws IOException {
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            journal.append(bytes("one"));
+            long second = journal.append(bytes("two"));
+            journal.append(bytes("three"));
+            journal.checkpoint(second);
+        }
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            assertEquals(List.of("two", "three"), recover(journal));
+        }
+    }
+
+    @Test
+    void stopsAtATornRecordAndAppendsOverIt() throws IOException {
+        long torn;
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            journal.append(bytes("one"));
+            journal.append(bytes("two"));
+            torn = journal.append(bytes("three"));
+        }
+        // corrupt the contents of the last record, as a crash part way through writing it would
+        try ( FileChannel channel = FileChannel.open(segmentFiles().get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes("XX")), (int) torn + 8);
+        }
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            assertEquals(List.of("one", "two"), recover(journal));
+            assertEquals(torn, journal.append(bytes("4")));
+        }
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            assertEquals(List.of("one", "two", "4"), recover(journal));
+        }
+    }
+
+    @Test
+    void replaysEverythingWhenTheCheckpointIsUnreadable() throws IOException {
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            journal.append(bytes("one"));
+            long second = journal.append(bytes("two"));
+            journal.checkpoint(second);
+        }
+        Files.writeString(directory.resolve("checkpoint"), "not a number", StandardCharsets.US_ASCII);
+        Files.writeString(directory.resolve("journal-abc.log"), "", StandardCharsets.US_ASCII);
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            assertEquals(0, journal.getCheckpoint());
+            assertEquals(List.of("one", "two"), recover(journal));
+        }
+    }
+
+    @Test
+    void rollsToNewSegmentsAndDeletesThoseBeforeTheCheckpoint() throws IOException {
+        byte[] record = new byte[1000];
+        List<Long> positions = new ArrayList<>();
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            for (int i = 0; i < 10; i++) {
+                positions.add(journal.append(record));
+            }
+            assertTrue(segmentFiles().size() > 1);
+            journal.checkpoint(positions.get(9));
+            assertEquals(1, segmentFiles().size());
+        }
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            List<Long> recovered = new ArrayList<>();
+            journal.recover((position, contents) -> recovered.add(position));
+            assertEquals(List.of(positions.get(9)), recovered);
+        }
+    }
+
+    @Test
+    void largestRecordLeavesRoomForTheEndOfSegmentMarker() throws IOException {
+        // a record plus its header, and the zero length header marking the end of the segment after it
+        byte[] largest = new byte[SEGMENT_BYTES - 16];
+        largest[0] = 1;
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            assertThrows(IllegalArgumentException.class, () -> journal.append(new byte[SEGMENT_BYTES - 15]));
+            journal.append(largest);
+            // the segment is full, so the next one rolls to a fresh segment where it also fits
+            journal.append(largest);
+            assertEquals(2, segmentFiles().size());
+        }
+        try ( WriteJournal journal = new WriteJournal(directory, SEGMENT_BYTES)) {
+            List<byte[]> records = new ArrayList<>();
+            journal.recover((position, record) -> records.add(record));
+            assertEquals(2, records.size());
+            assertArrayEquals(largest, records.get(1));
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> recover(WriteJournal journal) throws IOException {
+        List<String> records = new ArrayList<>();
+        journal.recover((position, record) -> records.add(new String(record, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try ( Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().matches("journal-\\d+\\.log")).sorted().toList();
+        }
+    }
+}